@@ -0,0 +1,68 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a crowd of clients connecting at once, as after a
+ * restart, through a server running in the same JVM on the loopback
+ * interface. Every client of a burst connects, then each sends a
+ * resume and waits for the server's answer, so a connection only
+ * counts once the server is serving it. Clients are reset on close
+ * so no ports are left in TIME_WAIT. One operation is one client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptBenchmark {
+
+    //Clients connecting together in each operation
+    private static final int BURST = 64;
+    private static final byte[] RESUME = "/resume lobby 0\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"classic", "nio"})
+    String engine;
+
+    @Param({"1", "4"})
+    int acceptors;
+
+    private int port;
+    private final Socket[] clients = new Socket[BURST];
+
+    /**
+     * Method which starts the server
+     * @throws Exception if it cannot be started
+     */
+    @Setup
+    public void setup() throws Exception {
+        port = Loopback.freePorts(1)[0];
+        Loopback.start(port, "-cse", engine, "-csa", String.valueOf(acceptors), "-csm", "off", "-csh", "0");
+        Thread.sleep(500);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void connectBurst() throws IOException {
+        for (int i = 0; i < BURST; i++) {
+            clients[i] = new Socket("localhost", port);
+            clients[i].setSoLinger(true, 0);
+        }
+        for (Socket client : clients) {
+            client.getOutputStream().write(RESUME);
+        }
+        for (Socket client : clients) {
+            //Waits for the first byte of the answer
+            if (client.getInputStream().read() == -1) {
+                throw new EOFException("Server closed the connection.");
+            }
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a cluster of nodes running in the same JVM on the
+ * loopback interface, with the same load on every node: one sender
+ * and a fixed number of receivers, all in the default room. In each
+ * operation every sender writes a burst of messages and every
+ * receiver reads every message of every sender, so messages from
+ * other nodes have to cross a cluster link first. The deliveries
+ * counter is messages delivered to receivers, so it shows the total
+ * throughput of the cluster as nodes are added. Nodes sharing one
+ * machine also share its cores, so it only grows with the nodes on
+ * a host with cores to spare.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterBenchmark {
+
+    //Receivers connected to each node
+    private static final int RECEIVERS = 20;
+    //Messages written by each sender in each operation
+    private static final int BURST = 32;
+
+    //Number of nodes in the cluster
+    @Param({"1", "2", "3"})
+    int nodes;
+
+    private OutputStream[] senders;
+    private BufferedReader[] receivers;
+    private byte[][] bursts;
+
+    /**
+     * Class that counts the messages delivered
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counter {
+        public long deliveries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            deliveries = 0;
+        }
+    }
+
+    /**
+     * Method which starts the nodes, waits for their links
+     * and connects the clients of each
+     * @throws Exception if a node cannot be reached
+     */
+    @Setup
+    public void setup() throws Exception {
+        int[] ports = Loopback.freePorts(nodes * 2);
+        StringBuilder members = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            members.append(i == 0 ? "" : ",").append("localhost:").append(ports[nodes + i]);
+        }
+        ChatServer[] servers = new ChatServer[nodes];
+        for (int i = 0; i < nodes; i++) {
+            List<String> args = new ArrayList<>(List.of("-cse", "nio", "-csm", "off", "-csh", "0"));
+            if (nodes > 1) {
+                args.add("-csz");
+                args.add((i + 1) + "@" + members);
+            }
+            servers[i] = Loopback.start(ports[i], args.toArray(new String[0]));
+        }
+        for (ChatServer server : servers) {
+            while (server.getCluster() != null && server.getCluster().getLinksUp() < nodes - 1) {
+                Thread.sleep(10);
+            }
+        }
+
+        senders = new OutputStream[nodes];
+        receivers = new BufferedReader[nodes * RECEIVERS];
+        for (int i = 0; i < nodes; i++) {
+            Socket sender = Loopback.connect(ports[i]);
+            Loopback.discard(sender);
+            senders[i] = sender.getOutputStream();
+            for (int r = 0; r < RECEIVERS; r++) {
+                Socket receiver = Loopback.connect(ports[i]);
+                receivers[i * RECEIVERS + r] = new BufferedReader(
+                        new InputStreamReader(receiver.getInputStream(), StandardCharsets.UTF_8));
+            }
+        }
+        //Let every node register its clients before anything is sent
+        Thread.sleep(500);
+
+        bursts = new byte[nodes][];
+        for (int i = 0; i < nodes; i++) {
+            StringBuilder burst = new StringBuilder();
+            for (int m = 0; m < BURST; m++) {
+                burst.append("node").append(i).append('-').append(m).append('\n');
+            }
+            bursts[i] = burst.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public void bursts(Counter counter) throws IOException {
+        int expected = nodes * BURST;
+        for (int i = 0; i < nodes; i++) {
+            senders[i].write(bursts[i]);
+            senders[i].flush();
+        }
+        for (BufferedReader in : receivers) {
+            for (int read = 0; read < expected; ) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Server closed the connection.");
+                }
+                //Skip anything that is not a message of a burst
+                if (line.contains(": node")) {
+                    read++;
+                }
+            }
+        }
+        counter.deliveries += (long) expected * receivers.length;
+    }
+}
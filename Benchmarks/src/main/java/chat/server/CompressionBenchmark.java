@@ -0,0 +1,194 @@
+package chat.server;
+
+import chat.common.Protocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Benchmark of compressing what a room is sent. Every message goes
+ * to the same number of clients, and each client's copy counts its
+ * bytes on the wire. "off" sends the plain frame, "shared" compresses
+ * each message once and shares the frame, as the server does, and
+ * "stream" gives every client a deflate context kept across messages,
+ * which compresses better but has to run once for every client.
+ * Chat payloads are single lines of words drawn with the skewed
+ * frequencies of real text, so words repeat but whole lines do not;
+ * long payloads are a few lines pasted together. One operation is
+ * one message delivered to one client; the bytes counter is what
+ * they took, so divided by the score it gives bytes per delivery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    //Clients in the room
+    private static final int RECIPIENTS = 100;
+    //Lines pasted together in a long payload
+    private static final int LONG_LINES = 8;
+    //Bytes a sync flush ends each message with, which need not be sent
+    private static final int FLUSH_TRAILER = 4;
+    //Payloads made, sent in turn
+    private static final int PAYLOADS = 4096;
+    //Words of a chat line, at least and at most
+    private static final int MIN_WORDS = 3;
+    private static final int MAX_WORDS = 24;
+    //Words in order of how often they are used
+    private static final String[] WORDS = ("I the to you a it and is that of in we for on this be "
+            + "have it's just can so but with are not do at if was what I'll get me will my it "
+            + "all know up there think like now see yes no ok one about out need some time when "
+            + "should we're going could test build today tomorrow check look done fix thanks "
+            + "release branch review meeting server deploy staging please sure lunch later "
+            + "again still also then more after before into back down over why how issue ticket "
+            + "customer data logs error failing passed merged config update version link doc "
+            + "morning call office demo week Friday Monday moved new old small big quick long "
+            + "night nightly database container timeout retry cache queue latency memory disk "
+            + "dashboard page search login password certificate VPN export invoice report").split(" ");
+
+    @Param({"off", "shared", "stream"})
+    String mode;
+
+    @Param({"chat", "long"})
+    String payload;
+
+    private String[] payloads;
+    private Compressor compressor;
+    private Deflater[] streams;
+    private final byte[] scratch = new byte[64 * 1024];
+    private int next;
+
+    /**
+     * Class that counts the bytes sent
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counter {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Method which makes the payloads and the compressor or
+     * the deflate context of every client
+     */
+    @Setup
+    public void setup() {
+        payloads = payloads(payload.equals("long") ? LONG_LINES : 1);
+        compressor = ServerConfig.fromArgs(new String[0]).newCompressor(null);
+        streams = mode.equals("stream") ? streams(compressor.getLevel()) : null;
+    }
+
+    /**
+     * Method which frees the native memory of the clients' contexts
+     */
+    @TearDown
+    public void tearDown() {
+        if (streams != null) {
+            for (Deflater stream : streams) {
+                stream.end();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECIPIENTS)
+    public void deliveries(Counter counter) {
+        Message message = Message.chat(1, payloads[next++ % payloads.length]);
+        long sent = 0;
+        for (int i = 0; i < RECIPIENTS; i++) {
+            if (streams != null) {
+                sent += deflated(streams[i], message.getPayload(), scratch);
+            }
+            else {
+                sent += message.encoded(true, false, mode.equals("shared") ? compressor : null).remaining();
+            }
+        }
+        counter.bytes += sent;
+    }
+
+    /**
+     * Method which makes the payloads sent in turn
+     * @param lines lines pasted together in each payload
+     * @return String[] payloads
+     */
+    private static String[] payloads(int lines) {
+        Random random = new Random(42);
+        String[] payloads = new String[PAYLOADS];
+        for (int i = 0; i < payloads.length; i++) {
+            StringBuilder payload = new StringBuilder();
+            for (int j = 0; j < lines; j++) {
+                if (j > 0) {
+                    payload.append('\n');
+                }
+                line(payload, random);
+            }
+            payloads[i] = payload.toString();
+        }
+        return payloads;
+    }
+
+    /**
+     * Method which makes a line of words, each chosen with
+     * a chance of about 1 in its rank, as in Zipf's law
+     * @param out where the line is written
+     * @param random source of the choices
+     */
+    private static void line(StringBuilder out, Random random) {
+        int words = MIN_WORDS + random.nextInt(MAX_WORDS - MIN_WORDS + 1);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            //Rank r is drawn with a chance proportional to 1/r
+            int rank = (int) Math.pow(WORDS.length + 1, random.nextDouble());
+            out.append(WORDS[Math.min(WORDS.length, rank) - 1]);
+        }
+    }
+
+    /**
+     * Method which makes a deflate context for every client,
+     * starting from the same dictionary as the server's
+     * @param level deflate level
+     * @return Deflater[] streams
+     */
+    private static Deflater[] streams(int level) {
+        Deflater[] streams = new Deflater[RECIPIENTS];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = new Deflater(level, true);
+            streams[i].setDictionary(Protocol.DICTIONARY);
+        }
+        return streams;
+    }
+
+    /**
+     * Method which compresses a payload with a client's own
+     * context and returns the size of the frame it would be
+     * sent in, as a binary frame from client 1
+     * @param stream the client's context
+     * @param payload payload of the message
+     * @param scratch buffer the compressed bytes are written to
+     * @return bytes of the frame
+     */
+    private static int deflated(Deflater stream, ByteBuffer payload, byte[] scratch) {
+        stream.setInput(payload);
+        int size = 0;
+        int written;
+        do {
+            written = stream.deflate(scratch, 0, scratch.length, Deflater.SYNC_FLUSH);
+            size += written;
+        } while (written == scratch.length);
+        int length = 2 + size - FLUSH_TRAILER;
+        return Message.varintSize(length) + length;
+    }
+}
@@ -0,0 +1,93 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of direct messages mixed with room messages. Clients
+ * without a socket sit in rooms of ten; each operation picks a
+ * random sender, which either sends /msg to a random client or
+ * sends a message to its room. The benchmark stands in for the
+ * writers by taking and encoding every queued message.
+ * One operation is one message sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectMessageBenchmark {
+
+    private static final int ROOM_SIZE = 10;
+
+    @Param({"1000", "100000"})
+    int clients;
+
+    //Share of messages that are direct
+    @Param({"0", "50", "100"})
+    int directPercent;
+
+    private ServerConnection[] connections;
+    private String[] commands;
+
+    /**
+     * Method which connects the clients and puts them in rooms
+     */
+    @Setup
+    public void setup() {
+        //Short queues keep 100k idle clients in memory
+        ChatServer server = new ChatServer(0, false, ServerConfig.fromArgs(new String[] {"-csm", "off", "-csq", "16"}));
+        connections = new ServerConnection[clients];
+        for (int i = 0; i < clients; i++) {
+            connections[i] = new ServerConnection((Socket) null, server, i + 1);
+            server.addConnection(connections[i]);
+            connections[i].onLine("/join room" + (i / ROOM_SIZE));
+            //Discard the join notices
+            for (int j = i - i % ROOM_SIZE; j <= i; j++) {
+                while (connections[j].pollOutbound() != null) {
+                    //Discard
+                }
+            }
+        }
+        commands = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            commands[i] = "/msg " + (i + 1) + " hello there";
+        }
+    }
+
+    @Benchmark
+    public void mixed(Blackhole blackhole) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(clients);
+        if (random.nextInt(100) < directPercent) {
+            int to = random.nextInt(clients);
+            connections[from].onLine(commands[to]);
+            drain(connections[to], blackhole);
+            drain(connections[from], blackhole);
+        }
+        else {
+            connections[from].onLine("hello room");
+            int first = from - from % ROOM_SIZE;
+            for (int j = first; j < Math.min(clients, first + ROOM_SIZE); j++) {
+                drain(connections[j], blackhole);
+            }
+        }
+    }
+
+    /**
+     * Method which takes and encodes everything queued for a client
+     * @param connection client to drain
+     * @param blackhole where the encoded frames go
+     */
+    private static void drain(ServerConnection connection, Blackhole blackhole) {
+        Message message;
+        while ((message = connection.pollOutbound()) != null) {
+            blackhole.consume(message.encoded(false));
+        }
+    }
+}
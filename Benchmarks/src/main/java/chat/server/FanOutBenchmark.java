@@ -0,0 +1,80 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a single client's message being sent to its room.
+ * The connections have no socket: the real ServerConnection
+ * queues the message for every member of the room, and the
+ * benchmark stands in for the writers by taking each queued
+ * message and encoding it. Clients are spread evenly over the
+ * rooms; with one room every client gets every message.
+ * One operation is one message sent to the sender's room.
+ *
+ * Many small rooms: -p clients=50000 -p rooms=5000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    int clients;
+
+    @Param({"1"})
+    int rooms;
+
+    private ServerConnection from;
+    private ServerConnection[] audience;
+    private String line;
+
+    /**
+     * Method which connects the clients and puts them in their rooms
+     */
+    @Setup
+    public void setup() {
+        //Port 0 binds any free port; message bodies are not logged
+        ChatServer server = new ChatServer(0, false, ServerConfig.fromArgs(new String[] {"-csm", "off"}));
+        List<List<ServerConnection>> members = new ArrayList<>();
+        for (int r = 0; r < rooms; r++) {
+            members.add(new ArrayList<>());
+        }
+        for (int i = 0; i < clients; i++) {
+            ServerConnection connection = new ServerConnection((Socket) null, server, i + 1);
+            server.addConnection(connection);
+            connection.admit();
+            List<ServerConnection> room = members.get(i % rooms);
+            room.add(connection);
+            if (rooms > 1) {
+                connection.onLine("/join room" + (i % rooms));
+                //Discard the join notices
+                for (ServerConnection member : room) {
+                    while (member.pollOutbound() != null) {
+                        //Discard
+                    }
+                }
+            }
+        }
+        from = members.get(0).get(0);
+        audience = members.get(0).toArray(new ServerConnection[0]);
+        line = new String(new byte[64], StandardCharsets.US_ASCII).replace('\0', 'x');
+    }
+
+    @Benchmark
+    public void fanOut(Blackhole blackhole) {
+        from.onLine(line);
+        for (ServerConnection connection : audience) {
+            blackhole.consume(connection.pollOutbound().encoded(false));
+        }
+    }
+}
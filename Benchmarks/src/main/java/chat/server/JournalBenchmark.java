@@ -0,0 +1,90 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of saving room messages to the journal. Messages go
+ * through a room's History, as on the server, and each operation
+ * waits until they are forced to disk. "single" waits after every
+ * message, which is what an fsync per message would cost; "group"
+ * queues a burst first so the writer commits them together.
+ * The score is commits waited for; the messages counter is
+ * messages on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    //Messages queued before waiting in group mode
+    private static final int BURST = 256;
+
+    @Param({"single", "group"})
+    String mode;
+
+    private File dir;
+    private Journal journal;
+    private History history;
+    private String line;
+    private int burst;
+
+    /**
+     * Class that counts the messages committed
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counter {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+
+    /**
+     * Method which opens a journal in a new directory
+     * @throws Exception if the journal cannot be opened
+     */
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("journal").toFile();
+        journal = new Journal(dir, 64L * 1024 * 1024, 2, new AsyncLogger(1024, Collections.emptyList()));
+        journal.start();
+        history = new History(Rooms.DEFAULT_ROOM, 0, 0, new AtomicLong(), journal);
+        line = "x".repeat(64);
+        burst = mode.equals("group") ? BURST : 1;
+    }
+
+    /**
+     * Method which deletes the journal's files
+     */
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void commit(Counter counter) {
+        for (int i = 0; i < burst; i++) {
+            history.append(Message.chat(1, line));
+        }
+        journal.flush(10_000);
+        counter.messages += burst;
+    }
+}
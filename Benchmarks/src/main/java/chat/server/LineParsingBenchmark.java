@@ -0,0 +1,126 @@
+package chat.server;
+
+import chat.common.Protocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of FrameDecoder splitting received bytes into
+ * messages. Each call copies one read's worth of bytes into
+ * the decoder, as the reader does, and decodes them.
+ * The score is reads decoded; the messages counter is lines
+ * or frames handed to the handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParsingBenchmark {
+
+    //Bytes copied into the decoder per simulated read
+    private static final int READ_BYTES = 8192;
+
+    @Param({"text", "binary"})
+    String protocol;
+
+    private byte[] stream;
+    private FrameDecoder decoder;
+    private int offset;
+
+    /**
+     * Class that counts what the decoder finds
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counter implements FrameDecoder.Handler {
+        public long messages;
+        //Keeps the decoding from being optimised away
+        long checksum;
+
+        @Override
+        public void onLine(String line) {
+            messages++;
+            checksum += line.length();
+        }
+
+        @Override
+        public void onFrame(byte type, int sender, ByteBuffer payload) {
+            messages++;
+            checksum += payload.remaining();
+        }
+
+        @Override
+        public void onHello() {
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+
+    /**
+     * Method which builds the stream and, for binary, has
+     * the decoder take the hello first
+     * @throws ProtocolException if the decoder rejects the hello
+     */
+    @Setup
+    public void setup() throws ProtocolException {
+        boolean binary = protocol.equals("binary");
+        stream = messages(binary);
+        decoder = new FrameDecoder();
+        if (binary) {
+            decoder.buffer().put(Protocol.HELLO_BYTES);
+            decoder.decode(new Counter());
+        }
+    }
+
+    @Benchmark
+    public long decode(Counter counter) throws ProtocolException {
+        ByteBuffer buffer = decoder.buffer();
+        int length = Math.min(buffer.remaining(), Math.min(READ_BYTES, stream.length - offset));
+        buffer.put(stream, offset, length);
+        offset = (offset + length) % stream.length;
+        decoder.decode(counter);
+        return counter.checksum;
+    }
+
+    /**
+     * Method which builds the bytes of a long run of chat
+     * messages between 8 and 120 characters long
+     * @param binary true for binary frames, false for lines
+     * @return the messages as they arrive on the socket
+     */
+    private static byte[] messages(boolean binary) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            text.setLength(0);
+            int length = 8 + (i * 37) % 113;
+            while (text.length() < length) {
+                text.append("message ").append(i).append(' ');
+            }
+            byte[] payload = text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+            if (binary) {
+                ByteBuffer frame = ByteBuffer.allocate(payload.length + 7);
+                Message.putVarint(frame, payload.length + 2);
+                frame.put(Protocol.CHAT);
+                Message.putVarint(frame, 0);
+                frame.put(payload);
+                out.write(frame.array(), 0, frame.position());
+            }
+            else {
+                out.write(payload, 0, payload.length);
+                out.write('\n');
+            }
+        }
+        return out.toByteArray();
+    }
+}
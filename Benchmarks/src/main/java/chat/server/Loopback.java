@@ -0,0 +1,97 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that holds what the benchmarks running a server in
+ * the same JVM on the loopback interface have in common
+ */
+class Loopback {
+
+    //Sent first, so the client joins the lobby without waiting for the server to give up on a resume
+    private static final byte[] RESUME = "/resume lobby 0\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Method which finds free ports on the loopback interface
+     * @param count number of ports
+     * @return the ports, all different
+     * @throws IOException if no port can be bound
+     */
+    static int[] freePorts(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        for (int i = 0; i < count; i++) {
+            sockets[i] = new ServerSocket(0);
+            ports[i] = sockets[i].getLocalPort();
+        }
+        for (ServerSocket socket : sockets) {
+            socket.close();
+        }
+        return ports;
+    }
+
+    /**
+     * Method which starts a server on its own acceptor thread
+     * @param port port to listen on
+     * @param args command line options of the server
+     * @return the server, accepting clients
+     */
+    static ChatServer start(int port, String... args) {
+        ChatServer server = new ChatServer(port, false, ServerConfig.fromArgs(args));
+        Thread acceptor = new Thread(server::go, "acceptor-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Method which connects a client, retrying while the
+     * server is still starting, and resumes it into the lobby
+     * @param port port of the server
+     * @return the connected socket
+     * @throws IOException if the server never accepts
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true);
+                socket.getOutputStream().write(RESUME);
+                return socket;
+            }
+            catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Method which reads and discards everything sent to a
+     * client, such as the copies of its own messages
+     * @param client socket of the client
+     */
+    static void discard(Socket client) {
+        Thread discard = new Thread(() -> {
+            try {
+                InputStream in = client.getInputStream();
+                byte[] skip = new byte[8192];
+                while (in.read(skip) != -1) {
+                    //Discard
+                }
+            }
+            catch (IOException ignored) {
+                //Benchmark over
+            }
+        }, "discard");
+        discard.setDaemon(true);
+        discard.start();
+    }
+}
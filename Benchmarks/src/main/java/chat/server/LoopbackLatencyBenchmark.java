@@ -0,0 +1,87 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the time from one client writing a line to another
+ * client reading it, through a server running in the same JVM on
+ * the loopback interface. One message is in flight at a time, so
+ * this measures latency rather than throughput, sampled so the
+ * results include percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackLatencyBenchmark {
+
+    @Param({"classic", "nio"})
+    String engine;
+
+    private Socket sender;
+    private Socket receiver;
+    private OutputStream out;
+    private BufferedReader in;
+    private long sent;
+
+    /**
+     * Method which starts the server and connects both clients
+     * @throws Exception if the server cannot be reached
+     */
+    @Setup
+    public void setup() throws Exception {
+        int port = Loopback.freePorts(1)[0];
+        Loopback.start(port, "-cse", engine, "-csm", "off");
+        sender = Loopback.connect(port);
+        receiver = Loopback.connect(port);
+        //The sender's own copy of every message is read and discarded
+        Loopback.discard(sender);
+        out = sender.getOutputStream();
+        in = new BufferedReader(new InputStreamReader(receiver.getInputStream(), StandardCharsets.UTF_8));
+        //Resend until the server has registered both clients
+        receiver.setSoTimeout(200);
+        boolean ready = false;
+        while (!ready) {
+            out.write("ready\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            try {
+                ready = in.readLine().endsWith(": ready");
+            }
+            catch (SocketTimeoutException e) {
+                //Sent before the receiver was registered
+            }
+        }
+        receiver.setSoTimeout(0);
+    }
+
+    /**
+     * Method which disconnects both clients
+     * @throws IOException if a socket fails to close
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public String sendToOther() throws IOException {
+        String expected = ": " + ++sent;
+        out.write((sent + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String line;
+        //Skip anything that is not this message
+        while (!(line = in.readLine()).endsWith(expected)) {
+            //Skip
+        }
+        return line;
+    }
+}
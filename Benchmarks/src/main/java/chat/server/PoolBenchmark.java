@@ -0,0 +1,194 @@
+package chat.server;
+
+import chat.common.Protocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the path a binary chat message takes through an
+ * event loop: the bytes of a read are decoded, each frame is made
+ * into a message, its frame is written to every recipient with
+ * gathering writes over the loopback interface, as a flush does,
+ * and the message is released once written. Run with heap buffers
+ * allocated for every message, as before the pool, which the JDK
+ * copies into a direct buffer on every write, and with direct
+ * buffers borrowed from a pool by a thread keeping its own cache,
+ * as an event loop does. The score is reads relayed; the
+ * deliveries counter is messages delivered to one recipient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+    //Bytes copied into the decoder per simulated read
+    private static final int READ_BYTES = 8192;
+    //Clients every message is written to
+    private static final int RECIPIENTS = 4;
+    //Most messages gathered into one write, as in a flush
+    private static final int BATCH_MESSAGES = 64;
+
+    @Param({"heap", "pooled"})
+    String buffers;
+
+    private SocketChannel[] recipients;
+    private byte[] stream;
+    private FrameDecoder decoder;
+    private Relay relay;
+    private final ByteBuffer[] batch = new ByteBuffer[BATCH_MESSAGES];
+    private int offset;
+
+    /**
+     * Class that makes every frame into a message
+     */
+    private static class Relay implements FrameDecoder.Handler {
+        private final BufferPool pool;
+        private final Message[] messages = new Message[READ_BYTES];
+        int count;
+
+        Relay(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void onLine(String line) {
+        }
+
+        @Override
+        public void onFrame(byte type, int sender, ByteBuffer payload) {
+            messages[count++] = Message.relay(1, payload, pool);
+        }
+
+        @Override
+        public void onHello() {
+        }
+    }
+
+    /**
+     * Class that counts the messages delivered
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counter {
+        public long deliveries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            deliveries = 0;
+        }
+    }
+
+    /**
+     * Method which connects the recipients and has the decoder
+     * take the hello. JMH runs it on the benchmark thread, which
+     * is given a cache of its own, as an event loop is.
+     * @throws IOException if a connection fails
+     */
+    @Setup
+    public void setup() throws IOException {
+        BufferPool pool = null;
+        if (buffers.equals("pooled")) {
+            pool = new BufferPool(null);
+            pool.cacheThread();
+        }
+        recipients = connect();
+        stream = frames();
+        decoder = new FrameDecoder(Protocol.MAX_FRAME, pool);
+        relay = new Relay(pool);
+        decoder.buffer().put(Protocol.HELLO_BYTES);
+        decoder.decode(relay);
+    }
+
+    @Benchmark
+    public void deliveries(Counter counter) throws IOException {
+        ByteBuffer buffer = decoder.buffer();
+        int length = Math.min(buffer.remaining(), Math.min(READ_BYTES, stream.length - offset));
+        buffer.put(stream, offset, length);
+        offset = (offset + length) % stream.length;
+        relay.count = 0;
+        decoder.decode(relay);
+        for (SocketChannel recipient : recipients) {
+            for (int start = 0; start < relay.count; start += BATCH_MESSAGES) {
+                int end = Math.min(relay.count, start + BATCH_MESSAGES);
+                for (int i = start; i < end; i++) {
+                    batch[i - start] = relay.messages[i].encoded(true);
+                }
+                while (batch[end - start - 1].hasRemaining()) {
+                    recipient.write(batch, 0, end - start);
+                }
+            }
+        }
+        for (int i = 0; i < relay.count; i++) {
+            relay.messages[i].release();
+            relay.messages[i] = null;
+        }
+        counter.deliveries += (long) relay.count * recipients.length;
+    }
+
+    /**
+     * Method which connects the recipients over the loopback
+     * interface, with everything they are sent read and discarded
+     * @return channels writing to the recipients
+     * @throws IOException if a connection fails
+     */
+    private static SocketChannel[] connect() throws IOException {
+        SocketChannel[] recipients = new SocketChannel[RECIPIENTS];
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("localhost", 0));
+            for (int i = 0; i < RECIPIENTS; i++) {
+                recipients[i] = SocketChannel.open(listener.getLocalAddress());
+                SocketChannel reader = listener.accept();
+                Thread discard = new Thread(() -> {
+                    ByteBuffer skip = ByteBuffer.allocateDirect(64 * 1024);
+                    try {
+                        while (reader.read(skip) != -1) {
+                            skip.clear();
+                        }
+                    }
+                    catch (IOException ignored) {
+                        //Benchmark over
+                    }
+                }, "discard-" + i);
+                discard.setDaemon(true);
+                discard.start();
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Method which builds the bytes of a long run of binary
+     * chat frames between 8 and 120 characters long
+     * @return the frames as they arrive on the socket
+     */
+    private static byte[] frames() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            text.setLength(0);
+            int length = 8 + (i * 37) % 113;
+            while (text.length() < length) {
+                text.append("message ").append(i).append(' ');
+            }
+            byte[] payload = text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(payload.length + 7);
+            Message.putVarint(frame, payload.length + 2);
+            frame.put(Protocol.CHAT);
+            Message.putVarint(frame, 0);
+            frame.put(payload);
+            out.write(frame.array(), 0, frame.position());
+        }
+        return out.toByteArray();
+    }
+}
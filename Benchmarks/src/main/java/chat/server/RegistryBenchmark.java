@@ -0,0 +1,161 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Benchmark that reconnects clients at a steady rate while
+ * other threads keep broadcasting over every connected client.
+ * Compares the old CopyOnWriteArrayList with ConnectionRegistry.
+ * JMH runs each collection in a JVM of its own, so neither
+ * shares JIT profiles with the other.
+ * One operation is one walk over every connected client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(2)
+public class RegistryBenchmark {
+
+    private static final int CHURN_THREADS = 2;
+
+    /**
+     * Class that stands in for a connection
+     */
+    private static class Client {
+        final int id;
+
+        Client(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Interface over the two collections being compared
+     */
+    private interface Clients {
+        void add(int id, Client client);
+        void remove(int id, Client client);
+        long broadcast();
+    }
+
+    @Param({"cow", "registry"})
+    String collection;
+
+    //Clients connected while the benchmark runs
+    @Param({"10000", "50000"})
+    int clients;
+
+    //Reconnects per second across all churn threads
+    @Param({"5000"})
+    int reconnectsPerSecond;
+
+    private Clients target;
+    private AtomicBoolean running;
+    private Thread[] churn;
+
+    /**
+     * Method which connects the clients and starts the
+     * threads reconnecting them
+     */
+    @Setup
+    public void setup() {
+        target = collection.equals("cow") ? copyOnWrite() : registry();
+        Client[] connections = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            connections[i] = new Client(i);
+            target.add(i, connections[i]);
+        }
+        running = new AtomicBoolean(true);
+        churn = new Thread[CHURN_THREADS];
+        for (int t = 0; t < CHURN_THREADS; t++) {
+            //Each churn thread owns every CHURN_THREADS-th client
+            int first = t;
+            churn[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long interval = reconnectsPerSecond > 0 ? 1_000_000_000L * CHURN_THREADS / reconnectsPerSecond : 0;
+                long next = System.nanoTime();
+                while (running.get()) {
+                    if (interval > 0) {
+                        //Sleep until the next reconnect is due
+                        next += interval;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    int id = first + CHURN_THREADS * random.nextInt(clients / CHURN_THREADS);
+                    target.remove(id, connections[id]);
+                    connections[id] = new Client(id);
+                    target.add(id, connections[id]);
+                }
+            }, "churn-" + t);
+            churn[t].start();
+        }
+    }
+
+    /**
+     * Method which stops the churn threads
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running.set(false);
+        for (Thread thread : churn) {
+            thread.join();
+        }
+    }
+
+    @Benchmark
+    public long broadcast() {
+        return target.broadcast();
+    }
+
+    /**
+     * Method which wraps the old CopyOnWriteArrayList
+     * @return Clients over a new list
+     */
+    private static Clients copyOnWrite() {
+        List<Client> list = new CopyOnWriteArrayList<>();
+        return new Clients() {
+            public void add(int id, Client client) { list.add(client); }
+            public void remove(int id, Client client) { list.remove(client); }
+            public long broadcast() {
+                //Reads every client so the loop cannot be optimised away
+                long sent = 0;
+                for (Client client : list) {
+                    sent += client.id;
+                }
+                return sent;
+            }
+        };
+    }
+
+    /**
+     * Method which wraps a ConnectionRegistry
+     * @return Clients over a new registry
+     */
+    private static Clients registry() {
+        ConnectionRegistry<Client> registry = new ConnectionRegistry<>();
+        return new Clients() {
+            public void add(int id, Client client) { registry.add(id, client); }
+            public void remove(int id, Client client) { registry.remove(id, client); }
+            public long broadcast() {
+                long sent = 0;
+                for (Client client : registry) {
+                    sent += client.id;
+                }
+                return sent;
+            }
+        };
+    }
+}
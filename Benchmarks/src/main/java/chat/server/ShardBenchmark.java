@@ -0,0 +1,85 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of one room's messages being sent to clients spread
+ * over the event loops of the NIO engine, through a server running
+ * in the same JVM on the loopback interface. One sender writes a
+ * burst of messages and every receiver reads all of them. The
+ * score counts messages delivered to receivers, so it shows how
+ * throughput changes with the number of event loops, each serving
+ * its own share of the room.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardBenchmark {
+
+    //Clients in the room besides the sender
+    private static final int RECEIVERS = 256;
+    //Messages written in each operation
+    private static final int BURST = 16;
+
+    //Number of event loops
+    @Param({"1", "2", "4"})
+    int loops;
+
+    private OutputStream out;
+    private BufferedReader[] receivers;
+    private byte[] burst;
+
+    /**
+     * Method which starts the server and connects the room
+     * @throws Exception if the server cannot be reached
+     */
+    @Setup
+    public void setup() throws Exception {
+        int port = Loopback.freePorts(1)[0];
+        Loopback.start(port, "-cse", "nio", "-csl", String.valueOf(loops), "-csm", "off", "-csh", "0");
+        Socket sender = Loopback.connect(port);
+        //The sender's own copy of every message is read and discarded
+        Loopback.discard(sender);
+        receivers = new BufferedReader[RECEIVERS];
+        for (int i = 0; i < RECEIVERS; i++) {
+            Socket receiver = Loopback.connect(port);
+            receivers[i] = new BufferedReader(new InputStreamReader(receiver.getInputStream(), StandardCharsets.UTF_8));
+        }
+        //Let the server register every client before anything is sent
+        Thread.sleep(500);
+
+        StringBuilder text = new StringBuilder();
+        for (int m = 0; m < BURST; m++) {
+            text.append("burst-").append(m).append('\n');
+        }
+        burst = text.toString().getBytes(StandardCharsets.UTF_8);
+        out = sender.getOutputStream();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST * RECEIVERS)
+    public void deliveries() throws IOException {
+        out.write(burst);
+        out.flush();
+        for (BufferedReader in : receivers) {
+            for (int read = 0; read < BURST; ) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Server closed the connection.");
+                }
+                //Skip anything that is not a message of the burst
+                if (line.contains(": burst-")) {
+                    read++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Benchmark of TLS handshakes with a server running in the same
+ * JVM on the loopback interface, using a self-signed key made for
+ * the run by keytool. Each client connects, finishes its handshake,
+ * sends a resume and waits for the server's answer, so the server
+ * has finished its side too. Full handshakes give every client a
+ * context of its own, so nothing can be resumed. Resumed handshakes
+ * share one context, as a client reconnecting does, and each resumes
+ * the session of the client before it. One operation is one client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsBenchmark {
+
+    //Clients connecting one after another in each operation
+    private static final int CLIENTS = 16;
+    private static final String PASSWORD = "benchmark";
+    private static final byte[] RESUME = "/resume lobby 0\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"classic", "nio"})
+    String engine;
+
+    //full or resumed
+    @Param({"full", "resumed"})
+    String sessions;
+
+    private int port;
+    private TrustManager[] trust;
+    private SSLContext shared;
+
+    /**
+     * Method which makes a key and starts the server with it
+     * @throws Exception if the key cannot be made
+     */
+    @Setup
+    public void setup() throws Exception {
+        File keyStore = createKeyStore();
+        System.setProperty("chat.tls", "true");
+        System.setProperty("javax.net.ssl.keyStore", keyStore.getPath());
+        System.setProperty("javax.net.ssl.keyStorePassword", PASSWORD);
+        port = Loopback.freePorts(1)[0];
+        Loopback.start(port, "-cse", engine, "-csl", "1", "-csm", "off", "-csh", "0");
+        Thread.sleep(500);
+        trust = trustManagers(keyStore);
+        shared = clientContext(trust);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLIENTS)
+    public void handshakes() throws Exception {
+        boolean resumed = sessions.equals("resumed");
+        for (int i = 0; i < CLIENTS; i++) {
+            SSLContext context = resumed ? shared : clientContext(trust);
+            try (SSLSocket client = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+                client.setSoLinger(true, 0);
+                client.setTcpNoDelay(true);
+                client.startHandshake();
+                client.getOutputStream().write(RESUME);
+                //Reading the answer also takes in the session ticket sent before it
+                if (client.getInputStream().read() == -1) {
+                    throw new EOFException("Server closed the connection.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Method which makes a keystore holding a self-signed EC key
+     * for localhost, deleted when the JVM exits
+     * @return the keystore file
+     * @throws IOException if keytool fails
+     * @throws InterruptedException if interrupted waiting for keytool
+     */
+    private static File createKeyStore() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("chat-tls").toFile();
+        directory.deleteOnExit();
+        File keyStore = new File(directory, "server.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+                "-storepass", PASSWORD).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool could not make a keystore.");
+        }
+        keyStore.deleteOnExit();
+        return keyStore;
+    }
+
+    /**
+     * Method which makes trust managers trusting only the key
+     * in the benchmark's keystore
+     * @param file the keystore
+     * @return TrustManager[] trust managers
+     * @throws IOException if the keystore cannot be read
+     * @throws GeneralSecurityException if the keystore is invalid
+     */
+    private static TrustManager[] trustManagers(File file) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore);
+        return factory.getTrustManagers();
+    }
+
+    /**
+     * Method which makes a client context with a session cache
+     * of its own
+     * @param trust trust managers of the context
+     * @return SSLContext context
+     * @throws GeneralSecurityException if TLS is not available
+     */
+    private static SSLContext clientContext(TrustManager[] trust) throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust, null);
+        return context;
+    }
+}
@@ -0,0 +1,248 @@
+package chat.client;
+
+import chat.common.Protocol;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Class that reads and writes the binary framing the
+ * server offers next to the newline text protocol.
+ *
+ * Frame layout:
+ * [varint length][type byte][varint sender id][UTF-8 payload]
+ * where length counts every byte after the length itself.
+ * After a resume, room messages have the SEQUENCED bit set in
+ * the type and a varint sequence number after the sender id.
+ * After /compress deflate, large payloads are raw deflated from
+ * a preset dictionary and have the COMPRESSED bit set in the type.
+ */
+public class BinaryProtocol {
+
+    /**
+     * Class that holds one decoded frame
+     */
+    public static class Frame {
+        final byte type;
+        final int sender;
+        //0 if the frame has none
+        final long sequence;
+        final String text;
+
+        /**
+         * Constructor for Frame
+         * @param type frame type
+         * @param sender client number of the sender
+         * @param sequence sequence number of a room message or 0
+         * @param text decoded payload
+         */
+        Frame(byte type, int sender, long sequence, String text) {
+            this.type = type;
+            this.sender = sender;
+            this.sequence = sequence;
+            this.text = text;
+        }
+
+        /**
+         * Method which formats the frame the same way the
+         * text protocol shows it
+         * @return line to be printed
+         */
+        String toLine() {
+            switch (type) {
+                case Protocol.ECHO:
+                    return "You: " + text;
+                case Protocol.NOTICE:
+                    return "Server: " + text;
+                case Protocol.DIRECT:
+                    return "Client " + sender + " (private): " + text;
+                case Protocol.DIRECT_ECHO:
+                    return "You (to Client " + sender + "): " + text;
+                default:
+                    return "Client " + sender + ": " + text;
+            }
+        }
+    }
+
+    /**
+     * Method which writes a chat frame. Clients always
+     * send sender id 0 as the server fills in the real one.
+     * @param out stream to write to
+     * @param text message to be sent
+     * @throws IOException if the stream fails
+     */
+    static void writeChat(OutputStream out, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        //Type byte plus a one byte sender id
+        writeVarint(out, 2 + payload.length);
+        out.write(Protocol.CHAT);
+        writeVarint(out, 0);
+        out.write(payload);
+    }
+
+    /**
+     * Method which reads the frame that follows in the stream
+     * @param in stream to read from
+     * @return the frame, or null at end of stream
+     * @throws IOException if the frame is malformed or the stream fails
+     */
+    static Frame readFrame(InputStream in) throws IOException {
+        return readFrame(in, null);
+    }
+
+    /**
+     * Method which reads the frame that follows in the stream,
+     * which may be compressed if compression was asked for
+     * @param in stream to read from
+     * @param inflater inflater of the connection, or null if
+     *                 compression was not asked for
+     * @return the frame, or null at end of stream
+     * @throws IOException if the frame is malformed or the stream fails
+     */
+    static Frame readFrame(InputStream in, Inflater inflater) throws IOException {
+        int length = readVarint(in);
+        if (length == -1) {
+            return null;
+        }
+        if (length < 2 || length > Protocol.MAX_FRAME) {
+            throw new ProtocolException("Invalid frame length " + length + ".");
+        }
+        byte[] body = new byte[length];
+        new DataInputStream(in).readFully(body);
+        ByteArrayInputStream frame = new ByteArrayInputStream(body);
+        byte type = (byte) frame.read();
+        int sender = readVarint(frame);
+        if (sender < 0) {
+            throw new ProtocolException("Malformed sender id.");
+        }
+        long sequence = 0;
+        if ((type & Protocol.SEQUENCED) != 0) {
+            type &= ~Protocol.SEQUENCED;
+            sequence = readVarlong(frame);
+        }
+        int offset = length - frame.available();
+        if ((type & Protocol.COMPRESSED) != 0) {
+            if (inflater == null) {
+                throw new ProtocolException("Compressed frame not asked for.");
+            }
+            type &= ~Protocol.COMPRESSED;
+            body = inflate(inflater, body, offset, length - offset);
+            offset = 0;
+            length = body.length;
+        }
+        String text = new String(body, offset, length - offset, StandardCharsets.UTF_8);
+        return new Frame(type, sender, sequence, text);
+    }
+
+    /**
+     * Method which creates the inflater of a connection
+     * which asks for compression
+     * @return Inflater for raw deflate
+     */
+    static Inflater newInflater() {
+        return new Inflater(true);
+    }
+
+    /**
+     * Method which inflates a compressed payload. Each payload
+     * starts from the preset dictionary, with nothing kept from
+     * the one before.
+     * @param inflater inflater of the connection
+     * @param body bytes of the frame
+     * @param offset start of the payload
+     * @param length bytes of the payload
+     * @return the payload inflated
+     * @throws ProtocolException if the payload is malformed or
+     *                           inflates to more than a frame
+     */
+    private static byte[] inflate(Inflater inflater, byte[] body, int offset, int length) throws ProtocolException {
+        inflater.reset();
+        inflater.setDictionary(Protocol.DICTIONARY);
+        inflater.setInput(body, offset, length);
+        byte[] out = new byte[Math.min(Protocol.MAX_FRAME, Math.max(64, length * 4))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    if (out.length == Protocol.MAX_FRAME) {
+                        throw new ProtocolException("Compressed payload too large.");
+                    }
+                    out = Arrays.copyOf(out, Math.min(Protocol.MAX_FRAME, out.length * 2));
+                }
+                int inflated = inflater.inflate(out, size, out.length - size);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new ProtocolException("Compressed payload cut short.");
+                }
+                size += inflated;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new ProtocolException("Malformed compressed payload.");
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    /**
+     * Method which writes an unsigned varint, seven bits per byte
+     * with the high bit set on every byte but the last
+     * @param out stream to write to
+     * @param value non-negative value
+     * @throws IOException if the stream fails
+     */
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Method which reads an unsigned varint
+     * @param in stream to read from
+     * @return the value, or -1 at end of stream
+     * @throws IOException if the varint is malformed or the stream fails
+     */
+    static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint.");
+    }
+
+    /**
+     * Method which reads an unsigned varint of up to 64 bits
+     * @param in stream to read from
+     * @return the value
+     * @throws IOException if the varint is malformed or the stream ends
+     */
+    static long readVarlong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint.");
+    }
+}
@@ -0,0 +1,511 @@
+package chat.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.*;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Class that connects to a server given an address
+ * and a port - client side of the chat system.
+ * If the connection is lost the client reconnects with
+ * exponential backoff and full jitter, so clients dropped
+ * together by a server restart come back spread out, and
+ * resumes from the last sequence number it saw. Over TLS the
+ * reconnect also resumes the TLS session, so a crowd of clients
+ * coming back costs the server little more than plain text.
+ */
+public class ChatClient {
+
+    //First reconnect attempt is made within this many milliseconds
+    private static final long RECONNECT_BASE_MILLIS = 500;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private volatile Socket s;
+    private String address;
+    private int port;
+    private boolean gui;
+    private ClientGUI clientGUI;
+    //Messages entered by the user waiting for the writer
+    private BlockingDeque<String> outbox;
+    //Set while a lost connection is being replaced
+    private boolean reconnecting;
+    //Highest sequence number seen and the room it was seen in
+    private volatile long lastSequence;
+    private volatile String room;
+    //Last resume sent, so the listener can spot a server without resume
+    private volatile String resumeCommand;
+    //Runs the listener and writer
+    private Executor executor;
+    //Writer of the current connection, stopped before the next starts
+    private ClientWriter writer;
+    private ClientConfig config;
+    //Null unless connecting over TLS, kept for every connection of the run
+    private SSLSocketFactory tls;
+    //Binary framing asked for by the user and accepted by the server
+    private boolean wantsBinary;
+    private volatile boolean binary;
+    private CountDownLatch negotiated;
+    /*
+    Lock used instead of synchronized methods so that
+    virtual threads blocking inside do not pin their carrier
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructor for ChatClient
+     * @param port port of socket
+     * @param address address of socket
+     * @param gui true or false depending on the users input
+     * @param config options read from the command line
+     */
+    public ChatClient(int port, String address, boolean gui, ClientConfig config) {
+        this.gui = gui;
+        this.config = config;
+        this.executor = newExecutor(config.isVirtual());
+        this.wantsBinary = config.isBinary();
+        this.negotiated = new CountDownLatch(1);
+        this.outbox = new LinkedBlockingDeque<>();
+        this.room = "lobby";
+        try {
+            this.tls = config.newTlsFactory();
+        }
+        catch (Exception e) {
+            System.out.println("Unable to set up TLS: " + e.getMessage() + ".");
+            System.exit(0);
+        }
+        if (gui) {
+            //Object of ClientGUI class created
+            clientGUI = new ClientGUI(port,address,this);
+        }
+        else {
+            startClient(port,address);
+        }
+    }
+
+    /**
+     * Method which attempts to connect to the server using
+     * a socket
+     * @param port server port
+     * @param address server address
+     */
+    public void startClient(int port, String address) {
+        this.port = port;
+        this.address = address;
+        try {
+            s = connect(address, port, tls);
+            print("Connection successful. Address: "+address+". Port: "+port);
+        }
+        catch (Exception e) {
+            //Exit program if unable to connect to socket
+            System.out.println("Unable to establish connection to server.");
+            System.exit(0);
+        }
+        if (gui) {
+            go();
+        }
+    }
+
+    /**
+     * Method which connects to the server, over TLS if a factory
+     * is given, in which case the server's certificate must be for
+     * the address connected to. The handshake is finished before
+     * returning so that a failure is reported as a failed connect.
+     * @param address server address
+     * @param port server port
+     * @param tls factory of TLS connections, or null for plain text
+     * @return connected socket
+     * @throws IOException if the connection or handshake fails
+     */
+    static Socket connect(String address, int port, SSLSocketFactory tls) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MILLIS);
+        if (tls == null) {
+            return socket;
+        }
+        try {
+            //Records of the handshake go out in writes Nagle's algorithm would hold back
+            socket.setTcpNoDelay(true);
+            SSLSocket secure = (SSLSocket) tls.createSocket(socket, address, port, true);
+            SSLParameters parameters = secure.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            secure.setSSLParameters(parameters);
+            secure.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            secure.startHandshake();
+            secure.setSoTimeout(0);
+            return secure;
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Method which starts the listener and writer classes
+     * in separate threads. The writer of a lost connection is
+     * stopped first, so only one writer takes from the outbox.
+     */
+    private void go() {
+        if (writer != null) {
+            writer.stop();
+        }
+        writer = new ClientWriter(s, this);
+        executor.execute(new ClientListener(s, this));
+        executor.execute(writer);
+    }
+
+    /**
+     * Method which reads the user's input from the terminal
+     * and queues it for the writer, so nothing typed is lost
+     * while reconnecting. Runs until the user quits.
+     */
+    private void readConsole() {
+        BufferedReader userIn = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String input;
+            while ((input = userIn.readLine()) != null) {
+                //Close if user enters "QUIT"
+                if (input.equals("QUIT")) {
+                    quit();
+                }
+                outbox.add(input);
+            }
+        }
+        catch (IOException ignored) {
+            //Treated as the end of input
+        }
+        //If input = null, close the program
+        quit();
+    }
+
+    /**
+     * Method which creates the executor that runs the listener
+     * and writer. Virtual threads are looked up at runtime so the
+     * client still runs on releases without them.
+     * @param virtual true if virtual threads should be used
+     * @return executor starting one thread per task
+     */
+    static Executor newExecutor(boolean virtual) {
+        if (virtual) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21 or later.\n" +
+                        "Platform threads will be used.");
+            }
+        }
+        return task -> new Thread(task).start();
+    }
+
+    /**
+     * Get method for the client options
+     * @return ClientConfig config
+     */
+    public ClientConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Method which checks if the user asked for binary framing
+     * @return boolean wantsBinary
+     */
+    public boolean wantsBinary() {
+        return wantsBinary;
+    }
+
+    /**
+     * Method which checks if binary framing is in use
+     * @return boolean binary
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Method which is called by the listener when the
+     * server accepts binary framing
+     */
+    public void setBinary() {
+        binary = true;
+        negotiated.countDown();
+    }
+
+    /**
+     * Method which waits for the server to accept binary
+     * framing. Servers which do not answer are spoken to
+     * in the text protocol.
+     * @return true if binary framing was accepted
+     */
+    public boolean awaitBinary() {
+        try {
+            negotiated.await(2, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return binary;
+    }
+
+    /**
+     * Method that is called when the user
+     * enters a message on the GUI. Messages are queued
+     * so none are lost however fast they are entered.
+     * @param input the input from the user
+     */
+    public void guiMessage(String input) {
+        outbox.add(input);
+    }
+
+    /**
+     * Get method for the queue of messages entered
+     * by the user, drained by the writer
+     * @return BlockingDeque outbox
+     */
+    public BlockingDeque<String> getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Method which outputs a message to the user depending
+     * on whether they are using the GUI or not
+     * @param message message to be printed
+     */
+    public void print(String message) {
+        lock.lock();
+        try {
+            if (gui) {
+                //Calls print method in GUI class
+                clientGUI.print(message);
+            }
+            else {
+                System.out.println(message);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method which is called by the listener for every
+     * message after the resume. Keeps track of the last
+     * sequence number seen and of the room the client is in,
+     * which the server confirms with a ROOM notice.
+     * @param sequence sequence number of a room message or 0
+     * @param line message as shown to the user
+     */
+    public void received(long sequence, String line) {
+        if (sequence > lastSequence) {
+            lastSequence = sequence;
+        }
+        if (line.startsWith("Server: ROOM ")) {
+            //Not shown, the room is already announced by JOINED
+            room = line.substring(13);
+            return;
+        }
+        print(line);
+    }
+
+    /**
+     * Method which builds the command asking the server for
+     * the messages this client has not seen
+     * @return String resume command
+     */
+    public String resumeCommand() {
+        resumeCommand = "/resume " + room + " " + lastSequence;
+        return resumeCommand;
+    }
+
+    /**
+     * Get method for the last resume command sent
+     * @return String resumeCommand
+     */
+    public String getResumeCommand() {
+        return resumeCommand;
+    }
+
+    /**
+     * Method which is called by the listener or writer when
+     * the connection fails. Only the first report for the
+     * current connection is acted on. The client reconnects,
+     * or quits if reconnecting was turned off.
+     * @param failed socket of the connection which failed
+     */
+    public void serverDisconnect(Socket failed) {
+        lock.lock();
+        try {
+            if (failed != s || reconnecting) {
+                return;
+            }
+            reconnecting = true;
+            //Output error message
+            System.out.println("\nSERVER DISCONNECTED");
+            if (gui) {
+                clientGUI.print("SERVER DISCONNECTED");
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        try {
+            failed.close();
+        }
+        catch (IOException ignored) {
+            //Already broken
+        }
+        if (config.getReconnectSeconds() == 0) {
+            quit();
+        }
+        reconnect();
+    }
+
+    /**
+     * Method which tries to connect again until it succeeds.
+     * Each wait is random between zero and a limit which
+     * doubles after every failed attempt, up to the configured
+     * maximum, so a crowd of clients spreads its attempts out.
+     */
+    private void reconnect() {
+        long maxMillis = TimeUnit.SECONDS.toMillis(config.getReconnectSeconds());
+        for (int attempt = 0; ; attempt++) {
+            long limit = Math.min(maxMillis, RECONNECT_BASE_MILLIS << Math.min(attempt, 20));
+            long wait = ThreadLocalRandom.current().nextLong(limit + 1);
+            print("Reconnecting in " + wait + " ms.");
+            try {
+                Thread.sleep(wait);
+                Socket socket = connect(address, port, tls);
+                lock.lock();
+                try {
+                    s = socket;
+                    binary = false;
+                    negotiated = new CountDownLatch(1);
+                    reconnecting = false;
+                }
+                finally {
+                    lock.unlock();
+                }
+                print("Reconnected. Address: " + address + ". Port: " + port);
+                go();
+                return;
+            }
+            catch (IOException e) {
+                //Try again after a longer wait
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                quit();
+            }
+        }
+    }
+
+    /**
+     * Method which quits the program cleanly
+     */
+    public void quit() {
+        //Never released as the program exits below
+        lock.lock();
+        System.out.println("CLOSED");
+        //Close the socket
+        try {
+            s.close();
+        }
+        catch (Exception ignored) {
+            /*
+            Exception ignored as program will be
+            closed regardless
+             */
+        }
+        //Exit the program
+        System.exit(0);
+    }
+
+    public static void main(String[] args) {
+        //Default port number and address
+        int port = 14001;
+        String address = "localhost";
+
+        //Checks for port number and/or address in the argument
+        int x = -1;
+        //Boolean variables for port and address
+        boolean ccp = false;
+        boolean cca = false;
+        //Thread mode, framing and other options
+        ClientConfig config = ClientConfig.fromArgs(args);
+        for (String in : args) {
+            //Index of args
+            x++;
+            if (in.equals("-ccp") && !ccp) {
+                try {
+                    port = Integer.parseInt(args[x + 1]);
+                    /*
+                    Boolean set to true so command is not looked
+                    for again
+                     */
+                    ccp = true;
+                }
+                catch (NumberFormatException e) {
+                    System.out.println("Invalid input.\n" +
+                            "Default port will be used.");
+                }
+                catch (ArrayIndexOutOfBoundsException f) {
+                    System.out.println("No port number detected.\n" +
+                            "Default port will be used.");
+                }
+            }
+            else if (in.equals("-cca") && !cca) {
+                try {
+                    address = args[x + 1];
+                    cca = true;
+                }
+                catch (ArrayIndexOutOfBoundsException g) {
+                    System.out.println("No address detected.\n" +
+                            "Default address will be used.");
+                }
+            }
+        }
+
+        //Headless load generator, no prompt and no GUI
+        if (config.getLoadClients() > 0) {
+            new LoadGenerator(address, port, config).run();
+            return;
+        }
+
+        //Scanner to check if user wants to load a GUI
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Do you want to load a GUI? \nEnter Y for Yes.");
+        try {
+            if (scanner.nextLine().equalsIgnoreCase("Y")) {
+                System.out.println("You have chosen GUI program.");
+                //Load constructor with gui variable set to true
+                new ChatClient(port, address, true, config);
+            }
+            else {
+                System.out.println("You have chosen command line program.");
+                //Starts the go method directly with gui variable = false
+                ChatClient chatClient = new ChatClient(port, address, false, config);
+                chatClient.go();
+                chatClient.readConsole();
+            }
+        }
+        //If input = null
+        catch (NoSuchElementException e) {
+            System.out.println("Input cannot be null.\nClosing program.");
+            System.exit(0);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,196 @@
+package chat.client;
+
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Class that holds the start-up options of the client
+ * which are read from the command line arguments.
+ * The port and address are read by ChatClient itself.
+ *
+ * -cct platform|virtual  threads of the listener and writer
+ * -ccb                ask the server for binary framing
+ * -ccz                also ask the server to compress large messages,
+ *                     needs -ccb
+ * -ccs n              lines kept in the GUI output area
+ * -ccl n              run headless as a load generator with n clients
+ * -ccr n              messages per second sent across all load clients
+ * -ccd n              seconds the load generator runs for
+ * -ccw n              most seconds between reconnect attempts, 0 to exit instead
+ * -cce                connect over TLS, trusting the certificates in the
+ *                     keystore named by javax.net.ssl.trustStore, or
+ *                     the JDK's own if it is not set
+ */
+public class ClientConfig {
+
+    private boolean virtual;
+    private boolean binary;
+    private boolean compressed;
+    private int scrollback;
+    //Load generator, 0 clients for the normal client
+    private int loadClients;
+    private int loadRate;
+    private int loadSeconds;
+    //Longest wait between reconnect attempts, 0 to exit on disconnect
+    private int reconnectSeconds;
+    private boolean tls;
+
+    /**
+     * Constructor for ClientConfig which sets
+     * the default options
+     */
+    public ClientConfig() {
+        this.virtual = false;
+        this.binary = false;
+        this.compressed = false;
+        this.scrollback = 5000;
+        this.loadClients = 0;
+        this.loadRate = 1000;
+        this.loadSeconds = 10;
+        this.reconnectSeconds = 30;
+        this.tls = false;
+    }
+
+    /**
+     * Method which reads the client options from the
+     * command line arguments. Invalid values are reported
+     * and the default is kept.
+     * @param args command line arguments
+     * @return the client options
+     */
+    public static ClientConfig fromArgs(String[] args) {
+        ClientConfig config = new ClientConfig();
+        for (int x = 0; x < args.length; x++) {
+            if (args[x].equals("-ccb")) {
+                config.binary = true;
+            }
+            else if (args[x].equals("-ccz")) {
+                config.compressed = true;
+            }
+            else if (args[x].equals("-cce")) {
+                config.tls = true;
+            }
+            else if (args[x].equals("-cct")) {
+                config.virtual = x + 1 < args.length && args[x + 1].equalsIgnoreCase("virtual");
+            }
+            else if (args[x].equals("-ccs")) {
+                config.scrollback = intValue(args, x, config.scrollback);
+            }
+            else if (args[x].equals("-ccl")) {
+                config.loadClients = intValue(args, x, config.loadClients);
+            }
+            else if (args[x].equals("-ccr")) {
+                config.loadRate = intValue(args, x, config.loadRate);
+            }
+            else if (args[x].equals("-ccd")) {
+                config.loadSeconds = intValue(args, x, config.loadSeconds);
+            }
+            else if (args[x].equals("-ccw")) {
+                //Zero is allowed and turns reconnecting off
+                boolean zero = x + 1 < args.length && args[x + 1].equals("0");
+                config.reconnectSeconds = zero ? 0 : intValue(args, x, config.reconnectSeconds);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Method which reads the positive integer after a flag
+     * @param args command line arguments
+     * @param x index of the flag
+     * @param def default value
+     * @return value of the flag or the default value
+     */
+    static int intValue(String[] args, int x, int def) {
+        try {
+            int parsed = Integer.parseInt(args[x + 1]);
+            if (parsed > 0) {
+                return parsed;
+            }
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+            //Falls through to the error message
+        }
+        System.out.println("Invalid value for " + args[x] + ".\n" +
+                "Default value will be used.");
+        return def;
+    }
+
+    /**
+     * Get method for the thread mode
+     * @return true if virtual threads are used
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Get method for binary framing
+     * @return true if binary framing should be asked for
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Get method for compression
+     * @return true if large messages should be asked for compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Get method for the number of lines kept in the GUI
+     * @return int scrollback
+     */
+    public int getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Get method for the number of load generator clients
+     * @return int loadClients, 0 if not generating load
+     */
+    public int getLoadClients() {
+        return loadClients;
+    }
+
+    /**
+     * Get method for the messages per second sent
+     * across all load generator clients
+     * @return int loadRate
+     */
+    public int getLoadRate() {
+        return loadRate;
+    }
+
+    /**
+     * Get method for how long the load generator runs
+     * @return int seconds
+     */
+    public int getLoadSeconds() {
+        return loadSeconds;
+    }
+
+    /**
+     * Method which creates the factory of TLS connections, if TLS
+     * was asked for. The factory keeps every session it makes, so
+     * connecting to the same server again resumes one instead of
+     * running a full handshake.
+     * @return SSLSocketFactory tls, or null to connect in plain text
+     * @throws NoSuchAlgorithmException if the trust store cannot be read
+     */
+    public SSLSocketFactory newTlsFactory() throws NoSuchAlgorithmException {
+        return tls ? SSLContext.getDefault().getSocketFactory() : null;
+    }
+
+    /**
+     * Get method for the longest wait between reconnect attempts
+     * @return int seconds, 0 if the client exits on disconnect
+     */
+    public int getReconnectSeconds() {
+        return reconnectSeconds;
+    }
+}
@@ -1,3 +1,7 @@
+package chat.client;
+
+import chat.common.TextRenderer;
+
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
 import java.awt.*;
@@ -14,6 +18,8 @@ public class ClientGUI extends JFrame {
     String address;
     private ChatClient chatClient;
     private JTextArea jTextArea;
+    //Batches output onto the event dispatch thread
+    private TextRenderer renderer;
     private JTextField inputText;
 
     /**
@@ -26,6 +32,7 @@ public class ClientGUI extends JFrame {
         this.port = port;
         this.address = address;
         this.chatClient = chatClient;
+        this.renderer = new TextRenderer(chatClient.getConfig().getScrollback(), 33);
 
         /*
         Method reference to run the createWindow method in the event
@@ -34,12 +41,22 @@ public class ClientGUI extends JFrame {
         SwingUtilities.invokeLater(this::createWindow);
     }
 
+    /**
+     * Get method for the renderer, which reports the
+     * backlog and frame times of the output area
+     * @return TextRenderer renderer
+     */
+    public TextRenderer getRenderer() {
+        return renderer;
+    }
+
     /**
      * Method which outputs a sting to the JTextArea
      * @param message message to be printed
      */
     public void print(String message) {
-        jTextArea.append(message + "\n");
+        //Safe from any thread, shown on the next frame
+        renderer.append(message);
     }
 
     /**
@@ -158,6 +175,8 @@ public class ClientGUI extends JFrame {
         jTextArea.setLineWrap(true);
         jTextArea.setWrapStyleWord(true);
 
+        renderer.attach(jTextArea);
+
         JScrollPane jScrollPane = new JScrollPane(jTextArea);
         jScrollPane.setPreferredSize(new Dimension(700,315));
 
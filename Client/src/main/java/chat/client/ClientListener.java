@@ -0,0 +1,159 @@
+package chat.client;
+
+import chat.common.Protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+/**
+ * Class that handles clients listening for
+ * messages from the server and outputting them
+ * to the terminal in a thread by implementing
+ * the Runnable interface.
+ */
+public class ClientListener implements Runnable {
+
+    private Socket s;
+    private ChatClient chatClient;
+    //Set once the server has answered the resume
+    private boolean resumed;
+
+    /**
+     * Constructor for ClientListener
+     * @param s the client socket
+     * @param chatClient the main client class
+     */
+    public ClientListener(Socket s, ChatClient chatClient) {
+        this.s = s;
+        this.chatClient = chatClient;
+    }
+
+    /**
+     * Override of the run method in the
+     * Runnable interface
+     */
+    @Override
+    public void run() {
+        //Only needed if compression is asked for
+        Inflater inflater = chatClient.getConfig().isCompressed() ? BinaryProtocol.newInflater() : null;
+        try {
+            //Get message from server
+            InputStream serverIn = new BufferedInputStream(s.getInputStream());
+            while (true) {
+                if (chatClient.isBinary()) {
+                    BinaryProtocol.Frame frame = BinaryProtocol.readFrame(serverIn, inflater);
+                    if (frame == null) {
+                        break;
+                    }
+                    received(frame.sequence, frame.toLine());
+                    continue;
+                }
+                int first = serverIn.read();
+                if (first == -1) {
+                    break;
+                }
+                //Server accepted binary framing, frames follow the hello
+                if (first == Protocol.HELLO && chatClient.wantsBinary()) {
+                    readHello(serverIn);
+                    chatClient.setBinary();
+                    continue;
+                }
+                receivedLine(readLine(serverIn, first));
+            }
+            //If end of stream, disconnect from server
+            chatClient.serverDisconnect(s);
+        }
+        catch (IOException e) {
+            //Exception thrown when server disconnects
+            chatClient.serverDisconnect(s);
+        }
+        finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Method which takes the sequence number off
+     * a text line sent after a resume
+     * @param line line received
+     */
+    private void receivedLine(String line) {
+        int space = line.indexOf(' ');
+        if (line.startsWith("#") && space > 1) {
+            try {
+                received(Long.parseLong(line.substring(1, space)), line.substring(space + 1));
+                return;
+            }
+            catch (NumberFormatException e) {
+                //Not a sequence number, shown as it is
+            }
+        }
+        received(0, line);
+    }
+
+    /**
+     * Method which handles one message from the server. The server
+     * sends room messages only once the client has resumed, so
+     * anything before, such as a direct message, is new and shown.
+     * The answer to the resume itself is not shown.
+     * @param sequence sequence number of a room message or 0
+     * @param line message as shown to the user
+     */
+    private void received(long sequence, String line) {
+        if (!resumed) {
+            if (line.equals("Server: RESUMED")) {
+                resumed = true;
+                return;
+            }
+            if (line.equals("You: " + chatClient.getResumeCommand())) {
+                //Server without resume, which sent the command as a message
+                resumed = true;
+                chatClient.print("Server cannot resume. Messages may be missed or repeated.");
+                return;
+            }
+        }
+        chatClient.received(sequence, line);
+    }
+
+    /**
+     * Method which checks the rest of the hello sent
+     * back by the server. Also used by the load generator.
+     * @param in stream to read from
+     * @throws IOException if the hello is wrong
+     */
+    static void readHello(InputStream in) throws IOException {
+        for (int i = 1; i < Protocol.HELLO_BYTES.length; i++) {
+            if (in.read() != Protocol.HELLO_BYTES[i]) {
+                throw new ProtocolException("Unknown protocol.");
+            }
+        }
+    }
+
+    /**
+     * Method which reads the rest of a text line in the
+     * same way as BufferedReader.readLine. Also used by
+     * the load generator.
+     * @param in stream to read from
+     * @param first first byte of the line, already read
+     * @return the line without its terminator
+     * @throws IOException if the stream fails
+     */
+    static String readLine(InputStream in, int first) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = first;
+        while (b != -1 && b != '\n') {
+            line.write(b);
+            b = in.read();
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
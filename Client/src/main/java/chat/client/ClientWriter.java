@@ -0,0 +1,162 @@
+package chat.client;
+
+import chat.common.Protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Class that handles sending messages to
+ * the server in a thread by implementing
+ * the Runnable interface.
+ */
+public class ClientWriter implements Runnable {
+
+    private Socket s;
+    private ChatClient chatClient;
+    OutputStream serverOut;
+    //True once the server has accepted binary framing
+    private boolean binary;
+    //Thread running this writer, interrupted to stop it
+    private volatile Thread thread;
+    private volatile boolean stopped;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Constructor for the ClientWriter thread
+     * @param s the client socket
+     * @param chatClient the main client class
+     */
+    public ClientWriter(Socket s, ChatClient chatClient) {
+        this.s = s;
+        this.chatClient = chatClient;
+    }
+
+    /**
+     * Override of the run method in the
+     * Runnable interface
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        if (stopped) {
+            done.countDown();
+            return;
+        }
+        try {
+            /*
+            Buffered stream from the socket's output stream. Flushes
+            are explicit so that lines typed or pasted together
+            leave in one write.
+             */
+            serverOut = new BufferedOutputStream(s.getOutputStream());
+            if (chatClient.wantsBinary()) {
+                //Ask for binary framing and wait for the answer
+                serverOut.write(Protocol.HELLO_BYTES);
+                serverOut.flush();
+                binary = chatClient.awaitBinary();
+                if (!binary) {
+                    chatClient.print("Server does not support binary framing. Using text.");
+                }
+                else if (chatClient.getConfig().isCompressed()) {
+                    //Asked before the resume, so the replay can be compressed
+                    send("/compress deflate");
+                }
+            }
+            //Ask for what was missed before sending anything new
+            send(chatClient.resumeCommand());
+            serverOut.flush();
+            sendOutbox();
+        }
+        catch (IOException e) {
+            //Disconnect client if exception thrown
+            chatClient.serverDisconnect(s);
+        }
+        finally {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Method which stops the writer and waits until it has put
+     * back what it took from the outbox, so the writer of the
+     * next connection sends everything in order. Returns at once
+     * if called by the writer itself, which has already stopped
+     * sending by the time it reports the connection lost.
+     */
+    public void stop() {
+        stopped = true;
+        Thread running = thread;
+        if (running == Thread.currentThread()) {
+            return;
+        }
+        if (running != null) {
+            running.interrupt();
+        }
+        try {
+            done.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method which waits on the queue of messages entered by
+     * the user, then sends everything queued so far with a
+     * single flush. Messages this writer could not send are
+     * put back for the writer of the next connection.
+     * @throws IOException if the socket fails
+     */
+    private void sendOutbox() throws IOException {
+        BlockingDeque<String> outbox = chatClient.getOutbox();
+        List<String> batch = new ArrayList<>();
+        try {
+            while (!stopped) {
+                batch.add(outbox.take());
+                String message;
+                while ((message = outbox.poll()) != null) {
+                    batch.add(message);
+                }
+                if (s.isClosed()) {
+                    //Connection already replaced, leave the batch to the new writer
+                    throw new SocketException("Socket closed.");
+                }
+                for (String queued : batch) {
+                    send(queued);
+                }
+                serverOut.flush();
+                batch.clear();
+            }
+        }
+        catch (InterruptedException e) {
+            //Writer stopped, nothing more will be sent
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                outbox.offerFirst(batch.get(i));
+            }
+        }
+    }
+
+    /**
+     * Method which writes a message in the protocol
+     * agreed with the server
+     * @param message message to be sent
+     * @throws IOException if the socket fails
+     */
+    private void send(String message) throws IOException {
+        if (binary) {
+            BinaryProtocol.writeChat(serverOut, message);
+        }
+        else {
+            serverOut.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+package chat.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class that records latencies in the same log-linear layout as
+ * HdrHistogram: values below 128 get a slot each, and every
+ * doubling above that is split into 64 slots, so any value is
+ * kept to within 1.6% using a fixed 18 KB of counters. Recording
+ * never allocates and is safe from any number of threads.
+ */
+public class LatencyHistogram {
+
+    //Slots in the first bucket, which holds values 0 to 127 exactly
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    //Values are clamped to 2^41 nanoseconds, about 36 minutes
+    private static final long HIGHEST_VALUE = (1L << 41) - 1;
+
+    private final AtomicLongArray counts;
+    private final LongAdder total;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    /**
+     * Constructor for LatencyHistogram
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(indexOf(HIGHEST_VALUE) + 1);
+        this.total = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Method which records one value
+     * @param value latency in nanoseconds, negative values count as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, HIGHEST_VALUE));
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //Retry until the largest value is stored
+        }
+    }
+
+    /**
+     * Method which finds the slot holding a value
+     * @param value non-negative value
+     * @return index of its slot
+     */
+    private static int indexOf(long value) {
+        //Doubling the value is in, 0 for values below SUB_BUCKET_COUNT
+        int bucket = 64 - Long.numberOfLeadingZeros(value | (SUB_BUCKET_COUNT - 1)) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> bucket);
+        return bucket * HALF_COUNT + sub;
+    }
+
+    /**
+     * Method which returns the highest value stored in a slot
+     * @param index index of the slot
+     * @return largest value that maps to the slot
+     */
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucket = index / HALF_COUNT - 1;
+        long sub = index - (long) bucket * HALF_COUNT;
+        return ((sub + 1) << bucket) - 1;
+    }
+
+    /**
+     * Method which returns the value below which the given
+     * percentage of recorded values fall
+     * @param percentile between 0 and 100
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Get method for the number of values recorded
+     * @return long count
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Get method for the mean of the values recorded
+     * @return double mean, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Get method for the largest value recorded
+     * @return long max
+     */
+    public long getMax() {
+        return max.get();
+    }
+}
@@ -0,0 +1,374 @@
+package chat.client;
+
+import chat.common.Protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Inflater;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Class that simulates many clients from one JVM without a GUI or
+ * terminal. Every connection sends at its share of a fixed rate and
+ * listens like ClientListener does. Each payload carries the time
+ * it was due to be sent, so every copy delivered gives one latency.
+ * Measuring from the due time rather than the actual send time
+ * keeps a stalled sender from hiding the delay it causes.
+ * Failed connections and disconnects are counted and reported
+ * and never stop the run. Over TLS every connection after the
+ * first resumes the session of an earlier one. With -ccz every
+ * binary connection asks for large messages to be compressed.
+ */
+public class LoadGenerator {
+
+    //Marks payloads sent by this run, so messages replayed
+    //from the server's history by earlier runs are not timed
+    private final String prefix;
+
+    private final String address;
+    private final int port;
+    private final ClientConfig config;
+    private final Executor executor;
+    //Null unless connecting over TLS
+    private SSLSocketFactory tls;
+    private final List<Connection> connections;
+    private final LatencyHistogram latencies;
+    private final LongAdder sent;
+    private final LongAdder received;
+    private final AtomicInteger disconnects;
+    //Reason for each failed connect or disconnect and how often it happened
+    private final Map<String, Integer> failures;
+    private volatile boolean stopping;
+
+    /**
+     * Class that holds one simulated client
+     */
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final CountDownLatch negotiated;
+        private volatile boolean binary;
+        private volatile boolean closed;
+
+        /**
+         * Constructor for Connection
+         * @param socket connected socket
+         * @throws IOException if the socket fails
+         */
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.negotiated = new CountDownLatch(1);
+        }
+
+        /**
+         * Override of the run method in the Runnable interface.
+         * Reads every message from the server and records the
+         * latency of those sent by the load generator.
+         */
+        @Override
+        public void run() {
+            Inflater inflater = config.isCompressed() ? BinaryProtocol.newInflater() : null;
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                while (true) {
+                    String text;
+                    if (binary) {
+                        BinaryProtocol.Frame frame = BinaryProtocol.readFrame(in, inflater);
+                        if (frame == null) {
+                            break;
+                        }
+                        text = frame.text;
+                    }
+                    else {
+                        int first = in.read();
+                        if (first == -1) {
+                            break;
+                        }
+                        if (first == Protocol.HELLO && config.isBinary()) {
+                            ClientListener.readHello(in);
+                            binary = true;
+                            negotiated.countDown();
+                            continue;
+                        }
+                        text = ClientListener.readLine(in, first);
+                    }
+                    record(text);
+                }
+                disconnected("Closed by server");
+            }
+            catch (IOException e) {
+                disconnected(e.getMessage());
+            }
+            finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+        }
+
+        /**
+         * Method which records the latency of a payload
+         * sent by the load generator
+         * @param text message as shown to the user
+         */
+        private void record(String text) {
+            int start = text.indexOf(prefix);
+            if (start == -1) {
+                return;
+            }
+            try {
+                long due = Long.parseLong(text.substring(start + prefix.length()));
+                latencies.record(System.nanoTime() - due);
+                received.increment();
+            }
+            catch (NumberFormatException ignored) {
+                //Someone else's message
+            }
+        }
+
+        /**
+         * Method which writes one timestamped payload
+         * @param due time the message was due to be sent
+         */
+        void send(long due) {
+            if (write(prefix + due)) {
+                sent.increment();
+            }
+        }
+
+        /**
+         * Method which writes one message in the protocol
+         * agreed with the server
+         * @param payload message to be sent
+         * @return true if it was written
+         */
+        boolean write(String payload) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (binary) {
+                    BinaryProtocol.writeChat(out, payload);
+                }
+                else {
+                    out.write((payload + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+                return true;
+            }
+            catch (IOException e) {
+                disconnected(e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Method which counts a lost connection once
+         * @param reason why it was lost
+         */
+        private void disconnected(String reason) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            close();
+            if (!stopping) {
+                disconnects.incrementAndGet();
+                failures.merge("Disconnected: " + reason, 1, Integer::sum);
+            }
+        }
+
+        /**
+         * Method which closes the socket
+         */
+        void close() {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+                //Already closed
+            }
+        }
+    }
+
+    /**
+     * Constructor for LoadGenerator
+     * @param address address of the server
+     * @param port port of the server
+     * @param config options read from the command line
+     */
+    public LoadGenerator(String address, int port, ClientConfig config) {
+        this.address = address;
+        this.port = port;
+        this.prefix = "load " + Long.toHexString(ThreadLocalRandom.current().nextLong()) + " ";
+        this.config = config;
+        this.executor = ChatClient.newExecutor(config.isVirtual());
+        this.connections = new CopyOnWriteArrayList<>();
+        this.latencies = new LatencyHistogram();
+        this.sent = new LongAdder();
+        this.received = new LongAdder();
+        this.disconnects = new AtomicInteger();
+        this.failures = new ConcurrentHashMap<>();
+        try {
+            this.tls = config.newTlsFactory();
+        }
+        catch (Exception e) {
+            System.out.println("Unable to set up TLS: " + e.getMessage() + ".");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Method which connects every client, sends for the
+     * configured time and prints the results
+     */
+    public void run() {
+        connect();
+        if (connections.isEmpty()) {
+            System.out.println("No connections could be made.");
+            printFailures();
+            return;
+        }
+        Thread sender = new Thread(this::sendLoop, "load-sender");
+        sender.start();
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int second = 1; second <= config.getLoadSeconds(); second++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+            System.out.printf("%3ds  sent/s %8d  delivered/s %9d  connected %6d  disconnects %d%n", second,
+                    sentNow - lastSent, receivedNow - lastReceived,
+                    connections.size() - disconnects.get(), disconnects.get());
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+        }
+        stopping = true;
+        try {
+            sender.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        printResults(seconds);
+    }
+
+    /**
+     * Method which opens the connections one after another and,
+     * when asked to, negotiates binary framing on each
+     */
+    private void connect() {
+        for (int i = 0; i < config.getLoadClients(); i++) {
+            try {
+                Socket socket = ChatClient.connect(address, port, tls);
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                executor.execute(connection);
+                if (config.isBinary()) {
+                    connection.out.write(Protocol.HELLO_BYTES);
+                    connection.out.flush();
+                }
+            }
+            catch (IOException e) {
+                failures.merge("Connect failed: " + e.getMessage(), 1, Integer::sum);
+            }
+        }
+        System.out.println("Connected " + connections.size() + " of " + config.getLoadClients() + " clients.");
+        if (config.isBinary()) {
+            int text = 0;
+            for (Connection connection : connections) {
+                try {
+                    if (!connection.negotiated.await(2, TimeUnit.SECONDS)) {
+                        text++;
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (text > 0) {
+                System.out.println(text + " clients were not offered binary framing. Using text.");
+            }
+            if (config.isCompressed()) {
+                for (Connection connection : connections) {
+                    if (connection.binary) {
+                        connection.write("/compress deflate");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method which sends payloads round robin across the
+     * connections at the configured total rate. A payload that
+     * is late keeps its due time, so the delay is measured.
+     */
+    private void sendLoop() {
+        long interval = TimeUnit.SECONDS.toNanos(1) / config.getLoadRate();
+        long due = System.nanoTime();
+        int next = 0;
+        while (!stopping) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            connections.get(next).send(due);
+            next = (next + 1) % connections.size();
+            due += interval;
+        }
+    }
+
+    /**
+     * Method which prints throughput, latency percentiles
+     * and every failure seen
+     * @param seconds length of the run
+     */
+    private void printResults(double seconds) {
+        System.out.println();
+        System.out.printf("Clients %d, sent %d (%.0f/s), delivered %d (%.0f/s)%n", connections.size(),
+                sent.sum(), sent.sum() / seconds, received.sum(), received.sum() / seconds);
+        System.out.printf("Delivery latency (us): mean %.1f  p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                latencies.getMean() / 1000, micros(50), micros(99), micros(99.9), latencies.getMax() / 1000.0);
+        printFailures();
+    }
+
+    /**
+     * Method which returns a latency percentile in microseconds
+     * @param percentile between 0 and 100
+     * @return double microseconds
+     */
+    private double micros(double percentile) {
+        return latencies.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    /**
+     * Method which prints every failure and how often it happened
+     */
+    private void printFailures() {
+        for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+            System.out.println(failure.getValue() + " x " + failure.getKey());
+        }
+    }
+}
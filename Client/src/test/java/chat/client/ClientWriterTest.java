@@ -0,0 +1,58 @@
+package chat.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.EventQueue;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for ClientWriter, fed through ChatClient.guiMessage
+ * as the GUI does and read back from a local socket
+ */
+class ClientWriterTest {
+
+    @Test
+    void sendsEveryGuiMessageInOrder() throws Exception {
+        int messages = 10_000;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            //Connects a socket of its own, which is never read
+            ChatClient chatClient = new ChatClient(server.getLocalPort(), "localhost", false, new ClientConfig());
+            Socket ignored = server.accept();
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            Socket accepted = server.accept();
+            ClientWriter writer = new ClientWriter(socket, chatClient);
+            new Thread(writer).start();
+            try {
+                //Entered on the event dispatch thread, as ClientGUI does
+                EventQueue.invokeAndWait(() -> {
+                    for (int i = 0; i < messages; i++) {
+                        chatClient.guiMessage("message " + i);
+                    }
+                });
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(accepted.getInputStream(), StandardCharsets.UTF_8));
+                assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                    assertEquals("/resume lobby 0", in.readLine());
+                    for (int i = 0; i < messages; i++) {
+                        assertEquals("message " + i, in.readLine());
+                    }
+                });
+                assertTrue(chatClient.getOutbox().isEmpty());
+            }
+            finally {
+                writer.stop();
+                socket.close();
+                accepted.close();
+                ignored.close();
+            }
+        }
+    }
+}
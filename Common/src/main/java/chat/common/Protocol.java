@@ -0,0 +1,51 @@
+package chat.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that holds what the server and the client must agree on
+ * for the binary framing the server offers next to the newline
+ * text protocol.
+ *
+ * Frame layout:
+ * [varint length][type byte][varint sender id][UTF-8 payload]
+ * where length counts every byte after the length itself.
+ * After a resume, room messages have the SEQUENCED bit set in
+ * the type and a varint sequence number after the sender id.
+ * After /compress deflate, large payloads are raw deflated from
+ * the preset DICTIONARY and have the COMPRESSED bit set in the type.
+ */
+public final class Protocol {
+
+    //Frame types
+    public static final byte HELLO = 0;
+    public static final byte CHAT = 1;
+    public static final byte ECHO = 2;
+    public static final byte NOTICE = 3;
+    public static final byte DIRECT = 4;
+    //Sender's copy of a direct message, the sender id is the recipient
+    public static final byte DIRECT_ECHO = 5;
+    //Set in the type when a sequence number follows the sender id
+    public static final byte SEQUENCED = (byte) 0x80;
+    //Set in the type when the payload is compressed
+    public static final byte COMPRESSED = 0x40;
+
+    //Sent by a client to ask for binary framing and echoed back to accept, never written to
+    public static final byte[] HELLO_BYTES = {0, 'C', 'H', 'A', 'T', 1};
+
+    //Default largest line or frame either side accepts
+    public static final int MAX_FRAME = 1 << 20;
+
+    //Preset dictionary every compressed payload starts from, never written to
+    public static final byte[] DICTIONARY = ("because really something everyone anything please thanks thank you "
+            + "sorry maybe tomorrow tonight today yesterday morning afternoon evening weekend meeting working "
+            + "people think about would could should there their they're what's that's don't can't won't "
+            + "didn't doesn't isn't I'm I'll I've you're we're it's let's https://www. .com good great nice "
+            + "cool okay yeah sure right know like have that this with from when where which will been were "
+            + "your what just going time are but all any can had her was one our out day get has him his how "
+            + "new now see way who lol haha :) the of to and a in is it you that he was for on are with as I "
+            + "they be at one have this ").getBytes(StandardCharsets.UTF_8);
+
+    private Protocol() {
+    }
+}
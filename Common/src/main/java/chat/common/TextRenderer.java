@@ -0,0 +1,138 @@
+package chat.common;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that moves text from network threads onto a JTextArea.
+ * Lines are buffered and appended on the event dispatch thread
+ * once per frame in a single batch, and the oldest lines are
+ * removed so the area never holds more than a set number.
+ */
+public class TextRenderer {
+
+    private final ConcurrentLinkedQueue<String> pending;
+    private final AtomicInteger backlog;
+    private final int maxLines;
+    private final int frameMillis;
+    private JTextArea area;
+    //Frame statistics, only written on the event dispatch thread
+    private volatile long lastFrameNanos;
+    private volatile long maxFrameNanos;
+    private volatile long skipped;
+
+    /**
+     * Constructor for TextRenderer
+     * @param maxLines most lines kept in the text area
+     * @param frameMillis time between two batches
+     */
+    public TextRenderer(int maxLines, int frameMillis) {
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.backlog = new AtomicInteger();
+        this.maxLines = maxLines;
+        this.frameMillis = frameMillis;
+    }
+
+    /**
+     * Method which connects the renderer to its text area and
+     * starts the frame timer. Called on the event dispatch thread.
+     * @param area text area to write to
+     */
+    public void attach(JTextArea area) {
+        this.area = area;
+        new Timer(frameMillis, e -> renderFrame()).start();
+    }
+
+    /**
+     * Method which queues text to be shown. Safe to call
+     * from any thread.
+     * @param text one or more lines
+     */
+    public void append(String text) {
+        pending.add(text);
+        backlog.incrementAndGet();
+    }
+
+    /**
+     * Method which appends everything queued since the last frame
+     * and trims the oldest lines. Runs on the event dispatch thread.
+     */
+    private void renderFrame() {
+        int queued = backlog.get();
+        if (queued == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        //Text which would be trimmed straight away is never added
+        int drop = Math.max(0, queued - maxLines);
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < queued; i++) {
+            String text = pending.poll();
+            if (i >= drop) {
+                batch.append(text).append('\n');
+            }
+        }
+        backlog.addAndGet(-queued);
+        skipped += drop;
+        area.append(batch.toString());
+        trim();
+        long frame = System.nanoTime() - start;
+        lastFrameNanos = frame;
+        if (frame > maxFrameNanos) {
+            maxFrameNanos = frame;
+        }
+        area.setToolTipText(getStats());
+    }
+
+    /**
+     * Method which removes the oldest lines beyond the limit
+     */
+    private void trim() {
+        //The text always ends with a newline, leaving an empty last line
+        int excess = area.getLineCount() - 1 - maxLines;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            area.getDocument().remove(0, area.getLineStartOffset(excess));
+        }
+        catch (BadLocationException ignored) {
+            //Offsets come from the document itself
+        }
+    }
+
+    /**
+     * Get method for the number of appends not yet shown
+     * @return int backlog
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * Get method for the time taken by the last frame
+     * @return long microseconds
+     */
+    public long getLastFrameMicros() {
+        return lastFrameNanos / 1000;
+    }
+
+    /**
+     * Get method for the longest frame so far
+     * @return long microseconds
+     */
+    public long getMaxFrameMicros() {
+        return maxFrameNanos / 1000;
+    }
+
+    /**
+     * Method which summarises the frame statistics
+     * @return String stats
+     */
+    public String getStats() {
+        return "Backlog: " + getBacklog() + ", last frame: " + getLastFrameMicros()
+                + " us, longest frame: " + getMaxFrameMicros() + " us, skipped: " + skipped;
+    }
+}
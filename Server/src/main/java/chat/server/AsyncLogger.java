@@ -0,0 +1,233 @@
+package chat.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class that takes log lines off the threads handling clients.
+ * Lines are put in a lock-free ring buffer and a single consumer
+ * thread writes them out in batches. When the buffer is full new
+ * lines are dropped and counted instead of blocking the sender.
+ */
+public class AsyncLogger implements Runnable {
+
+    /**
+     * Interface for a destination of log output
+     */
+    public interface Sink {
+        /**
+         * Called by the consumer thread with a batch of lines
+         * @param lines lines to be written, in order
+         * @throws IOException if the destination fails
+         */
+        void write(List<String> lines) throws IOException;
+    }
+
+    //Most lines written to the sinks in one batch
+    private static final int BATCH_LINES = 256;
+
+    private final AtomicReferenceArray<String> ring;
+    private final int mask;
+    //Next sequence to be claimed by a producer
+    private final AtomicLong head;
+    //Next sequence to be read by the consumer
+    private volatile long tail;
+    private final LongAdder dropped;
+    private long droppedReported;
+    private final List<Sink> sinks;
+    private final Thread consumer;
+    //Set while the consumer is parked so producers know to wake it
+    private volatile boolean sleeping;
+
+    /**
+     * Constructor for AsyncLogger
+     * @param capacity ring buffer size, rounded up to a power of two
+     * @param sinks destinations of the log output
+     */
+    public AsyncLogger(int capacity, List<Sink> sinks) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.head = new AtomicLong();
+        this.dropped = new LongAdder();
+        this.sinks = sinks;
+        this.consumer = new Thread(this, "async-logger");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Method which queues a line to be logged. Never blocks.
+     * Safe to call from any thread.
+     * @param line line to be logged
+     */
+    public void log(String line) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= ring.length()) {
+                //Buffer full, drop rather than wait for the consumer
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        ring.setRelease((int) (sequence & mask), line);
+        if (sleeping) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Get method for the number of lines dropped
+     * because the buffer was full
+     * @return long dropped lines
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Method which waits until every queued line has
+     * been written, for at most the given time
+     * @param millis longest time to wait
+     */
+    public void flush(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (tail < head.get() && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(consumer);
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Override of the run method in the Runnable interface.
+     * Drains the ring buffer in batches for as long as
+     * the server runs.
+     */
+    @Override
+    public void run() {
+        List<String> batch = new ArrayList<>(BATCH_LINES);
+        while (true) {
+            long sequence = tail;
+            int slot = (int) (sequence & mask);
+            String line = ring.getAcquire(slot);
+            if (line != null) {
+                ring.set(slot, null);
+                tail = sequence + 1;
+                batch.add(line);
+                if (batch.size() < BATCH_LINES) {
+                    continue;
+                }
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+            else if (head.get() == sequence) {
+                //Nothing claimed, sleep until a producer wakes us
+                sleeping = true;
+                if (head.get() == sequence) {
+                    LockSupport.parkNanos(10_000_000L);
+                }
+                sleeping = false;
+            }
+            else {
+                //A producer has claimed the slot but not filled it yet
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Method which writes a batch to every sink, adding a
+     * line if more lines were dropped since the last batch
+     * @param batch lines to be written
+     */
+    private void writeBatch(List<String> batch) {
+        long droppedNow = dropped.sum();
+        if (droppedNow != droppedReported) {
+            batch.add("Log buffer full: " + (droppedNow - droppedReported) + " lines dropped.");
+            droppedReported = droppedNow;
+        }
+        for (Sink sink : sinks) {
+            try {
+                sink.write(batch);
+            }
+            catch (IOException e) {
+                //Logging must never take the server down
+                System.err.println("Log output failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Method which creates a sink writing to standard output
+     * with a single flush per batch
+     * @return the sink
+     */
+    public static Sink consoleSink() {
+        PrintStream out = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+        return lines -> {
+            for (String line : lines) {
+                out.println(line);
+            }
+            out.flush();
+        };
+    }
+
+    /**
+     * Method which creates a sink writing to a file which is
+     * rolled over to path.1, path.2 and so on once it grows
+     * past the given size
+     * @param path log file
+     * @param maxBytes size at which the file is rolled over
+     * @param keep number of rolled over files to keep
+     * @return the sink
+     * @throws IOException if the file cannot be opened
+     */
+    public static Sink rollingFileSink(File path, long maxBytes, int keep) throws IOException {
+        return new Sink() {
+            private Writer writer = open();
+            private long size = path.length();
+
+            private Writer open() throws IOException {
+                return new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(path, true), StandardCharsets.UTF_8), 64 * 1024);
+            }
+
+            @Override
+            public void write(List<String> lines) throws IOException {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.write('\n');
+                    size += line.length() + 1;
+                }
+                writer.flush();
+                if (size >= maxBytes) {
+                    roll();
+                }
+            }
+
+            private void roll() throws IOException {
+                writer.close();
+                for (int i = keep; i > 0; i--) {
+                    File from = i == 1 ? path : new File(path.getPath() + "." + (i - 1));
+                    File to = new File(path.getPath() + "." + i);
+                    if (from.exists()) {
+                        to.delete();
+                        from.renameTo(to);
+                    }
+                }
+                writer = open();
+                size = 0;
+            }
+        };
+    }
+}
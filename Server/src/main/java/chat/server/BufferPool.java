@@ -0,0 +1,330 @@
+package chat.server;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class that lends out direct buffers in size classes, doubling
+ * from 64 bytes to 4 megabytes, so reads and the frames sent to
+ * many clients reuse the same memory rather than allocating.
+ * Buffers of the small classes are cut from one larger allocation.
+ * Each class keeps its idle buffers on a shared stack, and threads
+ * which ask for it, such as the event loops, also keep a few of
+ * each class to themselves so most borrows take no lock. Only a
+ * bounded number of bytes is kept idle; the rest are left to the
+ * garbage collector.
+ *
+ * Leak detection is switched on with -Dchat.leakDetection=true.
+ * Every borrow then records where it was made, and a buffer which
+ * is collected without being released is reported with that place.
+ */
+public class BufferPool {
+
+    //Smallest size class
+    static final int MIN_SIZE = 64;
+    //Sizes double from MIN_SIZE up to 4 MiB
+    static final int CLASSES = 17;
+    //Classes below this size are cut from one allocation of this size
+    private static final int CHUNK = 64 * 1024;
+    //Most bytes kept idle in each class's shared stack
+    private static final int SHARED_BYTES = 8 * 1024 * 1024;
+    //Most bytes kept idle by each thread in each class
+    private static final int CACHED_BYTES = 1024 * 1024;
+    private static final int MAX_CACHED = 64;
+
+    /**
+     * Class that reports a borrowed buffer collected without being
+     * released. It must not refer to the buffer, or the buffer
+     * would never be collected.
+     */
+    static final class Leak implements Runnable {
+        private final BufferPool pool;
+        private final int size;
+        private volatile Throwable borrowedAt;
+
+        Leak(BufferPool pool, int size) {
+            this.pool = pool;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            Throwable at = borrowedAt;
+            if (at != null) {
+                pool.leaked(size, at);
+            }
+        }
+    }
+
+    /**
+     * Class that holds the idle buffers of one thread
+     */
+    private static final class Cache {
+        private final PooledBuffer[][] buffers = new PooledBuffer[CLASSES][];
+        private final int[] counts = new int[CLASSES];
+    }
+
+    private final ReentrantLock[] locks;
+    private final PooledBuffer[][] shared;
+    private final int[] sharedCounts;
+    private final ThreadLocal<Cache> caches;
+    //Null unless leak detection is on
+    private final Cleaner cleaner;
+    //Null if nothing is reported
+    private final AsyncLogger logger;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder leaks;
+    private final AtomicLong misuses;
+
+    /**
+     * Constructor for BufferPool
+     * @param logger where leaks and extra releases are reported, or null
+     */
+    public BufferPool(AsyncLogger logger) {
+        this.locks = new ReentrantLock[CLASSES];
+        this.shared = new PooledBuffer[CLASSES][];
+        this.sharedCounts = new int[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            locks[i] = new ReentrantLock();
+            shared[i] = new PooledBuffer[Math.max(2, Math.min(4096, SHARED_BYTES / sizeOf(i)))];
+        }
+        this.caches = new ThreadLocal<>();
+        this.cleaner = Boolean.getBoolean("chat.leakDetection") ? Cleaner.create() : null;
+        this.logger = logger;
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.leaks = new LongAdder();
+        this.misuses = new AtomicLong();
+    }
+
+    /**
+     * Method which gives the calling thread a cache of its own.
+     * Only worth it for long-lived threads which borrow and
+     * release often, such as event loops.
+     */
+    public void cacheThread() {
+        Cache cache = new Cache();
+        for (int i = 0; i < CLASSES; i++) {
+            cache.buffers[i] = new PooledBuffer[Math.max(1, Math.min(MAX_CACHED, CACHED_BYTES / sizeOf(i)))];
+        }
+        caches.set(cache);
+    }
+
+    /**
+     * Method which borrows a buffer holding at least the given
+     * number of bytes, with one reference to it
+     * @param size bytes needed
+     * @return cleared buffer, direct unless larger than every class
+     */
+    public PooledBuffer acquire(int size) {
+        int sizeClass = classOf(size);
+        if (sizeClass == CLASSES) {
+            //Too large to pool, only ever used once
+            misses.increment();
+            PooledBuffer buffer = new PooledBuffer(null, -1, ByteBuffer.allocate(size), null);
+            buffer.borrow();
+            return buffer;
+        }
+        PooledBuffer buffer = null;
+        Cache cache = caches.get();
+        if (cache != null && cache.counts[sizeClass] > 0) {
+            int count = --cache.counts[sizeClass];
+            buffer = cache.buffers[sizeClass][count];
+            cache.buffers[sizeClass][count] = null;
+        }
+        else {
+            ReentrantLock lock = locks[sizeClass];
+            lock.lock();
+            try {
+                if (sharedCounts[sizeClass] > 0) {
+                    int count = --sharedCounts[sizeClass];
+                    buffer = shared[sizeClass][count];
+                    shared[sizeClass][count] = null;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        if (buffer == null) {
+            misses.increment();
+            buffer = allocate(sizeClass);
+        }
+        else {
+            hits.increment();
+        }
+        buffer.borrow();
+        if (buffer.leak != null) {
+            buffer.leak.borrowedAt = new Throwable("Borrowed here");
+        }
+        return buffer;
+    }
+
+    /**
+     * Method which takes back a buffer whose last reference was
+     * released, keeping it for the next borrow if there is room
+     * @param buffer buffer released
+     */
+    void recycle(PooledBuffer buffer) {
+        if (buffer.leak != null) {
+            buffer.leak.borrowedAt = null;
+        }
+        int sizeClass = buffer.getSizeClass();
+        Cache cache = caches.get();
+        if (cache != null && cache.counts[sizeClass] < cache.buffers[sizeClass].length) {
+            cache.buffers[sizeClass][cache.counts[sizeClass]++] = buffer;
+            return;
+        }
+        ReentrantLock lock = locks[sizeClass];
+        lock.lock();
+        try {
+            if (sharedCounts[sizeClass] < shared[sizeClass].length) {
+                shared[sizeClass][sharedCounts[sizeClass]++] = buffer;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method which allocates a new buffer of a size class. A small
+     * class gets a whole chunk, cut into buffers; all but the one
+     * returned are put on the shared stack.
+     * @param sizeClass index of the size class
+     * @return PooledBuffer new buffer
+     */
+    private PooledBuffer allocate(int sizeClass) {
+        int size = sizeOf(sizeClass);
+        if (size >= CHUNK) {
+            return newBuffer(sizeClass, ByteBuffer.allocateDirect(size));
+        }
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK);
+        for (int at = size; at < CHUNK; at += size) {
+            recycle(newBuffer(sizeClass, chunk.slice(at, size)));
+        }
+        return newBuffer(sizeClass, chunk.slice(0, size));
+    }
+
+    /**
+     * Method which wraps new memory, tracking it if
+     * leak detection is on
+     * @param sizeClass index of the size class
+     * @param memory memory of the buffer
+     * @return PooledBuffer buffer
+     */
+    private PooledBuffer newBuffer(int sizeClass, ByteBuffer memory) {
+        Leak leak = null;
+        PooledBuffer buffer;
+        if (cleaner != null) {
+            leak = new Leak(this, memory.capacity());
+            buffer = new PooledBuffer(this, sizeClass, memory, leak);
+            cleaner.register(buffer, leak);
+        }
+        else {
+            buffer = new PooledBuffer(this, sizeClass, memory, null);
+        }
+        return buffer;
+    }
+
+    /**
+     * Method which reports a buffer collected while borrowed
+     * @param size capacity of the buffer
+     * @param borrowedAt where it was borrowed
+     */
+    private void leaked(int size, Throwable borrowedAt) {
+        leaks.increment();
+        if (logger == null) {
+            return;
+        }
+        StringBuilder report = new StringBuilder("Buffer of " + size + " bytes was never released. Borrowed at:");
+        StackTraceElement[] trace = borrowedAt.getStackTrace();
+        for (int i = 0; i < Math.min(8, trace.length); i++) {
+            report.append("\n    ").append(trace[i]);
+        }
+        logger.log(report.toString());
+    }
+
+    /**
+     * Method which reports a buffer released more often than
+     * it was retained, once per thousand to keep the log readable
+     * @param buffer buffer released
+     */
+    void misused(PooledBuffer buffer) {
+        if (misuses.getAndIncrement() % 1000 == 0 && logger != null) {
+            logger.log("Buffer of " + buffer.buffer().capacity() + " bytes released too often.");
+        }
+    }
+
+    /**
+     * Method which returns the size class holding a number of bytes
+     * @param size bytes needed
+     * @return index of the class, CLASSES if none is large enough
+     */
+    static int classOf(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+        return Math.min(sizeClass, CLASSES);
+    }
+
+    /**
+     * Method which returns the capacity of a size class
+     * @param sizeClass index of the class
+     * @return bytes
+     */
+    static int sizeOf(int sizeClass) {
+        return MIN_SIZE << sizeClass;
+    }
+
+    /**
+     * Get method for the number of borrows served by an idle buffer
+     * @return long hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get method for the number of borrows which had to allocate
+     * @return long misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get method for the number of buffers collected without being
+     * released. Always 0 unless leak detection is on.
+     * @return long leaks
+     */
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * Get method for the number of releases after a
+     * buffer had no references left
+     * @return long misuses
+     */
+    public long getMisuses() {
+        return misuses.get();
+    }
+
+    /**
+     * Method which returns the bytes kept idle on the shared stacks
+     * @return long bytes
+     */
+    public long getIdleBytes() {
+        long bytes = 0;
+        for (int i = 0; i < CLASSES; i++) {
+            bytes += (long) sharedCounts[i] * sizeOf(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,850 @@
+package chat.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.*;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Class that starts the Server and
+ * accepts client connections. Acceptor threads only accept,
+ * check the rate limits and hand each socket to the thread or
+ * event loop that will serve it, so a crowd of clients
+ * reconnecting at once is not held up behind slower work.
+ */
+public class ChatServer {
+
+    //Longest a client of the classic engine may take over its TLS handshake
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    //Listening sockets, one per acceptor where SO_REUSEPORT is supported
+    private ServerSocket[] sockets;
+    //Only used by the NIO engine
+    private ServerSocketChannel[] serverChannels;
+    private EventLoop[] loops;
+    private ServerConfig config;
+    //Stores all active connections keyed by client number
+    private ConnectionRegistry<ServerConnection> registry;
+    //Rooms the clients are in, each with its own members
+    private Rooms rooms;
+    private AtomicInteger noOfClients;
+    private ConnectionLimiter limiter;
+    private ServerGUI serverGUI;
+    private boolean gui;
+    //Runs each connection of the classic engine
+    private Executor executor;
+    //Writes server output off the threads handling clients
+    private AsyncLogger logger;
+    private Metrics metrics;
+    //Null if room messages are not kept on disk
+    private Journal journal;
+    //Null if this server is not part of a cluster
+    private Cluster cluster;
+    //Direct buffers for the NIO engine, null in the classic engine
+    private BufferPool pool;
+    //Null unless clients are served over TLS
+    private SSLContext tls;
+    //Null if compression is not offered to clients
+    private Compressor compressor;
+    /*
+    Lock used instead of a synchronized method so that virtual
+    threads do not pin their carrier. Only guards shutdown.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructor for the ChatServer class
+     * @param port the port number to be used for the ServerSocket
+     * @param gui true or false depending on the users input
+     * @param config options read from the command line
+     */
+    public ChatServer(int port, boolean gui, ServerConfig config) {
+        this.gui = gui;
+        this.config = config;
+        startLogger();
+        //If gui is true
+        if (gui) {
+            //Object of ServerGUI class created
+            serverGUI = new ServerGUI(port,this);
+        }
+        else {
+            setupServer(port);
+        }
+    }
+
+    /**
+     * Method which starts the asynchronous logger writing to
+     * the GUI or the console, and to the log file if one was given
+     */
+    private void startLogger() {
+        List<AsyncLogger.Sink> sinks = new ArrayList<>();
+        if (gui) {
+            sinks.add(lines -> {
+                for (String line : lines) {
+                    serverGUI.print(line);
+                }
+            });
+        }
+        else {
+            sinks.add(AsyncLogger.consoleSink());
+        }
+        if (config.getLogFile() != null) {
+            try {
+                sinks.add(AsyncLogger.rollingFileSink(new File(config.getLogFile()), 10L * 1024 * 1024, 5));
+            }
+            catch (IOException e) {
+                System.out.println("Unable to open log file " + config.getLogFile() + ".\n" +
+                        "Logging to the " + (gui ? "GUI" : "console") + " only.");
+            }
+        }
+        logger = new AsyncLogger(64 * 1024, sinks);
+    }
+
+    /**
+     * Method which attempts to create a ServerSocket
+     * @param port port number to be used
+     */
+    public void setupServer(int port) {
+        startTls();
+        try {
+            //Attempt to create ServerSocket
+            bind(port);
+        }
+        catch (IllegalArgumentException e) {
+            //Thrown for a port outside 0 to 65535
+            stop("Invalid port number.");
+        }
+        catch (IOException e) {
+            stop("Unable to listen on port " + port + ": " + e.getMessage() + ".");
+        }
+        try {
+            print("Server online. Port: " + port + ". Engine: " + config.getEngine() + "."
+                    + (tls != null ? " TLS." : ""));
+            print("Acceptors: " + config.getAcceptors() + ". Listening sockets: " + sockets.length
+                    + ". Backlog: " + config.getBacklog() + ".");
+            if (!config.isNio()) {
+                executor = config.newExecutor();
+                print("Threads: " + config.getThreads() + ".");
+            }
+            //Concurrent data structure
+            registry = new ConnectionRegistry<>();
+            if (config.isNio()) {
+                pool = new BufferPool(logger);
+            }
+            startJournal();
+            noOfClients = new AtomicInteger();
+            limiter = config.newLimiter();
+            cluster = config.newCluster(this);
+            startMetrics();
+            compressor = config.newCompressor(metrics);
+            if (compressor != null) {
+                print("Compression: deflate level " + compressor.getLevel() + " for payloads of "
+                        + compressor.getMinBytes() + " bytes or more.");
+            }
+            startCluster();
+        }
+        catch (Exception e) {
+            //Exit if exception is thrown
+            stop("Unable to start server: " + e + ".");
+        }
+        if (gui) {
+            //Go method already called if !gui
+            go();
+        }
+    }
+
+    /**
+     * Method which reports why the server could not start and exits
+     * @param reason message to be printed
+     */
+    private void stop(String reason) {
+        print(reason);
+        logger.flush(1000);
+        System.exit(0);
+    }
+
+    /**
+     * Method which sets up TLS if it was asked for. The server
+     * does not start in plain text if it cannot be set up.
+     */
+    private void startTls() {
+        try {
+            tls = config.newTlsContext();
+        }
+        catch (Exception e) {
+            print("Unable to set up TLS: " + e.getMessage() + ".\n" +
+                    "Check javax.net.ssl.keyStore and javax.net.ssl.keyStorePassword.");
+            logger.flush(1000);
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Method which binds the listening sockets. With more than one
+     * acceptor each gets its own socket bound with SO_REUSEPORT, so
+     * the kernel spreads new connections over their queues. Where
+     * that option is missing the acceptors share one socket.
+     * @param port port number to be used
+     * @throws IOException if the port cannot be bound
+     */
+    private void bind(int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(port);
+        int count = config.getAcceptors();
+        if (count > 1 && !reusePortSupported()) {
+            count = 1;
+        }
+        sockets = new ServerSocket[count];
+        serverChannels = new ServerSocketChannel[count];
+        for (int i = 0; i < count; i++) {
+            if (config.isNio()) {
+                serverChannels[i] = ServerSocketChannel.open();
+                if (count > 1) {
+                    serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                serverChannels[i].bind(address, config.getBacklog());
+                sockets[i] = serverChannels[i].socket();
+            }
+            else {
+                sockets[i] = new ServerSocket();
+                if (count > 1) {
+                    sockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                sockets[i].bind(address, config.getBacklog());
+            }
+        }
+    }
+
+    /**
+     * Method which checks if listening sockets can share a port
+     * @return true if SO_REUSEPORT is supported
+     * @throws IOException if a socket cannot be opened to check
+     */
+    private static boolean reusePortSupported() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    /**
+     * Method which creates the rooms and, if a journal was asked
+     * for, reads it back into their history and starts saving
+     * new messages. The server carries on without a journal if
+     * it cannot be opened.
+     */
+    private void startJournal() {
+        try {
+            journal = config.newJournal(logger);
+        }
+        catch (IOException e) {
+            print("Unable to open journal " + config.getJournalDir() + ".\n" +
+                    "Messages will not be kept on disk.");
+        }
+        rooms = config.newRooms(journal);
+        if (journal == null) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            long recovered = journal.recover(rooms::restore);
+            journal.start();
+            print("Journal: " + recovered + " messages read back in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        }
+        catch (IOException e) {
+            print("Unable to read journal " + config.getJournalDir() + ": " + e.getMessage() + ".\n" +
+                    "Messages will not be kept on disk.");
+            journal = null;
+            rooms = config.newRooms(null);
+        }
+    }
+
+    /**
+     * Method which publishes the metrics over JMX and, if a
+     * port was given, over HTTP
+     */
+    private void startMetrics() {
+        metrics = new Metrics(registry, rooms, logger, journal, cluster, pool);
+        metrics.registerMBean();
+        int port = config.getMetricsPort();
+        if (port > 0) {
+            try {
+                metrics.serve(port);
+                print("Metrics: http://localhost:" + port + "/metrics.");
+            }
+            catch (IOException e) {
+                print("Unable to serve metrics on port " + port + ".");
+            }
+        }
+    }
+
+    /**
+     * Method which links this server to the other nodes of its
+     * cluster. The server carries on alone if the cluster port
+     * cannot be bound.
+     */
+    private void startCluster() {
+        if (cluster == null) {
+            return;
+        }
+        try {
+            cluster.start();
+            print("Cluster: node " + (cluster.getIndex() + 1) + " of " + cluster.getSize() + ".");
+        }
+        catch (IOException e) {
+            print("Unable to listen for cluster links: " + e.getMessage() + ".\n" +
+                    "Server will run on its own.");
+            cluster = null;
+        }
+    }
+
+    /**
+     * Method which starts the acceptors. The first runs on the
+     * calling thread, so this only returns when the server stops.
+     */
+    void go() {
+        print("Awaiting connections...");
+        print("Number of clients online: "+registry.size());
+        if (config.isNio()) {
+            try {
+                startEventLoops();
+            }
+            catch (IOException e) {
+                //Close server is exception is thrown
+                exitServer();
+            }
+        }
+        //Threads share the sockets if there are fewer sockets than acceptors
+        for (int i = 1; i < config.getAcceptors(); i++) {
+            int listener = i % sockets.length;
+            new Thread(() -> accept(listener), "acceptor-" + i).start();
+        }
+        accept(0);
+    }
+
+    /**
+     * Method which starts the event loops of the NIO engine
+     * @throws IOException if a selector cannot be opened
+     */
+    private void startEventLoops() throws IOException {
+        loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, loops.length, pool, logger);
+            loops[i].start("event-loop-" + i);
+        }
+        print("Event loops: " + loops.length + ".");
+    }
+
+    /**
+     * Method which accepts clients on one listening socket and
+     * hands each to the thread or event loop which serves it.
+     * Connections over a rate limit are closed at once. A failed
+     * accept, such as running out of file descriptors, is retried
+     * after a pause; the server only stops if the socket is closed.
+     * @param listener index of the listening socket
+     */
+    private void accept(int listener) {
+        while (true) {
+            try {
+                if (config.isNio()) {
+                    //Accept connection from clients
+                    SocketChannel channel = serverChannels[listener].accept();
+                    long accepted = System.nanoTime();
+                    if (admit(channel.socket(), accepted)) {
+                        int count = noOfClients.incrementAndGet();
+                        int clientNo = clientNo(count);
+                        //Spread clients across the event loops
+                        EventLoop loop = loops[count % loops.length];
+                        loop.execute(() -> startConnection(channel, loop, clientNo, accepted));
+                    }
+                }
+                else {
+                    //Accept connection from clients
+                    Socket s = sockets[listener].accept();
+                    long accepted = System.nanoTime();
+                    if (admit(s, accepted)) {
+                        int clientNo = clientNo(noOfClients.incrementAndGet());
+                        //Create thread for client
+                        executor.execute(() -> startConnection(s, clientNo, accepted));
+                    }
+                }
+            }
+            catch (IOException e) {
+                if (sockets[listener].isClosed()) {
+                    //Close server is exception is thrown
+                    exitServer();
+                }
+                print("Unable to accept a connection: " + e.getMessage() + ".");
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    /**
+     * Method which returns the number given to a client. The
+     * nodes of a cluster take turns, so numbers are unique across
+     * it and show which node a client is connected to.
+     * @param count clients accepted by this server, this one included
+     * @return int client number
+     */
+    private int clientNo(int count) {
+        return (count - 1) * config.getClusterSize() + config.getClusterIndex() + 1;
+    }
+
+    /**
+     * Method which counts an accepted connection and closes
+     * it if it is over a rate limit
+     * @param s socket of the client
+     * @param accepted time it was accepted, in nanoseconds
+     * @return true if the connection is to be served
+     */
+    private boolean admit(Socket s, long accepted) {
+        metrics.accepted();
+        ConnectionLimiter.Limit limit = limiter.tryAcquire(s.getInetAddress(), accepted);
+        if (limit == null) {
+            return true;
+        }
+        metrics.refused(limit);
+        try {
+            s.close();
+        }
+        catch (IOException ignored) {
+            //Nothing more to do with it
+        }
+        return false;
+    }
+
+    /**
+     * Method which starts serving a client of the classic engine.
+     * Runs on the client's own thread.
+     * @param s socket of the client
+     * @param clientNo number given to the client
+     * @param accepted time it was accepted, in nanoseconds
+     */
+    private void startConnection(Socket s, int clientNo, long accepted) {
+        if (tls != null) {
+            s = handshake(s, clientNo);
+            if (s == null) {
+                return;
+            }
+        }
+        print("Client " + clientNo + " connected. Port: " + s.getPort() + ".");
+        ServerConnection serverConnection = new ServerConnection(s, this, clientNo);
+        //Added before it starts so direct messages reach it at once
+        addConnection(serverConnection);
+        metrics.handedOff(System.nanoTime() - accepted);
+        print("Number of clients online: " + registry.size());
+        serverConnection.run();
+    }
+
+    /**
+     * Method which runs the TLS handshake with a client of the
+     * classic engine on its own thread, so a slow client holds up
+     * nobody else. A session created before the handshake started
+     * was resumed.
+     * @param s socket of the client
+     * @param clientNo number given to the client
+     * @return socket encrypting what is sent over s, or null if
+     *         the handshake failed and s was closed
+     */
+    private Socket handshake(Socket s, int clientNo) {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        try {
+            //Records of the handshake go out in writes Nagle's algorithm would hold back
+            s.setTcpNoDelay(true);
+            SSLSocket secure = (SSLSocket) tls.getSocketFactory().createSocket(s, null, true);
+            //A client which never finishes does not keep its thread forever
+            secure.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            secure.startHandshake();
+            secure.setSoTimeout(0);
+            metrics.tlsHandshake(System.nanoTime() - start, secure.getSession().getCreationTime() < startMillis);
+            return secure;
+        }
+        catch (IOException e) {
+            metrics.tlsFailed();
+            print("Client " + clientNo + " failed the TLS handshake: " + e.getMessage() + ".");
+            try {
+                s.close();
+            }
+            catch (IOException ignored) {
+                //Already closed
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Method which starts serving a client of the NIO engine.
+     * Runs on the event loop which serves it.
+     * @param channel channel of the client
+     * @param loop event loop which serves it
+     * @param clientNo number given to the client
+     * @param accepted time it was accepted, in nanoseconds
+     */
+    private void startConnection(SocketChannel channel, EventLoop loop, int clientNo, long accepted) {
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        }
+        catch (IOException e) {
+            //Client gone before it was served
+            try {
+                channel.close();
+            }
+            catch (IOException ignored) {
+                //Nothing more to do with it
+            }
+            return;
+        }
+        print("Client " + clientNo + " connected. Port: " + channel.socket().getPort() + ".");
+        ServerConnection serverConnection = new ServerConnection(channel, loop, this, clientNo);
+        //Added before registering so direct messages reach it at once
+        addConnection(serverConnection);
+        loop.register(serverConnection);
+        metrics.handedOff(System.nanoTime() - accepted);
+        print("Number of clients online: " + registry.size());
+    }
+
+    /**
+     * Method which adds a new connection to the registry. It
+     * joins the default room once it resumes, sends anything
+     * else or has waited long enough, so its history is not
+     * sent before the client says what it has already seen.
+     * @param connection connection to be added
+     */
+    void addConnection(ServerConnection connection) {
+        registry.add(connection.getClientNo(), connection);
+    }
+
+    /**
+     * Method which sends a message to every member of a room on
+     * this server. Each shard's members are sent it by the shard's
+     * own event loop: the message is handed over once per shard,
+     * through the queue between the two loops, rather than once
+     * per member, and shards with no members are skipped.
+     * @param room room the message was sent to
+     * @param message message to be sent
+     * @param sender client which sent it, or null if it
+     *               came from another node of the cluster
+     */
+    void broadcast(Rooms.Room room, Message message, ServerConnection sender) {
+        if (loops == null) {
+            //Loops not started yet, or the classic engine's single shard
+            for (int shard = 0; shard < room.getShards(); shard++) {
+                ServerConnection.sendToShard(room, shard, message, sender, metrics);
+            }
+            return;
+        }
+        EventLoop current = EventLoop.current();
+        for (EventLoop loop : loops) {
+            int shard = loop.getIndex();
+            if (room.getMembers(shard).size() == 0) {
+                continue;
+            }
+            if (loop == current) {
+                ServerConnection.sendToShard(room, shard, message, sender, metrics);
+            }
+            else {
+                //Held until the other loop has queued it for its members
+                message.retain();
+                Runnable task = () -> {
+                    ServerConnection.sendToShard(room, shard, message, sender, metrics);
+                    message.release();
+                };
+                if (current != null) {
+                    loop.execute(current, task);
+                }
+                else {
+                    //Not on a loop, such as a cluster link or a slow client's writer
+                    loop.execute(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method which outputs a message to the user depending
+     * on whether they are using the GUI or not
+     * @param message message to be output
+     */
+    public void print(String message) {
+        //Queued and written by the logger thread
+        logger.log(message);
+    }
+
+    /**
+     * Method which logs a message sent by a client, unless
+     * message bodies are sampled or switched off. Skipped
+     * messages are never decoded.
+     * @param message message received
+     */
+    public void printMessage(Message message) {
+        int sample = config.getLogSample();
+        if (sample == 0 || (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0)) {
+            return;
+        }
+        print("Client " + message.getSender() + ": " + message.getText());
+    }
+
+    /**
+     * Method which returns the registry of connections
+     * @return the registry of connections
+     */
+    public ConnectionRegistry<ServerConnection> getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Get method for the server metrics
+     * @return Metrics metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get method for the pool of direct buffers used for
+     * reading and for the frames of clients' messages
+     * @return BufferPool pool, or null in the classic engine
+     */
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * Get method for the TLS context clients are served with
+     * @return SSLContext tls, or null if clients are served in plain text
+     */
+    public SSLContext getTlsContext() {
+        return tls;
+    }
+
+    /**
+     * Get method for the compressor of payloads sent to clients
+     * which ask for compression
+     * @return Compressor compressor, or null if it is not offered
+     */
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Get method for the cluster this server is part of
+     * @return Cluster cluster, or null if it is on its own
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Get method for the chat rooms
+     * @return Rooms rooms
+     */
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    /**
+     * Get method for the journal room messages are saved to
+     * @return Journal journal, or null if nothing is saved
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Get method for the server options
+     * @return ServerConfig config
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Get method for the executor which runs the
+     * classic engine's readers and writers
+     * @return Executor executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Method which removes a connection from the registry.
+     * No lock is held so logging never delays a removal.
+     * @param connection connection to be removed
+     */
+    public void remove(ServerConnection connection) {
+        registry.remove(connection.getClientNo(), connection);
+        print("Number of clients online: " + registry.size());
+    }
+
+    /**
+     * Method which scans the terminal input for the
+     * exit command
+     */
+    private void handleExit() {
+        Scanner sc = new Scanner(System.in);
+        String input;
+        try {
+            while ((input = sc.nextLine()) != null) {
+                if (input.equals("EXIT")) {
+                    //Close server
+                    exitServer();
+                }
+                else if (input.equals("STATS")) {
+                    printStats();
+                }
+                else {
+                    //Error message
+                    System.out.println("Invalid command.");
+                }
+            }
+        }
+        catch (NoSuchElementException e) {
+            //If null input, close server
+            exitServer();
+        }
+    }
+
+    /**
+     * Method which prints the outbound queue depth and
+     * drop count of every connected client
+     */
+    private void printStats() {
+        print("Log lines dropped: " + logger.getDropped() + ".");
+        print("Accepts: " + metrics.getAccepts() + ", refused " + metrics.getAcceptsRefusedAddress()
+                + " by address and " + metrics.getAcceptsRefusedServer() + " by server limit. Accept queue p99: "
+                + metrics.getAcceptQueueP99Micros() + " us.");
+        print("Rooms: " + rooms.size() + ". History: " + rooms.getHistoryCount() + " messages, "
+                + rooms.getHistoryBytes() + " bytes.");
+        if (journal != null) {
+            print("Journal: " + journal.getRecords() + " messages written, " + journal.getCommits() + " commits, "
+                    + journal.getDropped() + " dropped, " + journal.getBytes() + " bytes kept.");
+        }
+        if (cluster != null) {
+            print("Cluster: " + cluster.getLinksUp() + " of " + (cluster.getSize() - 1) + " links up, "
+                    + cluster.getRelayed() + " relayed, " + cluster.getReceived() + " received, "
+                    + cluster.getDuplicates() + " duplicates, " + cluster.getDropped() + " dropped.");
+        }
+        if (tls != null) {
+            print("TLS: " + metrics.getTlsHandshakes() + " handshakes, " + metrics.getTlsResumed() + " resumed, "
+                    + metrics.getTlsFailures() + " failed. Handshake p99: " + metrics.getTlsHandshakeP99Micros() + " us.");
+        }
+        if (compressor != null) {
+            print("Compression: " + metrics.getCompressedFrames() + " payloads, "
+                    + metrics.getCompressionSavedBytes() + " bytes saved in "
+                    + Math.round(metrics.getCompressionMicros()) + " us.");
+        }
+        if (pool != null) {
+            print("Buffer pool: " + pool.getHits() + " hits, " + pool.getMisses() + " misses, "
+                    + pool.getLeaks() + " leaks, " + pool.getIdleBytes() + " bytes idle.");
+        }
+        for (ServerConnection connection : registry) {
+            print("Client " + connection.getClientNo() + ": queued " + connection.getQueueDepth()
+                    + ", dropped " + connection.getDropped() + ".");
+        }
+    }
+
+    /**
+     * Method that cleanly terminates the server
+     */
+    public void exitServer() {
+        lock.lock();
+        try {
+            print("Server shutdown.");
+            //Give the cluster, journal and logger a moment to send what is queued
+            if (cluster != null) {
+                cluster.flush(1000);
+            }
+            if (journal != null) {
+                journal.flush(1000);
+            }
+            logger.flush(1000);
+            //Close sockets, which are not bound yet if the GUI never started the server
+            if (sockets != null) {
+                for (ServerSocket socket : sockets) {
+                    try {
+                        socket.close();
+                    } catch (Exception ignored) {
+                        /*
+                        Exception ignored as program will terminate
+                        anyway
+                         */
+                    }
+                }
+            }
+            //Exit the program
+            System.exit(0);
+        }
+        finally {
+            //Only reached if shutting down failed
+            lock.unlock();
+        }
+    }
+
+    public static void main(String[] args) {
+        //Default port number
+        int port = 14001;
+        //Engine and other options
+        ServerConfig config = ServerConfig.fromArgs(args);
+
+        //Checks for port number in the argument
+        int x = -1;
+        for (String in : args) {
+            //Index of args
+            x++;
+            if (in.equals("-csp")) {
+                try {
+                    port = Integer.parseInt(args[x + 1]);
+                    //Breaks when valid port found
+                    break;
+                }
+                //If input is not an integer
+                catch (NumberFormatException e) {
+                    System.out.println("Invalid input.\n" +
+                            "Default port will be used.");
+                }
+                //If nothing entered after flag
+                catch (ArrayIndexOutOfBoundsException f) {
+                    System.out.println("No port number detected.\n" +
+                            "Default port will be used.");
+                }
+            }
+        }
+
+        //Scanner to check if user wants to load a GUI
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Do you want to load a GUI? \nEnter Y for yes.");
+        try {
+            if (scanner.nextLine().equalsIgnoreCase("y")) {
+                System.out.println("You have chosen GUI program.");
+                //Load constructor with gui variable = true
+                new ChatServer(port, true, config);
+            }
+            else {
+                System.out.println("You have chosen command line program.");
+                //Gui variable set to false
+                ChatServer chatServer = new ChatServer(port, false, config);
+                /*
+                Using method references to run 'go' and
+                'handleExit' in separate threads
+                */
+                new Thread(chatServer::go).start();
+                new Thread(chatServer::handleExit).start();
+            }
+        }
+        //If input = null
+        catch (NoSuchElementException e) {
+            System.out.println("Input cannot be null.\nClosing program.");
+            System.exit(0);
+        }
+    }
+}
\ No newline at end of file
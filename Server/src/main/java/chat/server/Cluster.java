@@ -0,0 +1,624 @@
+package chat.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class that joins several servers into one chat. The nodes are
+ * listed on the command line, the same list on each, and every node
+ * keeps a TCP link to every other. A message is relayed only by the
+ * node its sender is connected to, once to each peer, and a peer
+ * never relays what it receives, so messages cannot loop. Each node
+ * fans messages out to its own clients only, so that work is split
+ * between the nodes.
+ *
+ * Each link has its own ring buffer, filled without locks as the
+ * journal's is, and a writer thread which sends everything it finds
+ * queued with one flush. Records are numbered per link. The node at
+ * the other end acknowledges the highest number it has handled and
+ * skips anything not above it, so records sent again after a link
+ * fails are delivered once. Records stay in the ring until they are
+ * acknowledged; while a peer is down long enough to fill it, new
+ * records for that peer are dropped and counted. Every run of a node
+ * has a random incarnation so a restarted node numbers from the start.
+ * The cluster port has no authentication and belongs on a private
+ * network. Record layout:
+ * [int length][byte kind][long number][int sender][int target]
+ * [byte room length][UTF-8 room][UTF-8 payload]
+ * where length covers every byte after it.
+ */
+public class Cluster {
+
+    //Opens every link, followed by the node's index and incarnation
+    private static final long MAGIC = 0x434841544E4F4445L;
+    //Room message kept in the room's history
+    private static final byte KEPT = 0;
+    //Room message not kept, such as JOINED
+    private static final byte ROOM = 1;
+    //Direct message to one client
+    private static final byte DIRECT = 2;
+    //Bytes after the length, not counting the room and payload
+    private static final int FIXED = 1 + 8 + 4 + 4 + 1;
+    //Records waiting for each peer
+    private static final int RING_SIZE = 16 * 1024;
+    //Most payload bytes waiting for each peer
+    private static final long MAX_PENDING_BYTES = 16L * 1024 * 1024;
+    //Most bytes gathered into one write
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Class that holds a record waiting to be sent. The same
+     * entry is queued for every peer, and each peer's link holds
+     * a reference to the message until the peer acknowledges it.
+     */
+    private static final class Entry {
+        private final byte kind;
+        private final byte[] room;
+        private final int sender;
+        private final int target;
+        private final ByteBuffer payload;
+        //Message the payload belongs to, null for a direct message
+        private final Message message;
+
+        /**
+         * Constructor for Entry
+         * @param kind KEPT, ROOM or DIRECT
+         * @param room name of the room, empty for a direct message
+         * @param sender client number of the sender
+         * @param target client number of the recipient, 0 for a room
+         * @param payload UTF-8 text of the message
+         * @param message message the payload belongs to, or null
+         */
+        Entry(byte kind, String room, int sender, int target, ByteBuffer payload, Message message) {
+            this.kind = kind;
+            this.room = room.getBytes(StandardCharsets.UTF_8);
+            this.sender = sender;
+            this.target = target;
+            this.payload = payload;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Class that sends records to one peer. Only this node's
+     * writer sends on the link; the peer only acknowledges.
+     */
+    private final class Link implements Runnable {
+        private final int peer;
+        private final AtomicReferenceArray<Entry> ring;
+        private final int mask;
+        //Next slot to be claimed by a producer
+        private final AtomicLong head;
+        //Slots acknowledged by the peer and freed
+        private volatile long tail;
+        private final AtomicLong pendingBytes;
+        private Thread writer;
+        //Set while the writer is parked so producers know to wake it
+        private volatile boolean sleeping;
+        private volatile boolean up;
+
+        /**
+         * Constructor for Link
+         * @param peer index of the node at the other end
+         */
+        Link(int peer) {
+            this.peer = peer;
+            this.ring = new AtomicReferenceArray<>(RING_SIZE);
+            this.mask = RING_SIZE - 1;
+            this.head = new AtomicLong();
+            this.pendingBytes = new AtomicLong();
+        }
+
+        /**
+         * Method which starts the writer thread
+         */
+        void start() {
+            writer = new Thread(this, "cluster-link-" + (peer + 1));
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Method which queues a record for the peer. Never blocks.
+         * @param entry record to be sent
+         */
+        void offer(Entry entry) {
+            int size = entry.payload.remaining();
+            if (pendingBytes.addAndGet(size) > MAX_PENDING_BYTES) {
+                pendingBytes.addAndGet(-size);
+                dropped.increment();
+                return;
+            }
+            long slot;
+            do {
+                slot = head.get();
+                if (slot - tail >= RING_SIZE) {
+                    //Peer too far behind, drop rather than hold up the sender
+                    pendingBytes.addAndGet(-size);
+                    dropped.increment();
+                    return;
+                }
+            } while (!head.compareAndSet(slot, slot + 1));
+            if (entry.message != null) {
+                entry.message.retain();
+            }
+            ring.setRelease((int) (slot & mask), entry);
+            relayed.increment();
+            if (sleeping) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        /**
+         * Override of the run method in the Runnable interface.
+         * Connects to the peer, backing off with jitter while it
+         * is unreachable, and sends until the link fails.
+         */
+        @Override
+        public void run() {
+            int attempt = 0;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(nodes[peer], CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out.writeLong(MAGIC);
+                    out.writeInt(index);
+                    out.writeLong(incarnation);
+                    out.flush();
+                    //Carry on after the last record the peer handled
+                    long next = Math.min(Math.max(in.readLong(), tail), head.get());
+                    attempt = 0;
+                    up = true;
+                    server.print("Linked to node " + (peer + 1) + ".");
+                    send(out, in, next);
+                }
+                catch (IOException e) {
+                    if (up) {
+                        up = false;
+                        server.print("Link to node " + (peer + 1) + " lost: " + e.getMessage() + ".");
+                    }
+                }
+                attempt = Math.min(attempt + 1, 16);
+                long cap = Math.min(MAX_BACKOFF_MILLIS, 50L << attempt);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(cap) + 1));
+            }
+        }
+
+        /**
+         * Method which drains the ring for as long as the link
+         * works, flushing whenever it runs dry, and frees the
+         * records the peer acknowledges
+         * @param out stream to the peer
+         * @param in stream of acknowledgements from the peer
+         * @param next slot of the first record to send
+         * @throws IOException if the link fails
+         */
+        private void send(DataOutputStream out, DataInputStream in, long next) throws IOException {
+            WritableByteChannel payloads = Channels.newChannel(out);
+            boolean written = false;
+            while (true) {
+                while (in.available() >= 8) {
+                    acknowledge(Math.min(in.readLong(), next));
+                }
+                long slot = next;
+                Entry entry = slot < head.get() ? ring.getAcquire((int) (slot & mask)) : null;
+                if (entry != null) {
+                    write(out, payloads, slot + 1, entry);
+                    next = slot + 1;
+                    written = true;
+                }
+                else if (written) {
+                    out.flush();
+                    written = false;
+                }
+                else if (head.get() == slot) {
+                    //Nothing claimed, sleep until a producer wakes us
+                    sleeping = true;
+                    if (head.get() == slot) {
+                        LockSupport.parkNanos(10_000_000L);
+                    }
+                    sleeping = false;
+                }
+                else {
+                    //A producer has claimed the slot but not filled it yet
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        /**
+         * Method which adds a record to the buffered stream
+         * @param out stream to the peer
+         * @param payloads channel over the same stream
+         * @param number number of the record on this link
+         * @param entry record to be sent
+         * @throws IOException if the link fails
+         */
+        private void write(DataOutputStream out, WritableByteChannel payloads, long number, Entry entry)
+                throws IOException {
+            ByteBuffer payload = entry.payload.duplicate();
+            out.writeInt(FIXED + entry.room.length + payload.remaining());
+            out.writeByte(entry.kind);
+            out.writeLong(number);
+            out.writeInt(entry.sender);
+            out.writeInt(entry.target);
+            out.writeByte(entry.room.length);
+            out.write(entry.room);
+            while (payload.hasRemaining()) {
+                payloads.write(payload);
+            }
+        }
+
+        /**
+         * Method which frees the records the peer has handled
+         * @param acknowledged number of the last record handled
+         */
+        private void acknowledge(long acknowledged) {
+            long slot = tail;
+            for (; slot < acknowledged; slot++) {
+                int i = (int) (slot & mask);
+                Entry entry = ring.get(i);
+                pendingBytes.addAndGet(-entry.payload.remaining());
+                if (entry.message != null) {
+                    entry.message.release();
+                }
+                ring.set(i, null);
+            }
+            tail = slot;
+        }
+    }
+
+    /**
+     * Class that holds what has been received from one peer
+     */
+    private static final class Inbound {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long incarnation;
+        //Number of the last record handled from that incarnation
+        private long handled;
+    }
+
+    private final InetSocketAddress[] nodes;
+    private final int index;
+    private final long incarnation;
+    private final ChatServer server;
+    //Null at this node's own index
+    private final Link[] links;
+    private final Inbound[] inbound;
+    private ServerSocket listener;
+    private final LongAdder relayed;
+    private final LongAdder received;
+    private final LongAdder duplicates;
+    private final LongAdder dropped;
+
+    /**
+     * Constructor for Cluster. Nothing is sent or
+     * received until start is called.
+     * @param nodes cluster address of every node
+     * @param index position of this node in the list
+     * @param server server whose clients the cluster serves
+     */
+    public Cluster(InetSocketAddress[] nodes, int index, ChatServer server) {
+        this.nodes = nodes;
+        this.index = index;
+        this.incarnation = ThreadLocalRandom.current().nextLong();
+        this.server = server;
+        this.links = new Link[nodes.length];
+        this.inbound = new Inbound[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (i != index) {
+                links[i] = new Link(i);
+                inbound[i] = new Inbound();
+            }
+        }
+        this.relayed = new LongAdder();
+        this.received = new LongAdder();
+        this.duplicates = new LongAdder();
+        this.dropped = new LongAdder();
+    }
+
+    /**
+     * Method which listens for links from the other nodes
+     * and starts connecting to each of them
+     * @throws IOException if the cluster port cannot be bound
+     */
+    public void start() throws IOException {
+        listener = new ServerSocket(nodes[index].getPort());
+        Thread acceptor = new Thread(this::accept, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Link link : links) {
+            if (link != null) {
+                link.start();
+            }
+        }
+    }
+
+    /**
+     * Method which queues a message sent to a room by one of
+     * this node's clients for every other node
+     * @param room name of the room
+     * @param message message sent, numbered if the room kept it
+     */
+    public void relay(String room, Message message) {
+        Entry entry = new Entry(message.getSequence() != 0 ? KEPT : ROOM, room, message.getSender(), 0,
+                message.getPayload(), message);
+        for (Link link : links) {
+            if (link != null) {
+                link.offer(entry);
+            }
+        }
+    }
+
+    /**
+     * Method which queues a direct message for the node
+     * the recipient is connected to
+     * @param sender client number of the sender
+     * @param target client number of the recipient
+     * @param text message sent
+     */
+    public void relayDirect(int sender, int target, String text) {
+        links[nodeOf(target)].offer(new Entry(DIRECT, "", sender, target,
+                ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), null));
+    }
+
+    /**
+     * Method which checks if a client number was given out
+     * by this node. Nodes take turns giving out numbers.
+     * @param clientNo client number
+     * @return true if the client would be connected here
+     */
+    public boolean isLocal(int clientNo) {
+        return clientNo < 1 || nodeOf(clientNo) == index;
+    }
+
+    /**
+     * Method which returns the node that gave out a client number
+     * @param clientNo client number, at least 1
+     * @return index of the node
+     */
+    private int nodeOf(int clientNo) {
+        return (clientNo - 1) % nodes.length;
+    }
+
+    /**
+     * Method which waits until every peer that is linked has
+     * acknowledged what was queued for it, for at most the
+     * given time
+     * @param millis longest time to wait
+     */
+    public void flush(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Link link : links) {
+            while (link != null && link.up && link.tail < link.head.get()
+                    && System.currentTimeMillis() < deadline) {
+                LockSupport.unpark(link.writer);
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Method which accepts links from the other nodes,
+     * each read by a thread of its own
+     */
+    private void accept() {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                Thread reader = new Thread(() -> receive(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+            catch (IOException e) {
+                if (!listener.isClosed()) {
+                    server.print("Unable to accept a cluster link: " + e.getMessage() + ".");
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            }
+        }
+    }
+
+    /**
+     * Method which handles the records sent by one peer. Records
+     * not above the last one handled from the peer's incarnation
+     * were sent again after a failed link and are skipped. Whatever
+     * the reader finds buffered is handled before acknowledging.
+     * @param socket link accepted from the peer
+     */
+    private void receive(Socket socket) {
+        int from = -1;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BATCH_BYTES));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (in.readLong() != MAGIC) {
+                throw new IOException("Not a cluster link.");
+            }
+            int node = in.readInt();
+            long peerIncarnation = in.readLong();
+            if (node < 0 || node >= nodes.length || node == index) {
+                throw new IOException("Unknown node " + (node + 1) + ".");
+            }
+            from = node;
+            Inbound state = inbound[node];
+            long handled;
+            state.lock.lock();
+            try {
+                if (state.incarnation != peerIncarnation) {
+                    //Peer restarted, or linked for the first time
+                    state.incarnation = peerIncarnation;
+                    state.handled = 0;
+                }
+                handled = state.handled;
+            }
+            finally {
+                state.lock.unlock();
+            }
+            out.writeLong(handled);
+            while (true) {
+                int length = in.readInt();
+                if (length < FIXED || length > MAX_PENDING_BYTES) {
+                    throw new IOException("Malformed record.");
+                }
+                byte kind = in.readByte();
+                long number = in.readLong();
+                int sender = in.readInt();
+                int target = in.readInt();
+                byte[] room = new byte[in.readUnsignedByte()];
+                in.readFully(room);
+                byte[] payload = new byte[length - FIXED - room.length];
+                in.readFully(payload);
+                state.lock.lock();
+                try {
+                    if (state.incarnation != peerIncarnation) {
+                        throw new IOException("Replaced by a newer link.");
+                    }
+                    if (number <= state.handled) {
+                        duplicates.increment();
+                    }
+                    else {
+                        state.handled = number;
+                        deliver(kind, new String(room, StandardCharsets.UTF_8), sender, target, payload);
+                        received.increment();
+                    }
+                    handled = state.handled;
+                }
+                finally {
+                    state.lock.unlock();
+                }
+                if (in.available() == 0) {
+                    out.writeLong(handled);
+                }
+            }
+        }
+        catch (IOException e) {
+            if (from >= 0) {
+                server.print("Link from node " + (from + 1) + " closed"
+                        + (e instanceof EOFException ? "." : ": " + e.getMessage() + "."));
+            }
+        }
+    }
+
+    /**
+     * Method which hands a record from a peer to this node's
+     * clients. A kept room message is kept here too, creating
+     * the room if it has no members on this node, so a client
+     * of this node which was in it can resume. Other room
+     * messages are only sent where the room has members. Nothing
+     * is relayed again.
+     * @param kind KEPT, ROOM or DIRECT
+     * @param room name of the room
+     * @param sender client number of the sender
+     * @param target client number of the recipient of a direct message
+     * @param payload UTF-8 text of the message
+     */
+    private void deliver(byte kind, String room, int sender, int target, byte[] payload) {
+        if (kind == DIRECT) {
+            ServerConnection connection = server.getRegistry().get(target);
+            if (connection != null) {
+                connection.deliver(Message.direct(sender, new String(payload, StandardCharsets.UTF_8)));
+                server.getMetrics().directMessage();
+            }
+            return;
+        }
+        Rooms.Room local = kind == KEPT ? server.getRooms().open(room) : server.getRooms().get(room);
+        if (local == null) {
+            return;
+        }
+        //Copied once into the frame clients are sent
+        Message message = Message.relay(sender, ByteBuffer.wrap(payload), server.getBufferPool());
+        try {
+            if (kind == KEPT) {
+                local.getHistory().append(message);
+            }
+            server.broadcast(local, message, null);
+        }
+        finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Get method for the number of nodes in the cluster
+     * @return int nodes
+     */
+    public int getSize() {
+        return nodes.length;
+    }
+
+    /**
+     * Get method for the position of this node in the cluster
+     * @return int index counting from 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Get method for the number of records queued for peers,
+     * counted once per peer
+     * @return long relayed
+     */
+    public long getRelayed() {
+        return relayed.sum();
+    }
+
+    /**
+     * Get method for the number of records received
+     * from peers and handed to clients
+     * @return long received
+     */
+    public long getReceived() {
+        return received.sum();
+    }
+
+    /**
+     * Get method for the number of records received again
+     * after a failed link and skipped
+     * @return long duplicates
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Get method for the number of records not relayed
+     * because a peer was too far behind
+     * @return long dropped
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Method which returns the number of peers
+     * this node is currently sending to
+     * @return int links up
+     */
+    public int getLinksUp() {
+        int count = 0;
+        for (Link link : links) {
+            if (link != null && link.up) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
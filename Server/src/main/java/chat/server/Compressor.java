@@ -0,0 +1,148 @@
+package chat.server;
+
+import chat.common.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Class that compresses the payloads of binary frames for clients
+ * which ask for it with /compress deflate. Every payload is
+ * compressed on its own as raw deflate, so the compressed frame of
+ * a message is built once and shared by every client that gets it,
+ * in a broadcast and in every history replay after it. A context
+ * kept across messages would compress better, but would have to be
+ * kept per client, and each frame compressed again for every one.
+ * Instead every payload starts from the same preset dictionary of
+ * common chat words, which clients also know, so even short lines
+ * have something to refer back to. Payloads below the threshold
+ * are sent as they are, as are those which do not get smaller.
+ *
+ * The threshold in bytes is set with -Dchat.compressMin, 0 to not
+ * offer compression, and the deflate level with -Dchat.compressLevel.
+ */
+public class Compressor {
+
+    //Most idle deflaters kept, each holds a few hundred kilobytes of native memory
+    private static final int MAX_IDLE = 16;
+
+    private final int minBytes;
+    private final int level;
+    private final Metrics metrics;
+    //Idle deflaters, guarded by lock
+    private final Deflater[] idle;
+    private int idleCount;
+    private final ReentrantLock lock;
+
+    /**
+     * Constructor for Compressor
+     * @param minBytes smallest payload compressed, in bytes
+     * @param level deflate level from 1 to 9
+     * @param metrics metrics recording what is compressed, or null
+     */
+    public Compressor(int minBytes, int level, Metrics metrics) {
+        this.minBytes = Math.max(2, minBytes);
+        this.level = level;
+        this.metrics = metrics;
+        this.idle = new Deflater[MAX_IDLE];
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Method which checks if a payload is large enough
+     * to be worth compressing
+     * @param payloadSize bytes of the payload
+     * @return true if it should be compressed
+     */
+    public boolean accepts(int payloadSize) {
+        return payloadSize >= minBytes;
+    }
+
+    /**
+     * Method which compresses a whole payload into a buffer
+     * @param payload bytes to be compressed, left unchanged
+     * @param out buffer the compressed bytes are written to,
+     *            up to its limit
+     * @return false if they did not fit, in which case out
+     *         holds nothing useful
+     */
+    public boolean deflate(ByteBuffer payload, ByteBuffer out) {
+        long start = System.nanoTime();
+        int raw = payload.remaining();
+        int from = out.position();
+        Deflater deflater = borrow();
+        try {
+            deflater.setDictionary(Protocol.DICTIONARY);
+            deflater.setInput(payload.duplicate());
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining()) {
+                deflater.deflate(out);
+            }
+            boolean fitted = deflater.finished();
+            if (metrics != null) {
+                metrics.compressed(raw, fitted ? out.position() - from : raw, System.nanoTime() - start);
+            }
+            return fitted;
+        }
+        finally {
+            giveBack(deflater);
+        }
+    }
+
+    /**
+     * Method which takes an idle deflater, or makes one
+     * @return deflater ready for a new payload
+     */
+    private Deflater borrow() {
+        lock.lock();
+        try {
+            if (idleCount > 0) {
+                Deflater deflater = idle[--idleCount];
+                idle[idleCount] = null;
+                return deflater;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Method which keeps a deflater for the next payload,
+     * or frees its native memory if enough are kept
+     * @param deflater deflater no longer used
+     */
+    private void giveBack(Deflater deflater) {
+        deflater.reset();
+        lock.lock();
+        try {
+            if (idleCount < idle.length) {
+                idle[idleCount++] = deflater;
+                return;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        deflater.end();
+    }
+
+    /**
+     * Get method for the smallest payload compressed
+     * @return int minBytes
+     */
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    /**
+     * Get method for the deflate level
+     * @return int level
+     */
+    public int getLevel() {
+        return level;
+    }
+}
@@ -0,0 +1,97 @@
+package chat.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that limits how fast new connections are accepted, from
+ * each address and for the whole server, with token buckets.
+ * Each bucket holds one second of connections, so a burst is let
+ * through and then the rate is held to the limit. Buckets are
+ * checked and taken from with a single compare and set, so the
+ * acceptor threads never wait on each other.
+ */
+public class ConnectionLimiter {
+
+    /**
+     * Which limit refused a connection
+     */
+    public enum Limit {
+        //Too many connections from one address
+        ADDRESS,
+        //Too many connections to the server
+        SERVER
+    }
+
+    //Idle buckets are swept once there are this many addresses
+    private static final int SWEEP_ADDRESSES = 4096;
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int perAddress;
+    //Null if the server has no limit
+    private final TokenBucket server;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> addresses;
+    private final AtomicLong lastSweep;
+
+    /**
+     * Constructor for ConnectionLimiter
+     * @param perAddress connections a second from one address, 0 for no limit
+     * @param perServer connections a second to the server, 0 for no limit
+     */
+    public ConnectionLimiter(int perAddress, int perServer) {
+        long now = System.nanoTime();
+        this.perAddress = perAddress;
+        this.server = perServer > 0 ? new TokenBucket(perServer, now) : null;
+        this.addresses = new ConcurrentHashMap<>();
+        this.lastSweep = new AtomicLong(now);
+    }
+
+    /**
+     * Method which decides if a new connection may be served.
+     * The address is checked first so one busy address cannot
+     * use up the server's tokens.
+     * @param address address the connection came from
+     * @param now time it was accepted, in nanoseconds
+     * @return the limit which refused it, or null if it may be served
+     */
+    public Limit tryAcquire(InetAddress address, long now) {
+        if (perAddress > 0) {
+            TokenBucket bucket = addresses.get(address);
+            if (bucket == null) {
+                sweep(now);
+                bucket = addresses.computeIfAbsent(address, a -> new TokenBucket(perAddress, now));
+            }
+            if (!bucket.tryTake(1, now)) {
+                return Limit.ADDRESS;
+            }
+        }
+        if (server != null && !server.tryTake(1, now)) {
+            return Limit.SERVER;
+        }
+        return null;
+    }
+
+    /**
+     * Method which forgets the addresses whose buckets have
+     * refilled, at most once a second and only once there are
+     * many of them, so the map stays bounded
+     * @param now current time in nanoseconds
+     */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (addresses.size() < SWEEP_ADDRESSES || now - last < SWEEP_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        addresses.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    /**
+     * Get method for the number of addresses being tracked
+     * @return int addresses
+     */
+    public int getAddresses() {
+        return addresses.size();
+    }
+}
@@ -0,0 +1,426 @@
+package chat.server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Class that stores the connected clients keyed by their
+ * client number. Connections are packed into chunks of up to
+ * CHUNK. Adding a client writes it after the last one in a chunk
+ * and then raises the chunk's count; removing one copies only
+ * the chunk it is in, so churn costs the same however many
+ * clients are connected, and a broadcast walks dense arrays with
+ * one acquire per chunk and no lock, as over a copy-on-write
+ * list. A client stays in
+ * its chunk until it is removed, so a broadcast never misses a
+ * client that was connected the whole time. An open-addressing
+ * table of plain ints maps client numbers to chunks; lookups
+ * read it optimistically, without a lock.
+ * @param <C> type of connection stored
+ */
+public class ConnectionRegistry<C> implements Iterable<C> {
+
+    //Most connections in a chunk, which is all a change copies
+    private static final int CHUNK = 256;
+
+    //Slots a chunk starts with, doubled until it reaches CHUNK
+    private static final int FIRST_CHUNK = 8;
+
+    /**
+     * Class that holds the connections of one chunk and their
+     * client numbers, at the same positions. Slots below count
+     * are never changed; slots above it are only written before
+     * count is raised past them.
+     */
+    private static final class Chunk {
+        static final Chunk EMPTY = new Chunk(new int[0], new Object[0], 0);
+
+        final int[] ids;
+        final Object[] connections;
+        volatile int count;
+
+        Chunk(int[] ids, Object[] connections, int count) {
+            this.ids = ids;
+            this.connections = connections;
+            this.count = count;
+        }
+
+        /**
+         * Method which finds where a client is in the chunk
+         * @param id client number
+         * @return position or -1 if it is not in the chunk
+         */
+        int find(int id) {
+            int n = count;
+            for (int i = 0; i < n; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    //Replaced, never resized in place, when it runs out of room
+    private volatile AtomicReferenceArray<Chunk> chunks;
+    //Chunks in use, written after the chunk and any new table
+    private volatile int chunkCount;
+    private volatile int size;
+    //Adding and removing write, lookups read optimistically, broadcasts never take it
+    private final StampedLock lock;
+    //Client number to chunk plus one, 0 for an empty slot. Only written with the lock held
+    private int[] keys;
+    private int[] values;
+    private int entries;
+    //Chunks with room, so an add does not search for one
+    private int[] open;
+    private int openCount;
+    private boolean[] isOpen;
+
+    /**
+     * Constructor for ConnectionRegistry
+     */
+    public ConnectionRegistry() {
+        this.chunks = new AtomicReferenceArray<>(4);
+        this.lock = new StampedLock();
+        this.keys = new int[16];
+        this.values = new int[16];
+        this.open = new int[4];
+        this.isOpen = new boolean[4];
+    }
+
+    /**
+     * Method which adds a connection, replacing any stored
+     * under the same client number
+     * @param id client number
+     * @param connection connection to be added
+     */
+    public void add(int id, C connection) {
+        long stamp = lock.writeLock();
+        try {
+            int chunk = lookup(keys, values, id);
+            if (chunk >= 0) {
+                //Rare, so the chunk is copied rather than changed under a broadcast
+                Chunk old = chunks.get(chunk);
+                Object[] connections = old.connections.clone();
+                connections[old.find(id)] = connection;
+                chunks.set(chunk, new Chunk(old.ids.clone(), connections, old.count));
+                return;
+            }
+            chunk = openChunk();
+            Chunk current = chunks.get(chunk);
+            int n = current.count;
+            if (n == current.ids.length) {
+                int capacity = Math.min(CHUNK, Math.max(FIRST_CHUNK, n * 2));
+                current = new Chunk(Arrays.copyOf(current.ids, capacity),
+                        Arrays.copyOf(current.connections, capacity), n);
+                chunks.set(chunk, current);
+            }
+            current.ids[n] = id;
+            current.connections[n] = connection;
+            //Raising the count publishes the slot written before it
+            current.count = n + 1;
+            if (n + 1 == CHUNK) {
+                //Full now; the chunk used is always the top of the stack
+                isOpen[chunk] = false;
+                openCount--;
+            }
+            put(id, chunk);
+            size = size + 1;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Method which removes a connection if it is still
+     * the one stored under its client number
+     * @param id client number
+     * @param connection connection to be removed
+     * @return true if it was removed
+     */
+    public boolean remove(int id, C connection) {
+        long stamp = lock.writeLock();
+        try {
+            int chunk = lookup(keys, values, id);
+            if (chunk < 0) {
+                return false;
+            }
+            Chunk old = chunks.get(chunk);
+            int position = old.find(id);
+            if (old.connections[position] != connection) {
+                return false;
+            }
+            int n = old.count - 1;
+            if (n == 0) {
+                chunks.set(chunk, Chunk.EMPTY);
+            }
+            else {
+                //A broadcast may be walking the old chunk, so it is copied
+                int[] ids = new int[old.ids.length];
+                Object[] connections = new Object[old.ids.length];
+                System.arraycopy(old.ids, 0, ids, 0, position);
+                System.arraycopy(old.connections, 0, connections, 0, position);
+                System.arraycopy(old.ids, position + 1, ids, position, n - position);
+                System.arraycopy(old.connections, position + 1, connections, position, n - position);
+                chunks.set(chunk, new Chunk(ids, connections, n));
+            }
+            if (!isOpen[chunk]) {
+                pushOpen(chunk);
+            }
+            delete(id);
+            size = size - 1;
+            return true;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Method which finds a chunk with room, adding one if
+     * every chunk is full. Called with the write lock held.
+     * @return index of the chunk
+     */
+    private int openChunk() {
+        if (openCount > 0) {
+            return open[openCount - 1];
+        }
+        int chunk = chunkCount;
+        AtomicReferenceArray<Chunk> current = chunks;
+        if (chunk == current.length()) {
+            AtomicReferenceArray<Chunk> bigger = new AtomicReferenceArray<>(chunk * 2);
+            for (int i = 0; i < chunk; i++) {
+                bigger.set(i, current.get(i));
+            }
+            chunks = bigger;
+            isOpen = Arrays.copyOf(isOpen, chunk * 2);
+            open = Arrays.copyOf(open, chunk * 2);
+        }
+        chunks.set(chunk, Chunk.EMPTY);
+        chunkCount = chunk + 1;
+        pushOpen(chunk);
+        return chunk;
+    }
+
+    /**
+     * Method which records that a chunk has room
+     * @param chunk index of the chunk
+     */
+    private void pushOpen(int chunk) {
+        isOpen[chunk] = true;
+        open[openCount++] = chunk;
+    }
+
+    /**
+     * Method which looks up a connection by client number
+     * @param id client number
+     * @return the connection or null if not connected
+     */
+    @SuppressWarnings("unchecked")
+    public C get(int id) {
+        long stamp = lock.tryOptimisticRead();
+        int chunk = lookup(keys, values, id);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                chunk = lookup(keys, values, id);
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (chunk < 0) {
+            return null;
+        }
+        //The client may have left since; then it is not in the chunk
+        Chunk current = chunks.get(chunk);
+        int position = current.find(id);
+        return position < 0 ? null : (C) current.connections[position];
+    }
+
+    /**
+     * Method which returns the number of connections
+     * @return int size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Method which finds the slot a client number hashes to. It
+     * takes the top bits of the product, as many as the table
+     * needs, so ids spread over a table of any size.
+     * @param id client number
+     * @param length slots in the table, a power of two
+     * @return index of the slot
+     */
+    private static int home(int id, int length) {
+        return (id * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(length));
+    }
+
+    /**
+     * Method which finds the slot of a client number in the table
+     * @param keys client numbers of the table
+     * @param values chunks of the table plus one
+     * @param id client number
+     * @return index of the slot holding it, or of the empty slot it would go in
+     */
+    private static int slot(int[] keys, int[] values, int id) {
+        int mask = keys.length - 1;
+        int i = home(id, keys.length);
+        //Bounded, as a read without the lock may see the table half changed
+        for (int probes = 0; probes < keys.length && values[i] != 0 && keys[i] != id; probes++) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Method which looks up the chunk of a client number. Safe
+     * without the lock as long as the answer is validated.
+     * @param keys client numbers of the table
+     * @param values chunks of the table plus one
+     * @param id client number
+     * @return index of the chunk, or -1 if it is not stored
+     */
+    private static int lookup(int[] keys, int[] values, int id) {
+        if (keys.length != values.length) {
+            return -1;
+        }
+        int i = slot(keys, values, id);
+        return values[i] != 0 && keys[i] == id ? values[i] - 1 : -1;
+    }
+
+    /**
+     * Method which stores the chunk of a client number not yet
+     * in the table. Called with the write lock held.
+     * @param id client number
+     * @param chunk index of the chunk
+     */
+    private void put(int id, int chunk) {
+        if ((entries + 1) * 2 > keys.length) {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            int[] newKeys = new int[oldKeys.length * 2];
+            int[] newValues = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) {
+                    int j = slot(newKeys, newValues, oldKeys[i]);
+                    newKeys[j] = oldKeys[i];
+                    newValues[j] = oldValues[i];
+                }
+            }
+            keys = newKeys;
+            values = newValues;
+        }
+        int i = slot(keys, values, id);
+        keys[i] = id;
+        values[i] = chunk + 1;
+        entries++;
+    }
+
+    /**
+     * Method which removes a client number from the table,
+     * moving back the entries after it which would otherwise
+     * no longer be found. Called with the write lock held.
+     * @param id client number
+     */
+    private void delete(int id) {
+        int mask = keys.length - 1;
+        int hole = slot(keys, values, id);
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == 0) {
+                break;
+            }
+            int home = home(keys[i], keys.length);
+            //Move the entry back if its home is not between the hole and where it is
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = 0;
+        entries--;
+    }
+
+    /**
+     * Override of the forEach method in the Iterable interface,
+     * which walks the chunks without making an iterator
+     * @param action called with every connection
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super C> action) {
+        int count = chunkCount;
+        AtomicReferenceArray<Chunk> table = chunks;
+        for (int i = 0; i < count; i++) {
+            Chunk chunk = table.get(i);
+            int n = chunk.count;
+            Object[] connections = chunk.connections;
+            for (int j = 0; j < n; j++) {
+                action.accept((C) connections[j]);
+            }
+        }
+    }
+
+    /**
+     * Override of the iterator method in the Iterable interface.
+     * The iterator takes no lock and never throws
+     * ConcurrentModificationException; clients added or removed
+     * while it runs may or may not be seen.
+     * @return iterator over the connections
+     */
+    @Override
+    public Iterator<C> iterator() {
+        //The count is read first, as it is written after any new table
+        int count = chunkCount;
+        AtomicReferenceArray<Chunk> table = chunks;
+        return new Iterator<C>() {
+            private int chunk = 0;
+            private Object[] connections = Chunk.EMPTY.connections;
+            private int end = 0;
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < end || advance();
+            }
+
+            /**
+             * Method which moves on to the next chunk that is not empty
+             * @return false if there is none
+             */
+            private boolean advance() {
+                while (chunk < count) {
+                    Chunk next = table.get(chunk++);
+                    int n = next.count;
+                    if (n > 0) {
+                        connections = next.connections;
+                        end = n;
+                        position = 0;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public C next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (C) connections[position++];
+            }
+        };
+    }
+}
@@ -0,0 +1,349 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class that runs a selector for the NIO engine. Each
+ * event loop serves many client connections from a single
+ * thread by implementing the Runnable interface. Loops are
+ * shards: each owns its connections and their share of every
+ * room, and work handed from one loop to another goes through
+ * a queue only those two loops use.
+ */
+public class EventLoop implements Runnable {
+
+    /**
+     * Class that holds a task to be run once its time comes
+     */
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    //Tasks one loop can hand another before they spill into a linked queue
+    private static final int HANDOFF_CAPACITY = 4096;
+
+    //Loop run by the current thread, if it is a loop's thread
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    private final int index;
+    //Pool this loop keeps a cache of, or null
+    private final BufferPool pool;
+    //Where failures of tasks and connections are reported
+    private final AsyncLogger logger;
+    private Selector selector;
+    private Thread thread;
+    //Work handed to this loop from other threads, such as new clients
+    private Queue<Runnable> tasks;
+    //Work handed to this loop by each other loop, by index of the loop
+    private List<SpscQueue<Runnable>> fromLoops;
+    //Connections waiting to be registered with the selector
+    private Queue<ServerConnection> newConnections;
+    //Connections which have queued output since the last select
+    private Queue<ServerConnection> pendingWrites;
+    //Stops repeated wakeups while the loop is already awake
+    private AtomicBoolean awake;
+    //Tasks waiting for their time, soonest first. Only used by the loop's thread
+    private PriorityQueue<Timer> timers;
+
+    /**
+     * Constructor for EventLoop
+     * @param index position of this loop among the server's loops
+     * @param loops number of loops the server runs
+     * @param pool pool of buffers the loop borrows from, or null
+     * @param logger where failures of tasks and connections are reported
+     * @throws IOException if the selector cannot be opened
+     */
+    public EventLoop(int index, int loops, BufferPool pool, AsyncLogger logger) throws IOException {
+        this.index = index;
+        this.pool = pool;
+        this.logger = logger;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.fromLoops = new ArrayList<>(loops);
+        for (int i = 0; i < loops; i++) {
+            fromLoops.add(i != index ? new SpscQueue<>(HANDOFF_CAPACITY) : null);
+        }
+        this.newConnections = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.awake = new AtomicBoolean(false);
+        this.timers = new PriorityQueue<>();
+    }
+
+    /**
+     * Method which starts the event loop in a new thread
+     * @param name name of the thread
+     */
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Method which runs a task on this loop's thread before
+     * its next pass. Safe to call from any thread.
+     * @param task task to be run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Method which runs a task on this loop's thread before its
+     * next pass, handed over by another loop. Each pair of loops
+     * has its own queue, so nothing is shared with other senders.
+     * Only called from the thread of the loop handing it over.
+     * @param from loop handing the task over
+     * @param task task to be run
+     */
+    public void execute(EventLoop from, Runnable task) {
+        fromLoops.get(from.index).offer(task);
+        wakeup();
+    }
+
+    /**
+     * Method which returns the loop run by the current thread
+     * @return EventLoop loop, or null if not called from a loop
+     */
+    public static EventLoop current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Get method for the position of this loop among the
+     * server's loops, which is also its shard of every room
+     * @return int index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Method which runs a task on this loop's thread once a
+     * delay has passed. Only called from the loop's thread.
+     * @param task task to be run
+     * @param delayNanos nanoseconds to wait
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    /**
+     * Method which hands a connection over to this loop.
+     * Safe to call from any thread.
+     * @param connection connection to be served
+     */
+    public void register(ServerConnection connection) {
+        newConnections.add(connection);
+        wakeup();
+    }
+
+    /**
+     * Method which asks the loop to flush the output
+     * queue of a connection. Safe to call from any thread.
+     * @param connection connection with queued output
+     */
+    public void requestWrite(ServerConnection connection) {
+        pendingWrites.add(connection);
+        if (Thread.currentThread() != thread) {
+            wakeup();
+        }
+    }
+
+    /**
+     * Method which wakes the selector if it is not
+     * already awake
+     */
+    private void wakeup() {
+        if (awake.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Override of the run method in the
+     * Runnable interface. A task, timer or connection which
+     * throws is reported, and a connection is disconnected,
+     * without stopping the loop serving everyone else.
+     */
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        if (pool != null) {
+            //Buffers are borrowed and released here for every read and message
+            pool.cacheThread();
+        }
+        while (selector.isOpen()) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                }
+                else {
+                    //Wake in time for the soonest timer
+                    long wait = next.deadline - System.nanoTime();
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+                }
+                awake.set(false);
+                runTimers();
+                runTasks();
+                registerConnections();
+                flushWrites();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ServerConnection connection = (ServerConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        failed(connection, e);
+                    }
+                }
+                //Output produced while handling reads in this pass
+                flushWrites();
+            }
+            catch (IOException | ClosedSelectorException e) {
+                //Selector closed, loop ends with the server
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method which runs every timer whose time has come
+     */
+    private void runTimers() {
+        long now = System.nanoTime();
+        Timer next;
+        while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+            run(timers.poll().task, "Timer");
+        }
+    }
+
+    /**
+     * Method which runs every task handed to this loop
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            run(task, "Task");
+        }
+        for (SpscQueue<Runnable> queue : fromLoops) {
+            while (queue != null && (task = queue.poll()) != null) {
+                run(task, "Task");
+            }
+        }
+    }
+
+    /**
+     * Method which runs a task or timer, reporting
+     * it if it throws rather than ending the loop
+     * @param task task to be run
+     * @param kind what the task is, for the report
+     */
+    private void run(Runnable task, String kind) {
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            report(kind + " failed on event loop " + index, e);
+        }
+    }
+
+    /**
+     * Method which reports a connection that threw and
+     * disconnects it, leaving every other connection served
+     * @param connection connection which threw
+     * @param e exception thrown
+     */
+    private void failed(ServerConnection connection, RuntimeException e) {
+        report("Client " + connection.getClientNo() + " failed on event loop " + index, e);
+        try {
+            connection.tryDisconnect(Metrics.Reason.ERROR);
+        }
+        catch (RuntimeException again) {
+            report("Client " + connection.getClientNo() + " failed to disconnect", again);
+        }
+    }
+
+    /**
+     * Method which logs an exception with the
+     * top of its stack trace
+     * @param what what failed
+     * @param e exception thrown
+     */
+    private void report(String what, RuntimeException e) {
+        StringBuilder report = new StringBuilder(what + ": " + e);
+        StackTraceElement[] trace = e.getStackTrace();
+        for (int i = 0; i < Math.min(8, trace.length); i++) {
+            report.append("\n    ").append(trace[i]);
+        }
+        logger.log(report.toString());
+    }
+
+    /**
+     * Method which registers all connections that
+     * were handed to this loop
+     */
+    private void registerConnections() {
+        ServerConnection connection;
+        while ((connection = newConnections.poll()) != null) {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+                //Send anything queued before the key existed
+                connection.flush();
+            }
+            catch (IOException e) {
+                //Channel closed before it could be registered
+                connection.tryDisconnect(Metrics.Reason.ERROR);
+            }
+            catch (RuntimeException e) {
+                failed(connection, e);
+            }
+        }
+    }
+
+    /**
+     * Method which flushes all connections with
+     * queued output
+     */
+    private void flushWrites() {
+        ServerConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            try {
+                connection.flush();
+            }
+            catch (RuntimeException e) {
+                failed(connection, e);
+            }
+        }
+    }
+}
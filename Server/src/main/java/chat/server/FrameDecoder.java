@@ -0,0 +1,334 @@
+package chat.server;
+
+import chat.common.Protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that splits the bytes received from a client into
+ * lines or binary frames. The first byte sent decides the
+ * protocol: a client asking for binary framing starts with
+ * the hello, anything else is the newline text protocol.
+ * A decoder given a pool reads into a direct buffer borrowed
+ * from it, and only keeps the buffer while part of a message
+ * is waiting for the rest, so idle clients hold no memory.
+ */
+public class FrameDecoder {
+
+    /**
+     * Interface which receives whatever the decoder finds
+     */
+    public interface Handler {
+        /**
+         * Called for every complete line of the text protocol
+         * @param line line without its terminator
+         */
+        void onLine(String line);
+
+        /**
+         * Called for every complete binary frame. The payload
+         * is only valid until the method returns.
+         * @param type frame type
+         * @param sender sender id written by the client
+         * @param payload UTF-8 payload of the frame
+         */
+        void onFrame(byte type, int sender, ByteBuffer payload);
+
+        /**
+         * Called once when the client asks for binary framing
+         */
+        void onHello();
+    }
+
+    private static final int UNKNOWN = 0;
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+
+    private final int maxFrame;
+    //Null if the decoder keeps its own heap buffer
+    private final BufferPool pool;
+    //Borrowed buffer holding in, null while nothing is kept
+    private PooledBuffer pooled;
+    private ByteBuffer in;
+    //Copy of a line read from a direct buffer, reused for every line
+    private byte[] line;
+    private int mode;
+    //Bytes of the current line already searched for a newline
+    private int scanned;
+    //Set by the handler to leave the rest of the buffer for later
+    private boolean stopped;
+
+    /**
+     * Constructor for FrameDecoder accepting
+     * messages up to the default length
+     */
+    public FrameDecoder() {
+        this(Protocol.MAX_FRAME);
+    }
+
+    /**
+     * Constructor for FrameDecoder
+     * @param maxFrame longest line or frame payload accepted, in bytes
+     */
+    public FrameDecoder(int maxFrame) {
+        this(maxFrame, null);
+    }
+
+    /**
+     * Constructor for FrameDecoder
+     * @param maxFrame longest line or frame payload accepted, in bytes
+     * @param pool pool the buffer is borrowed from, or null
+     *             for a heap buffer with a backing array
+     */
+    public FrameDecoder(int maxFrame, BufferPool pool) {
+        this.maxFrame = maxFrame;
+        this.pool = pool;
+        if (pool == null) {
+            this.in = ByteBuffer.allocate(initialSize());
+        }
+        this.mode = UNKNOWN;
+    }
+
+    /**
+     * Method which returns the buffer that received bytes
+     * are read into, positioned after any partial message.
+     * A pooled decoder borrows one if it holds none.
+     * @return ByteBuffer in
+     */
+    public ByteBuffer buffer() {
+        if (in == null) {
+            pooled = pool.acquire(initialSize());
+            in = pooled.buffer();
+        }
+        return in;
+    }
+
+    /**
+     * Method which gives a borrowed buffer back to the pool,
+     * dropping any partial message. Called once the client
+     * is disconnected.
+     */
+    public void release() {
+        if (pooled != null) {
+            pooled.release();
+            pooled = null;
+            in = null;
+        }
+    }
+
+    /**
+     * Method which hands every complete line or frame in the
+     * buffer to the handler and keeps any partial one
+     * @param handler receiver of lines and frames
+     * @throws ProtocolException if the client sends a malformed
+     *                           or oversized message
+     */
+    public void decode(Handler handler) throws ProtocolException {
+        stopped = false;
+        if (in == null) {
+            //Pooled and nothing kept since the last decode
+            return;
+        }
+        in.flip();
+        if (mode == UNKNOWN && in.hasRemaining()) {
+            if (in.get(in.position()) == Protocol.HELLO_BYTES[0]) {
+                readHello(handler);
+            }
+            else {
+                mode = TEXT;
+            }
+        }
+        if (mode == TEXT) {
+            decodeLines(handler);
+        }
+        else if (mode == BINARY) {
+            decodeFrames(handler);
+        }
+        in.compact();
+        //A stopped buffer may be full of complete messages
+        if (!in.hasRemaining() && !stopped) {
+            grow();
+        }
+        else if (pooled != null && in.position() == 0) {
+            //Nothing left over, the buffer can serve another client
+            release();
+        }
+    }
+
+    /**
+     * Method which stops decoding after the current message.
+     * The rest of the buffer is kept and decoded by the next
+     * call to decode, which may be made without reading more.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Method which checks if the last decode was stopped
+     * before the end of what was received
+     * @return true if complete messages may be left in the buffer
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Method which checks if the client asked for binary framing
+     * @return true once the hello has been received
+     */
+    public boolean isBinary() {
+        return mode == BINARY;
+    }
+
+    /**
+     * Method which checks the hello and switches to binary framing
+     * @param handler receiver of the hello
+     * @throws ProtocolException if the hello is wrong
+     */
+    private void readHello(Handler handler) throws ProtocolException {
+        if (in.remaining() < Protocol.HELLO_BYTES.length) {
+            //Wait for the rest of the hello
+            return;
+        }
+        for (byte b : Protocol.HELLO_BYTES) {
+            if (in.get() != b) {
+                throw new ProtocolException("Unknown protocol.");
+            }
+        }
+        mode = BINARY;
+        handler.onHello();
+    }
+
+    /**
+     * Method which hands every complete line to the handler.
+     * A line is refused as soon as it is longer than allowed,
+     * without waiting for its end.
+     * @param handler receiver of lines
+     * @throws ProtocolException if a line is too long
+     */
+    private void decodeLines(Handler handler) throws ProtocolException {
+        int start = in.position();
+        for (int i = start + scanned; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int end = i;
+                //Same terminators as BufferedReader.readLine
+                if (end > start && in.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end - start > maxFrame) {
+                    throw new ProtocolException("Line too long.");
+                }
+                handler.onLine(readLine(start, end - start));
+                start = i + 1;
+                if (stopped) {
+                    //Nothing after this line has been searched
+                    scanned = 0;
+                    in.position(start);
+                    return;
+                }
+            }
+        }
+        scanned = in.limit() - start;
+        //One more for a carriage return before the newline
+        if (scanned > maxFrame + 1) {
+            throw new ProtocolException("Line too long.");
+        }
+        in.position(start);
+    }
+
+    /**
+     * Method which decodes a line, straight from the backing
+     * array of a heap buffer or through a copy of a direct one
+     * @param start position of the line in the buffer
+     * @param length bytes of the line
+     * @return String line
+     */
+    private String readLine(int start, int length) {
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        if (line == null || line.length < length) {
+            line = new byte[Math.max(length, 256)];
+        }
+        in.get(start, line, 0, length);
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Method which hands every complete frame to the handler
+     * @param handler receiver of frames
+     * @throws ProtocolException if a frame is malformed or too long
+     */
+    private void decodeFrames(Handler handler) throws ProtocolException {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int length = Message.getVarint(in);
+            if (length == -1) {
+                if (in.position() - start >= 5) {
+                    throw new ProtocolException("Malformed frame length.");
+                }
+                //Length not fully received yet
+                in.position(start);
+                return;
+            }
+            if (length < 2 || length > maxFrame) {
+                throw new ProtocolException("Invalid frame length " + length + ".");
+            }
+            if (in.remaining() < length) {
+                in.position(start);
+                return;
+            }
+            int end = in.position() + length;
+            byte type = in.get();
+            //Limit the sender id to the bytes of this frame
+            ByteBuffer frame = in.slice(in.position(), end - in.position());
+            int sender = Message.getVarint(frame);
+            if (sender < 0) {
+                throw new ProtocolException("Malformed sender id.");
+            }
+            handler.onFrame(type, sender, frame.slice());
+            in.position(end);
+            if (stopped) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method which makes room for a message larger
+     * than the buffer
+     * @throws ProtocolException if the message is too long
+     */
+    private void grow() throws ProtocolException {
+        //Room for the longest frame and its length prefix
+        int max = maxFrame + 5;
+        if (in.capacity() >= max) {
+            throw new ProtocolException("Message too long.");
+        }
+        int size = Math.min(in.capacity() * 2, max);
+        in.flip();
+        if (pool == null) {
+            ByteBuffer bigger = ByteBuffer.allocate(size);
+            bigger.put(in);
+            in = bigger;
+            return;
+        }
+        PooledBuffer bigger = pool.acquire(size);
+        bigger.buffer().put(in);
+        pooled.release();
+        pooled = bigger;
+        in = bigger.buffer();
+    }
+
+    /**
+     * Method which returns the size of a new buffer
+     * @return room for a typical message, or the longest
+     *         message if that is smaller
+     */
+    private int initialSize() {
+        return Math.min(8192, maxFrame + 5);
+    }
+}
@@ -0,0 +1,238 @@
+package chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class that keeps the last messages sent to a room so they can
+ * be replayed to clients joining it. Messages are kept as the
+ * shared Message objects, already encoded, so a replay writes the
+ * same bytes every member was sent and encodes nothing again.
+ * The ring is bounded by a number of messages and by the bytes
+ * of their text form, whichever is reached first. If the server
+ * keeps a journal every message is also queued to be saved.
+ * The history holds a reference to each message it keeps.
+ */
+public class History {
+
+    private final String name;
+    private final Message[] ring;
+    private final int maxBytes;
+    //Source of sequence numbers shared by every room
+    private final AtomicLong sequence;
+    //Null if messages are not kept on disk
+    private final Journal journal;
+    //Held while appending and while a client joins the room
+    final ReentrantLock lock;
+    private int start;
+    private int count;
+    private long bytes;
+    private long lastSequence;
+    //Sequence number of the newest message no longer kept
+    private long evictedTo;
+    //Set once the room is removed, nothing is kept afterwards
+    private boolean cleared;
+
+    /**
+     * Constructor for History
+     * @param name name of the room
+     * @param maxMessages most messages kept
+     * @param maxBytes most bytes kept
+     * @param sequence source of sequence numbers
+     * @param journal journal the messages are saved to, or null
+     */
+    public History(String name, int maxMessages, int maxBytes, AtomicLong sequence, Journal journal) {
+        this.name = name;
+        this.ring = new Message[maxMessages];
+        this.maxBytes = maxBytes;
+        this.sequence = sequence;
+        this.journal = journal;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Method which numbers a message and keeps it, dropping the
+     * oldest messages until the history is within its bounds.
+     * Messages larger than the byte bound are numbered only.
+     * @param message message sent to the room
+     */
+    public void append(Message message) {
+        if (ring.length == 0 && journal == null) {
+            return;
+        }
+        //Encoded outside the lock; the frame is reused by every client
+        int size = ring.length == 0 ? 0 : message.encoded(false).remaining();
+        lock.lock();
+        try {
+            lastSequence = sequence.incrementAndGet();
+            message.setSequence(lastSequence);
+            if (journal != null) {
+                journal.append(name, message);
+            }
+            keep(message, size);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method which puts back a message read from the
+     * journal, keeping the sequence number it was given
+     * @param message message with its sequence number set
+     */
+    public void restore(Message message) {
+        int size = ring.length == 0 ? 0 : message.encoded(false).remaining();
+        lock.lock();
+        try {
+            lastSequence = Math.max(lastSequence, message.getSequence());
+            keep(message, size);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method which adds a message to the ring, dropping the
+     * oldest messages until it fits. Called with the lock held.
+     * @param message message to be kept
+     * @param size bytes of its text form
+     */
+    private void keep(Message message, int size) {
+        if (ring.length == 0 || size > maxBytes || cleared) {
+            evictedTo = message.getSequence();
+            return;
+        }
+        while (count == ring.length || bytes + size > maxBytes) {
+            evictedTo = ring[start].getSequence();
+            bytes -= ring[start].encoded(false).remaining();
+            ring[start].release();
+            ring[start] = null;
+            start = (start + 1) % ring.length;
+            count--;
+        }
+        ring[(start + count) % ring.length] = message.retain();
+        count++;
+        bytes += size;
+    }
+
+    /**
+     * Method which drops every kept message once the room is
+     * removed. A message a cluster link was still delivering
+     * to the room is numbered but no longer kept.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            cleared = true;
+            for (; count > 0; count--) {
+                ring[start].release();
+                ring[start] = null;
+                start = (start + 1) % ring.length;
+            }
+            bytes = 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method which copies the kept messages after a sequence
+     * number, oldest first. Called with the lock held.
+     * @param out list the messages are added to
+     * @param after last sequence number already seen, 0 for none
+     * @return sequence number of the last message sent to the room
+     */
+    long snapshot(List<Message> out, long after) {
+        for (int i = 0; i < count; i++) {
+            Message message = ring[(start + i) % ring.length];
+            if (message.getSequence() > after) {
+                out.add(message);
+            }
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Method which checks if some messages after a sequence
+     * number are no longer kept. Called with the lock held.
+     * @param after last sequence number already seen
+     * @return true if a message after it was dropped
+     */
+    boolean isMissing(long after) {
+        return evictedTo > after;
+    }
+
+    /**
+     * Method which reads back from the journal the messages after
+     * a sequence number that are no longer kept, so a client away
+     * for longer than the history lasts still gets them. Called
+     * without the lock, so senders to the room do not wait for
+     * the disk; messages dropped meanwhile are still in memory or
+     * are found missing by the caller.
+     * @param after last sequence number already seen, 0 for none
+     * @param out list the messages are added to, oldest first
+     * @return sequence number of the last message added, or the
+     *         one given if the journal does not have them all
+     */
+    long recall(long after, List<Message> out) {
+        long until;
+        lock.lock();
+        try {
+            if (journal == null || after <= 0 || !isMissing(after)) {
+                return after;
+            }
+            until = evictedTo;
+        }
+        finally {
+            lock.unlock();
+        }
+        List<Message> read = new ArrayList<>();
+        try {
+            boolean complete = journal.readAfter(name, after, until, (room, message) -> read.add(message));
+            //The last one may not be on disk yet, or may have been dropped
+            if (!complete || read.isEmpty() || read.get(read.size() - 1).getSequence() != until) {
+                return after;
+            }
+        }
+        catch (IOException e) {
+            return after;
+        }
+        out.addAll(read);
+        return until;
+    }
+
+    /**
+     * Get method for the number of messages kept
+     * @return int count
+     */
+    public int getCount() {
+        lock.lock();
+        try {
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get method for the bytes kept, counted as the text
+     * form of each message
+     * @return long bytes
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
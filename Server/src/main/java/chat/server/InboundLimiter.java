@@ -0,0 +1,104 @@
+package chat.server;
+
+/**
+ * Class that limits how fast one client may send, in messages
+ * and in bytes a second, with a token bucket for each. Every
+ * message a client sends is queued for everyone in its room, so
+ * without a limit one client can multiply the server's traffic
+ * by the number of clients. Used by the single thread reading
+ * from the client.
+ */
+public class InboundLimiter {
+
+    /**
+     * What happens when a client sends faster than its limits
+     */
+    public enum FloodPolicy {
+        //Stop reading from the client until it is back under its limits
+        THROTTLE,
+        //Discard the messages over the limits
+        DROP,
+        //Disconnect the client
+        DISCONNECT
+    }
+
+    //Null if there is no limit
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+    private final FloodPolicy policy;
+    //Set while the messages of the last read are over the byte limit
+    private boolean overBytes;
+
+    /**
+     * Constructor for InboundLimiter
+     * @param messagesPerSecond messages a second, 0 for no limit
+     * @param bytesPerSecond bytes a second, 0 for no limit
+     * @param policy what to do when a limit is passed
+     */
+    public InboundLimiter(int messagesPerSecond, long bytesPerSecond, FloodPolicy policy) {
+        long now = System.nanoTime();
+        this.messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, now) : null;
+        this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, now) : null;
+        this.policy = policy;
+    }
+
+    /**
+     * Method which charges the bytes of one read from the client.
+     * When throttling they are always taken and paid back by
+     * waiting; otherwise the messages completed by a read over
+     * the limit are refused.
+     * @param count bytes read
+     * @param now current time in nanoseconds
+     */
+    public void read(int count, long now) {
+        if (bytes == null) {
+            return;
+        }
+        if (policy == FloodPolicy.THROTTLE) {
+            bytes.take(count, now);
+        }
+        else {
+            overBytes = !bytes.tryTake(count, now);
+        }
+    }
+
+    /**
+     * Method which charges one message from the client
+     * @param now current time in nanoseconds
+     * @return false if the client is over a limit. When throttling
+     *         the message is still handled and the ones after it
+     *         wait; otherwise it is dropped or the client disconnected.
+     */
+    public boolean message(long now) {
+        if (policy == FloodPolicy.THROTTLE) {
+            if (messages != null) {
+                messages.take(1, now);
+            }
+            return pause(now) == 0;
+        }
+        if (overBytes) {
+            return false;
+        }
+        return messages == null || messages.tryTake(1, now);
+    }
+
+    /**
+     * Method which returns how long to stop reading from the
+     * client so it is back under its limits. Only throttling
+     * lets the buckets go into debt.
+     * @param now current time in nanoseconds
+     * @return nanoseconds to wait, 0 for none
+     */
+    public long pause(long now) {
+        long wait = messages == null ? 0 : messages.debt(now);
+        return bytes == null ? wait : Math.max(wait, bytes.debt(now));
+    }
+
+    /**
+     * Get method for what happens when a limit is passed
+     * @return FloodPolicy policy
+     */
+    public FloodPolicy getPolicy() {
+        return policy;
+    }
+}
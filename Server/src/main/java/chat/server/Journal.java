@@ -0,0 +1,690 @@
+package chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Class that keeps every room message on disk so the history
+ * survives a restart. Messages are put in a lock-free ring buffer,
+ * as the logger does, and a single writer thread appends them to
+ * the current segment file. Everything the writer finds queued is
+ * written with one call and forced to disk once, so under load
+ * many messages share each fsync. When the ring is full new
+ * messages are not saved and are counted instead of blocking the
+ * sender.
+ *
+ * Segments are named after the first sequence number they hold and
+ * are rolled over at a fixed size; the oldest are deleted once more
+ * than the configured number are kept. Record layout:
+ * [int length][int CRC32][long sequence][long time][int sender]
+ * [byte room length][UTF-8 room][UTF-8 payload]
+ * where length and the checksum cover every byte after the checksum.
+ */
+public class Journal implements Runnable {
+
+    /**
+     * Interface for something reading messages back from the journal
+     */
+    public interface Reader {
+        /**
+         * Called once per message, oldest first
+         * @param room name of the room it was sent to
+         * @param message message with its sequence number
+         */
+        void record(String room, Message message);
+    }
+
+    //Bytes after the checksum, not counting the room and payload
+    private static final int FIXED = 8 + 8 + 4 + 1;
+    //Bytes between entries of a segment's index
+    private static final int INDEX_INTERVAL = 4 * 1024;
+    //Most bytes gathered into one write
+    private static final int BATCH_BYTES = 256 * 1024;
+    //Messages waiting to be written
+    private static final int RING_SIZE = 64 * 1024;
+    //Most bytes of a segment mapped at once when reading, unless a record is longer
+    private static final long MAP_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Class that holds a message waiting to be written
+     */
+    private static final class Entry {
+        private final String room;
+        private final Message message;
+        private final long time;
+
+        /**
+         * Constructor for Entry
+         * @param room name of the room
+         * @param message message sent to it
+         * @param time wall clock time it was sent
+         */
+        Entry(String room, Message message, long time) {
+            this.room = room;
+            this.message = message;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Class that holds what a read is looking for
+     */
+    private static final class Query {
+        //Only records after this are wanted
+        private final long after;
+        //True to compare times, false for sequences
+        private final boolean byTime;
+        //Only records of this room are wanted, or null for every room
+        private final String room;
+        //Reading stops at the room's record with this sequence number
+        private final long until;
+        private final Reader reader;
+        //Set once the record the read stops at has been given to the reader
+        private boolean done;
+
+        /**
+         * Constructor for Query
+         * @param after only records after this are wanted
+         * @param byTime true to compare times, false for sequences
+         * @param room only records of this room are wanted, or null
+         * @param until sequence number of the room's last record wanted
+         * @param reader given each record wanted
+         */
+        Query(long after, boolean byTime, String room, long until, Reader reader) {
+            this.after = after;
+            this.byTime = byTime;
+            this.room = room;
+            this.until = until;
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * Class that holds one segment file and its index. Each index
+     * entry is the position of a record with the highest sequence
+     * number and time of every record before it, so seeking from
+     * an entry never skips a record even though rooms may write
+     * their messages slightly out of order.
+     */
+    private static final class Segment {
+        private final File file;
+        private long[] positions = new long[16];
+        private long[] sequences = new long[16];
+        private long[] times = new long[16];
+        private int entries;
+        //Bytes written and forced to disk
+        private volatile long size;
+
+        /**
+         * Constructor for Segment
+         * @param file segment file
+         */
+        Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Method which adds an index entry if the record is far
+         * enough from the last one, or the first in the segment
+         * @param position position of the record
+         * @param sequence highest sequence number before it
+         * @param time latest time before it
+         */
+        synchronized void index(long position, long sequence, long time) {
+            if (entries > 0 && position - positions[entries - 1] < INDEX_INTERVAL) {
+                return;
+            }
+            if (entries == positions.length) {
+                positions = Arrays.copyOf(positions, entries * 2);
+                sequences = Arrays.copyOf(sequences, entries * 2);
+                times = Arrays.copyOf(times, entries * 2);
+            }
+            positions[entries] = position;
+            sequences[entries] = sequence;
+            times[entries] = time;
+            entries++;
+        }
+
+        /**
+         * Method which finds where to start reading for records
+         * after a sequence number or time
+         * @param after records after this are wanted
+         * @param byTime true to compare times, false for sequences
+         * @return position of the last index entry not past it
+         */
+        synchronized long seek(long after, boolean byTime) {
+            long[] keys = byTime ? times : sequences;
+            long position = 0;
+            for (int i = 0; i < entries && keys[i] <= after; i++) {
+                position = positions[i];
+            }
+            return position;
+        }
+
+        /**
+         * Method which returns the highest sequence number
+         * or time of every record before this segment
+         * @param byTime true for the time, false for the sequence
+         * @return the key, or Long.MAX_VALUE for an empty segment
+         */
+        synchronized long firstKey(boolean byTime) {
+            if (entries == 0) {
+                return Long.MAX_VALUE;
+            }
+            return byTime ? times[0] : sequences[0];
+        }
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final int keep;
+    private final AsyncLogger logger;
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    //Next slot to be claimed by a producer
+    private final AtomicLong head;
+    //Next slot to be read by the writer
+    private volatile long tail;
+    //Slots read and forced to disk
+    private volatile long committed;
+    private final LongAdder dropped;
+    private Thread writer;
+    //Set while the writer is parked so producers know to wake it
+    private volatile boolean sleeping;
+
+    //Oldest first, guarded by itself
+    private final List<Segment> segments;
+
+    //Writer thread only
+    private Segment current;
+    private FileChannel channel;
+    //Bytes of the current segment written to the channel
+    private long position;
+    //Slots whose records are in the batch or written
+    private long buffered;
+    private long maxSequence;
+    private long maxTime;
+    private boolean failing;
+    private final ByteBuffer batch;
+    private final CRC32 crc;
+
+    private volatile long records;
+    private volatile long commits;
+
+    /**
+     * Constructor for Journal. Nothing is written
+     * until start is called.
+     * @param dir directory holding the segment files
+     * @param segmentBytes size at which a segment is rolled over
+     * @param keep number of segments kept
+     * @param logger where write errors are reported
+     * @throws IOException if the directory cannot be used
+     */
+    public Journal(File dir, long segmentBytes, int keep, AsyncLogger logger) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir + ".");
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.keep = keep;
+        this.logger = logger;
+        this.ring = new AtomicReferenceArray<>(RING_SIZE);
+        this.mask = RING_SIZE - 1;
+        this.head = new AtomicLong();
+        this.dropped = new LongAdder();
+        this.segments = new ArrayList<>();
+        this.batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Method which reads every segment back, builds their indexes
+     * and cuts off a record left half written by a crash
+     * @param reader given every message in the journal
+     * @return number of messages read
+     * @throws IOException if a segment cannot be read
+     */
+    public long recover(Reader reader) throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files == null) {
+            throw new IOException("Unable to list " + dir + ".");
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        long[] count = new long[1];
+        Reader counting = (room, message) -> {
+            count[0]++;
+            reader.record(room, message);
+        };
+        for (File file : files) {
+            Segment segment = new Segment(file);
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = scan(segment, in, 0, in.size(), new Query(Long.MIN_VALUE, false, null, Long.MAX_VALUE, counting), true);
+                if (end < in.size()) {
+                    logger.log("Journal " + file.getName() + " cut to " + end + " bytes after a damaged record.");
+                    in.truncate(end);
+                }
+                segment.size = end;
+            }
+            segments.add(segment);
+        }
+        return count[0];
+    }
+
+    /**
+     * Method which opens the newest segment for
+     * appending and starts the writer thread
+     * @throws IOException if the segment cannot be opened
+     */
+    public void start() throws IOException {
+        if (segments.isEmpty()) {
+            segments.add(new Segment(segmentFile(maxSequence + 1)));
+        }
+        current = segments.get(segments.size() - 1);
+        channel = FileChannel.open(current.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        position = current.size;
+        channel.position(position);
+        writer = new Thread(this, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Method which queues a message to be written. Never
+     * blocks. Called with the room's history lock held, so
+     * each room's messages are written in sequence order.
+     * @param room name of the room
+     * @param message message with its sequence number set
+     */
+    public void append(String room, Message message) {
+        long slot;
+        do {
+            slot = head.get();
+            if (slot - tail >= RING_SIZE) {
+                //Ring full, drop rather than wait for the disk
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(slot, slot + 1));
+        //Kept until the writer has copied the payload into its batch
+        ring.setRelease((int) (slot & mask), new Entry(room, message.retain(), System.currentTimeMillis()));
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Method which waits until every queued message has
+     * been forced to disk, for at most the given time
+     * @param millis longest time to wait
+     */
+    public void flush(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (committed < head.get() && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writer);
+            //Parked rather than spinning, the wait is mostly the disk
+            LockSupport.parkNanos(50_000L);
+        }
+    }
+
+    /**
+     * Method which reads back every message after a sequence number
+     * @param sequence last sequence number already seen
+     * @param reader given each message, oldest first
+     * @throws IOException if a segment cannot be read
+     */
+    public void readAfter(long sequence, Reader reader) throws IOException {
+        read(new Query(sequence, false, null, Long.MAX_VALUE, reader));
+    }
+
+    /**
+     * Method which reads back the messages of one room after a
+     * sequence number, up to and including another. Reading stops
+     * at the last one, rather than going on to the end of the
+     * journal, as each room's messages are written in order.
+     * @param room name of the room
+     * @param after last sequence number already seen
+     * @param until sequence number of the last message wanted
+     * @param reader given each message, oldest first
+     * @return false if some messages after the first sequence
+     *         number were in segments since deleted
+     * @throws IOException if a segment cannot be read
+     */
+    public boolean readAfter(String room, long after, long until, Reader reader) throws IOException {
+        return read(new Query(after, false, room, until, reader));
+    }
+
+    /**
+     * Method which reads back every message sent at or after a time
+     * @param timeMillis wall clock time in milliseconds
+     * @param reader given each message, oldest first
+     * @throws IOException if a segment cannot be read
+     */
+    public void readSince(long timeMillis, Reader reader) throws IOException {
+        read(new Query(timeMillis - 1, true, null, Long.MAX_VALUE, reader));
+    }
+
+    /**
+     * Method which finds the first segment and index entry that can
+     * hold a wanted record and reads forward from there
+     * @param query records wanted and the reader given them
+     * @return false if the oldest segment kept starts after
+     *         records that are wanted, so some were deleted
+     * @throws IOException if a segment cannot be read
+     */
+    private boolean read(Query query) throws IOException {
+        List<Segment> list;
+        synchronized (segments) {
+            list = new ArrayList<>(segments);
+        }
+        if (list.isEmpty()) {
+            return true;
+        }
+        int first = 0;
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i).firstKey(query.byTime) <= query.after) {
+                first = i;
+                break;
+            }
+        }
+        boolean complete = list.get(0).firstKey(query.byTime) <= query.after;
+        for (int i = first; i < list.size() && !query.done; i++) {
+            Segment segment = list.get(i);
+            long from = i == first ? segment.seek(query.after, query.byTime) : 0;
+            try (FileChannel in = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                scan(segment, in, from, segment.size, query, false);
+            }
+            catch (NoSuchFileException e) {
+                //Deleted by retention since the list was copied
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Method which reads the records in part of a segment through
+     * memory mappings of a window of it at a time. Positions are
+     * longs, so segments past 2 GiB are read like any other.
+     * @param segment segment being read
+     * @param in channel of the segment file
+     * @param from position of the first record
+     * @param to end of the bytes to read
+     * @param query records wanted and the reader given them
+     * @param recovering true to build the index while reading
+     * @return position after the last whole record
+     * @throws IOException if the file cannot be mapped
+     */
+    private long scan(Segment segment, FileChannel in, long from, long to, Query query, boolean recovering)
+            throws IOException {
+        if (from >= to) {
+            return from;
+        }
+        CRC32 check = new CRC32();
+        MappedByteBuffer map = null;
+        //Position in the file the mapping starts at
+        long base = 0;
+        long at = from;
+        while (to - at >= 8 && !query.done) {
+            if (map == null || at + 8 > base + map.limit()) {
+                base = at;
+                map = in.map(FileChannel.MapMode.READ_ONLY, base, Math.min(to - base, MAP_BYTES));
+            }
+            int length = map.getInt((int) (at - base));
+            //Damaged, or too long to be mapped
+            if (length < FIXED || length > to - at - 8 || length > Integer.MAX_VALUE - 8) {
+                break;
+            }
+            if (at + 8 + length > base + map.limit()) {
+                //Runs past the window, so the next one starts with this record
+                base = at;
+                long size = Math.min(to - base, Math.max(MAP_BYTES, 8L + length));
+                map = in.map(FileChannel.MapMode.READ_ONLY, base, size);
+            }
+            int record = (int) (at - base);
+            check.reset();
+            check.update(map.slice(record + 8, length));
+            if ((int) check.getValue() != map.getInt(record + 4)) {
+                break;
+            }
+            long sequence = map.getLong(record + 8);
+            long time = map.getLong(record + 16);
+            int sender = map.getInt(record + 24);
+            int roomLength = map.get(record + 28) & 0xFF;
+            if (FIXED + roomLength > length) {
+                break;
+            }
+            if (recovering) {
+                segment.index(at, maxSequence, maxTime);
+                maxSequence = Math.max(maxSequence, sequence);
+                maxTime = Math.max(maxTime, time);
+            }
+            if ((query.byTime ? time : sequence) > query.after) {
+                String room = StandardCharsets.UTF_8.decode(map.slice(record + 8 + FIXED, roomLength)).toString();
+                if ((query.room == null || query.room.equals(room)) && sequence <= query.until) {
+                    //Copied once into the frame clients are sent
+                    Message message = Message.relay(sender,
+                            map.slice(record + 8 + FIXED + roomLength, length - FIXED - roomLength));
+                    message.setSequence(sequence);
+                    query.reader.record(room, message);
+                    query.done = sequence == query.until;
+                }
+            }
+            at += 8 + length;
+        }
+        return at;
+    }
+
+    /**
+     * Override of the run method in the Runnable interface.
+     * Drains the ring buffer for as long as the server runs,
+     * forcing what was written to disk whenever it runs dry.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            long slot = tail;
+            int index = (int) (slot & mask);
+            Entry entry = ring.getAcquire(index);
+            if (entry != null) {
+                ring.set(index, null);
+                tail = slot + 1;
+                try {
+                    write(entry);
+                }
+                catch (IOException e) {
+                    failed(e);
+                }
+                finally {
+                    entry.message.release();
+                }
+                buffered = slot + 1;
+                continue;
+            }
+            if (buffered != committed) {
+                try {
+                    commit();
+                }
+                catch (IOException e) {
+                    failed(e);
+                }
+            }
+            else if (head.get() == slot) {
+                //Nothing claimed, sleep until a producer wakes us
+                sleeping = true;
+                if (head.get() == slot) {
+                    LockSupport.parkNanos(10_000_000L);
+                }
+                sleeping = false;
+            }
+            else {
+                //A producer has claimed the slot but not filled it yet
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Method which adds a record to the batch, writing out the
+     * batch first if it is full or the segment must be rolled over
+     * @param entry message to be written
+     * @throws IOException if the segment cannot be written
+     */
+    private void write(Entry entry) throws IOException {
+        Message message = entry.message;
+        ByteBuffer payload = message.getPayload();
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED + room.length + payload.remaining();
+        int total = 8 + length;
+        if (position + batch.position() > 0 && position + batch.position() + total > segmentBytes) {
+            commit();
+            roll(message.getSequence());
+        }
+        if (batch.remaining() < total) {
+            commit();
+        }
+        //A record larger than the batch is written on its own
+        ByteBuffer out = total > batch.capacity() ? ByteBuffer.allocate(total) : batch;
+        current.index(position + batch.position(), maxSequence, maxTime);
+        int start = out.position();
+        out.putInt(length).putInt(0).putLong(message.getSequence()).putLong(entry.time)
+                .putInt(message.getSender()).put((byte) room.length).put(room).put(payload);
+        crc.reset();
+        crc.update(out.slice(start + 8, length));
+        out.putInt(start + 4, (int) crc.getValue());
+        maxSequence = Math.max(maxSequence, message.getSequence());
+        maxTime = Math.max(maxTime, entry.time);
+        records++;
+        if (out != batch) {
+            out.flip();
+            while (out.hasRemaining()) {
+                position += channel.write(out);
+            }
+        }
+    }
+
+    /**
+     * Method which writes out the batch and forces the
+     * segment to disk, making the batch visible to readers
+     * @throws IOException if the segment cannot be written
+     */
+    private void commit() throws IOException {
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                position += channel.write(batch);
+            }
+        }
+        finally {
+            batch.clear();
+        }
+        channel.force(false);
+        current.size = position;
+        committed = buffered;
+        commits++;
+        failing = false;
+    }
+
+    /**
+     * Method which starts a new segment and deletes
+     * the oldest once too many are kept
+     * @param base sequence number of the first record
+     * @throws IOException if the segment cannot be created
+     */
+    private void roll(long base) throws IOException {
+        channel.close();
+        current = new Segment(segmentFile(base));
+        channel = FileChannel.open(current.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        position = 0;
+        synchronized (segments) {
+            segments.add(current);
+            while (segments.size() > keep) {
+                Segment oldest = segments.remove(0);
+                if (!oldest.file.delete()) {
+                    logger.log("Unable to delete journal " + oldest.file.getName() + ".");
+                }
+            }
+        }
+    }
+
+    /**
+     * Method which reports a failed write once, until a
+     * write succeeds again. The messages are lost from
+     * the journal but stay in the room's history.
+     * @param e exception thrown
+     */
+    private void failed(IOException e) {
+        committed = buffered;
+        if (!failing) {
+            failing = true;
+            logger.log("Journal write failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Method which returns the file of a segment
+     * @param base sequence number of its first record
+     * @return File segment
+     */
+    private File segmentFile(long base) {
+        return new File(dir, String.format("%020d.log", base));
+    }
+
+    /**
+     * Get method for the number of messages
+     * written since the server started
+     * @return long records
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Get method for the number of times the journal was
+     * forced to disk. Messages per commit shows how well
+     * the group commit is batching.
+     * @return long commits
+     */
+    public long getCommits() {
+        return commits;
+    }
+
+    /**
+     * Get method for the number of messages not saved
+     * because the ring buffer was full
+     * @return long dropped
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Get method for the bytes kept on disk
+     * @return long bytes of every segment
+     */
+    public long getBytes() {
+        long bytes = 0;
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                bytes += segment.size;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,722 @@
+package chat.server;
+
+import chat.common.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Class that holds one message on its way to the clients.
+ * The text and binary wire forms are each encoded at most
+ * once and shared by every client that receives the message.
+ *
+ * Binary frame layout:
+ * [varint length][type byte][varint sender id][UTF-8 payload]
+ * where length counts every byte after the length itself.
+ * Clients which have resumed are sent room messages with the
+ * SEQUENCED bit set in the type and a varint sequence number
+ * after the sender id; in text the line is prefixed "#seq ".
+ * Clients which asked for compression are sent large payloads
+ * raw deflated, with the COMPRESSED bit set in the type. The
+ * compressed frame is also built once and shared.
+ *
+ * A message created with a pool builds its frames in direct
+ * buffers borrowed from it, which go back to the pool once the
+ * last reference to the message is released. Whoever keeps such
+ * a message past the call that handed it over, such as a queue,
+ * the history or a writer, retains it and releases it when done.
+ * The creator holds the first reference. Other messages ignore
+ * retain and release and are freed as garbage.
+ */
+public class Message {
+
+    static final Message HELLO_ACK = new Message(Protocol.HELLO, 0, null, null,
+            ByteBuffer.wrap(Protocol.HELLO_BYTES).asReadOnlyBuffer());
+
+    private static final AtomicIntegerFieldUpdater<Message> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "references");
+    private static final AtomicReferenceFieldUpdater<Message, PooledBuffer> BORROWED =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, PooledBuffer.class, "borrowed");
+    //Each form is built once; a thread losing the race uses the winner's
+    private static final AtomicReferenceFieldUpdater<Message, ByteBuffer> TEXT_FRAME =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, ByteBuffer.class, "textFrame");
+    private static final AtomicReferenceFieldUpdater<Message, ByteBuffer> BINARY_FRAME =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, ByteBuffer.class, "binaryFrame");
+    private static final AtomicReferenceFieldUpdater<Message, ByteBuffer> SEQUENCED_TEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, ByteBuffer.class, "sequencedText");
+    private static final AtomicReferenceFieldUpdater<Message, ByteBuffer> SEQUENCED_BINARY =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, ByteBuffer.class, "sequencedBinary");
+    private static final AtomicReferenceFieldUpdater<Message, ByteBuffer> COMPRESSED_FRAME =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, ByteBuffer.class, "compressedFrame");
+    private static final AtomicReferenceFieldUpdater<Message, ByteBuffer> SEQUENCED_COMPRESSED =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, ByteBuffer.class, "sequencedCompressed");
+
+    //Start of each line of the text protocol, the sender's number
+    //follows if there is a second part, and then the second part
+    private static final byte[] YOU = ascii("You: ");
+    private static final byte[] SERVER = ascii("Server: ");
+    private static final byte[] CLIENT = ascii("Client ");
+    private static final byte[] PRIVATE = ascii(" (private): ");
+    private static final byte[] YOU_TO = ascii("You (to Client ");
+    private static final byte[] COLON = ascii(": ");
+    private static final byte[] CLOSE_COLON = ascii("): ");
+
+    private final byte type;
+    private final int sender;
+    //Null unless the frames are borrowed from a pool
+    private final BufferPool pool;
+    //Frames borrowed from the pool, linked through their next field
+    private volatile PooledBuffer borrowed;
+    //Message whose payload this one shares, released with this one
+    private final Message parent;
+    private volatile int references;
+    //Either form may be missing until it is first needed
+    private volatile String text;
+    private volatile ByteBuffer payload;
+    private volatile ByteBuffer textFrame;
+    private volatile ByteBuffer binaryFrame;
+    //Forms carrying the sequence number, for clients that resume
+    private volatile ByteBuffer sequencedText;
+    private volatile ByteBuffer sequencedBinary;
+    //Binary forms for clients which asked for compression, the same
+    //as the forms above if the payload did not get smaller
+    private volatile ByteBuffer compressedFrame;
+    private volatile ByteBuffer sequencedCompressed;
+    //Set when the message is kept in a room's history, 0 otherwise
+    private long sequence;
+
+    /**
+     * Constructor for Message
+     * @param type frame type
+     * @param sender client number of the sender
+     * @param text decoded message or null
+     * @param payload encoded message or null
+     * @param binaryFrame complete binary frame or null
+     */
+    private Message(byte type, int sender, String text, ByteBuffer payload, ByteBuffer binaryFrame) {
+        this(type, sender, text, payload, null, null);
+        this.binaryFrame = binaryFrame;
+        //The hello is the same in both protocols
+        if (type == Protocol.HELLO) {
+            this.textFrame = binaryFrame;
+        }
+    }
+
+    /**
+     * Constructor for Message
+     * @param type frame type
+     * @param sender client number of the sender
+     * @param text decoded message or null
+     * @param payload encoded message or null
+     * @param pool pool the frames are borrowed from, or null
+     * @param parent message whose payload is shared, or null
+     */
+    private Message(byte type, int sender, String text, ByteBuffer payload, BufferPool pool, Message parent) {
+        this.type = type;
+        this.sender = sender;
+        this.text = text;
+        this.payload = payload;
+        this.pool = pool;
+        this.parent = parent;
+        this.references = 1;
+    }
+
+    /**
+     * Method which creates a chat message from a line of text
+     * @param sender client number of the sender
+     * @param text message received
+     * @return the message
+     */
+    public static Message chat(int sender, String text) {
+        return new Message(Protocol.CHAT, sender, text, null, null);
+    }
+
+    /**
+     * Method which creates a chat message from a line of
+     * text, with its frames borrowed from a pool
+     * @param sender client number of the sender
+     * @param text message received
+     * @param pool pool the frames are borrowed from, or null
+     * @return the message, with one reference held by the caller
+     */
+    public static Message chat(int sender, String text, BufferPool pool) {
+        return new Message(Protocol.CHAT, sender, text, null, pool, null);
+    }
+
+    /**
+     * Method which creates a notice from the server itself,
+     * such as the answer to a command
+     * @param text notice to be shown
+     * @return the message
+     */
+    public static Message notice(String text) {
+        return new Message(Protocol.NOTICE, 0, text, null, null);
+    }
+
+    /**
+     * Method which creates a direct message to a single client
+     * @param sender client number of the sender
+     * @param text message to be sent
+     * @return the message
+     */
+    public static Message direct(int sender, String text) {
+        return new Message(Protocol.DIRECT, sender, text, null, null);
+    }
+
+    /**
+     * Method which creates the copy of a direct
+     * message shown to its sender
+     * @param recipient client number of the recipient
+     * @param text message sent
+     * @return the message
+     */
+    public static Message directEcho(int recipient, String text) {
+        return new Message(Protocol.DIRECT_ECHO, recipient, text, null, null);
+    }
+
+    /**
+     * Method which creates a chat message from the payload of a
+     * binary frame. The payload is copied once, straight into the
+     * frame that is relayed, and is not decoded.
+     * @param sender client number of the sender
+     * @param received payload of the frame received
+     * @return the message
+     */
+    public static Message relay(int sender, ByteBuffer received) {
+        ByteBuffer frame = frame(Protocol.CHAT, sender, received.duplicate());
+        ByteBuffer payload = frame.slice(frame.limit() - received.remaining(), received.remaining());
+        return new Message(Protocol.CHAT, sender, null, payload, frame);
+    }
+
+    /**
+     * Method which creates a chat message from the payload of a
+     * binary frame, copied once into a frame borrowed from a pool
+     * @param sender client number of the sender
+     * @param received payload of the frame received
+     * @param pool pool the frames are borrowed from, or null
+     * @return the message, with one reference held by the caller
+     */
+    public static Message relay(int sender, ByteBuffer received, BufferPool pool) {
+        if (pool == null) {
+            return relay(sender, received);
+        }
+        Message message = new Message(Protocol.CHAT, sender, null, null, pool, null);
+        PooledBuffer frame = pool.acquire(frameSize(Protocol.CHAT, sender, 0, received.remaining()));
+        putFrame(frame.buffer(), Protocol.CHAT, sender, 0, received.duplicate());
+        frame.buffer().flip();
+        message.borrowed = frame;
+        ByteBuffer view = frame.buffer().asReadOnlyBuffer();
+        message.binaryFrame = view;
+        message.payload = view.slice(view.limit() - received.remaining(), received.remaining());
+        return message;
+    }
+
+    /**
+     * Method which creates the copy of this message that
+     * is sent back to its sender, with the same sequence number.
+     * A pooled echo holds a reference to this message, whose
+     * payload it shares, until it is released itself.
+     * @return message sharing this message's payload, with one
+     *         reference held by the caller
+     */
+    public Message echo() {
+        Message echo;
+        if (pool == null) {
+            echo = new Message(Protocol.ECHO, sender, text, payload, null);
+        }
+        else {
+            echo = new Message(Protocol.ECHO, sender, text, payload, pool, retain());
+        }
+        echo.sequence = sequence;
+        return echo;
+    }
+
+    /**
+     * Method which adds a reference to a pooled message
+     * @return this message
+     */
+    public Message retain() {
+        if (pool != null) {
+            REFERENCES.incrementAndGet(this);
+        }
+        return this;
+    }
+
+    /**
+     * Method which removes a reference to a pooled message,
+     * giving its frames back to the pool once none are left
+     */
+    public void release() {
+        if (pool == null) {
+            return;
+        }
+        if (references == 1) {
+            //Only the last holder can see 1, and nobody else can retain it
+            REFERENCES.lazySet(this, 0);
+        }
+        else if (REFERENCES.decrementAndGet(this) != 0) {
+            return;
+        }
+        PooledBuffer frame = borrowed;
+        while (frame != null) {
+            PooledBuffer next = frame.next;
+            frame.next = null;
+            frame.release();
+            frame = next;
+        }
+        if (parent != null) {
+            parent.release();
+        }
+    }
+
+    /**
+     * Method which returns the message as text, decoding
+     * the payload the first time it is needed
+     * @return String text
+     */
+    public String getText() {
+        String decoded = text;
+        if (decoded == null) {
+            decoded = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+            text = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Method which returns the message as UTF-8 bytes,
+     * encoding the text the first time it is needed
+     * @return read-only ByteBuffer payload
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer encoded = payload;
+        if (encoded == null) {
+            encoded = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            payload = encoded;
+        }
+        return encoded.duplicate();
+    }
+
+    /**
+     * Method which returns the message as it is written to
+     * a client. The caller gets its own position over the
+     * shared bytes.
+     * @param binary true if the client uses binary framing
+     * @return encoded message
+     */
+    public ByteBuffer encoded(boolean binary) {
+        ByteBuffer frame = binary ? binaryFrame : textFrame;
+        if (frame == null) {
+            frame = build(binary ? BINARY_FRAME : TEXT_FRAME, binary, 0);
+        }
+        return frame.duplicate();
+    }
+
+    /**
+     * Method which returns the message as it is written to a
+     * client which has resumed. Messages without a sequence
+     * number are written as to any other client.
+     * @param binary true if the client uses binary framing
+     * @param sequenced true if the client is sent sequence numbers
+     * @return encoded message
+     */
+    public ByteBuffer encoded(boolean binary, boolean sequenced) {
+        if (!sequenced || sequence == 0) {
+            return encoded(binary);
+        }
+        ByteBuffer frame = binary ? sequencedBinary : sequencedText;
+        if (frame == null) {
+            frame = build(binary ? SEQUENCED_BINARY : SEQUENCED_TEXT, binary, sequence);
+        }
+        return frame.duplicate();
+    }
+
+    /**
+     * Method which returns the message as it is written to a
+     * client which may be sent compressed frames. Payloads the
+     * compressor turns down are written as to any other client.
+     * @param binary true if the client uses binary framing
+     * @param sequenced true if the client is sent sequence numbers
+     * @param compressor compressor of the server, or null if the
+     *                   client is not sent compressed frames
+     * @return encoded message
+     */
+    public ByteBuffer encoded(boolean binary, boolean sequenced, Compressor compressor) {
+        //The hello has no payload and is never compressed
+        if (compressor == null || !binary || type == Protocol.HELLO || !compressor.accepts(getPayload().remaining())) {
+            return encoded(binary, sequenced);
+        }
+        long number = sequenced ? sequence : 0;
+        ByteBuffer frame = number != 0 ? sequencedCompressed : compressedFrame;
+        if (frame == null) {
+            frame = buildCompressed(number != 0 ? SEQUENCED_COMPRESSED : COMPRESSED_FRAME, number, compressor);
+        }
+        return frame.duplicate();
+    }
+
+    /**
+     * Method which builds one form of the message the first time
+     * it is needed, in a buffer borrowed from the pool if the
+     * message has one. If two threads build it at once, the one
+     * which loses uses the other's and gives its buffer back.
+     * @param field field the form is kept in
+     * @param binary true for a binary frame, false for a line
+     * @param number sequence number to include, 0 for none
+     * @return read-only buffer holding the form
+     */
+    private ByteBuffer build(AtomicReferenceFieldUpdater<Message, ByteBuffer> field, boolean binary, long number) {
+        ByteBuffer payload = getPayload();
+        byte frameType = number != 0 ? (byte) (type | Protocol.SEQUENCED) : type;
+        int size = binary ? frameSize(frameType, sender, number, payload.remaining())
+                : lineSize(number, payload.remaining());
+        PooledBuffer frame = pool == null ? null : pool.acquire(size);
+        ByteBuffer out = frame == null ? ByteBuffer.allocate(size) : frame.buffer();
+        if (binary) {
+            putFrame(out, frameType, sender, number, payload);
+        }
+        else {
+            putLine(out, number, payload);
+        }
+        out.flip();
+        return install(field, out.asReadOnlyBuffer(), frame);
+    }
+
+    /**
+     * Method which builds a compressed binary frame the first time
+     * it is needed. The payload is compressed straight into the
+     * frame, after room for the longest header it could need; the
+     * header is then written just in front of it. A payload which
+     * does not get smaller is sent as it is.
+     * @param field field the form is kept in
+     * @param number sequence number to include, 0 for none
+     * @param compressor compressor of the server
+     * @return read-only buffer holding the form
+     */
+    private ByteBuffer buildCompressed(AtomicReferenceFieldUpdater<Message, ByteBuffer> field, long number,
+                                       Compressor compressor) {
+        ByteBuffer payload = getPayload();
+        byte frameType = (byte) ((number != 0 ? type | Protocol.SEQUENCED : type) | Protocol.COMPRESSED);
+        //Only worth sending if it is smaller than the payload
+        int most = payload.remaining() - 1;
+        int size = frameSize(frameType, sender, number, most);
+        int header = size - most;
+        PooledBuffer frame = pool == null ? null : pool.acquire(size);
+        ByteBuffer out = frame == null ? ByteBuffer.allocate(size) : frame.buffer();
+        out.limit(size).position(header);
+        if (!compressor.deflate(payload, out)) {
+            if (frame != null) {
+                frame.release();
+            }
+            return install(field, encoded(true, number != 0), null);
+        }
+        int end = out.position();
+        int length = 1 + varintSize(sender) + (number != 0 ? varintSize(number) : 0) + end - header;
+        int start = header - (varintSize(length) + length - (end - header));
+        out.position(start);
+        putVarint(out, length);
+        out.put(frameType);
+        putVarint(out, sender);
+        if (number != 0) {
+            putVarint(out, number);
+        }
+        out.limit(end).position(start);
+        return install(field, out.slice().asReadOnlyBuffer(), frame);
+    }
+
+    /**
+     * Method which keeps a form of the message once built. If two
+     * threads build it at once, the one which loses uses the
+     * other's and gives its buffer back.
+     * @param field field the form is kept in
+     * @param built form just built
+     * @param frame buffer borrowed for it, or null
+     * @return read-only buffer holding the form
+     */
+    private ByteBuffer install(AtomicReferenceFieldUpdater<Message, ByteBuffer> field, ByteBuffer built,
+                               PooledBuffer frame) {
+        if (!field.compareAndSet(this, null, built)) {
+            if (frame != null) {
+                frame.release();
+            }
+            return field.get(this);
+        }
+        if (frame != null) {
+            //Kept until the last reference to the message is released
+            PooledBuffer head;
+            do {
+                head = borrowed;
+                frame.next = head;
+            } while (!BORROWED.compareAndSet(this, head, frame));
+        }
+        return built;
+    }
+
+    /**
+     * Method which returns how many bytes a line of the
+     * text protocol takes
+     * @param sequence sequence number to start the line with, 0 for none
+     * @param payloadSize bytes of the payload
+     * @return size in bytes
+     */
+    private int lineSize(long sequence, int payloadSize) {
+        int size = 0;
+        if (sequence != 0) {
+            size += 2 + decimalSize(sequence);
+        }
+        byte[] second = secondPart();
+        size += firstPart().length + (second == null ? 0 : decimalSize(sender) + second.length);
+        return size + payloadSize + 1;
+    }
+
+    /**
+     * Method which writes the message as a line of the text
+     * protocol, with the same bytes as the line would have
+     * been built as a String and then encoded
+     * @param out buffer to write to
+     * @param sequence sequence number to start the line with, 0 for none
+     * @param payload encoded message
+     */
+    private void putLine(ByteBuffer out, long sequence, ByteBuffer payload) {
+        if (sequence != 0) {
+            out.put((byte) '#');
+            putDecimal(out, sequence);
+            out.put((byte) ' ');
+        }
+        out.put(firstPart());
+        byte[] second = secondPart();
+        if (second != null) {
+            putDecimal(out, sender);
+            out.put(second);
+        }
+        out.put(payload).put((byte) '\n');
+    }
+
+    /**
+     * Method which returns the start of the line for this type
+     * @return ASCII bytes before the sender's number
+     */
+    private byte[] firstPart() {
+        switch (type) {
+            case Protocol.ECHO:
+                return YOU;
+            case Protocol.NOTICE:
+                return SERVER;
+            case Protocol.DIRECT_ECHO:
+                return YOU_TO;
+            default:
+                return CLIENT;
+        }
+    }
+
+    /**
+     * Method which returns what follows the sender's number
+     * @return ASCII bytes, or null if the number is not shown
+     */
+    private byte[] secondPart() {
+        switch (type) {
+            case Protocol.ECHO:
+            case Protocol.NOTICE:
+                return null;
+            case Protocol.DIRECT:
+                return PRIVATE;
+            case Protocol.DIRECT_ECHO:
+                return CLOSE_COLON;
+            default:
+                return COLON;
+        }
+    }
+
+    /**
+     * Method which checks if this message may be a command.
+     * Binary payloads are only decoded if they start with '/'.
+     * @return true if the message starts with '/'
+     */
+    public boolean isCommand() {
+        String decoded = text;
+        if (decoded != null) {
+            return decoded.startsWith("/");
+        }
+        return payload.hasRemaining() && payload.get(payload.position()) == '/';
+    }
+
+    /**
+     * Method which checks if this message is the hello
+     * which switches a client to binary framing
+     * @return true if it is the hello
+     */
+    public boolean isHello() {
+        return type == Protocol.HELLO;
+    }
+
+    /**
+     * Get method for the sender's client number
+     * @return int sender
+     */
+    public int getSender() {
+        return sender;
+    }
+
+    /**
+     * Get method for the message's place in its room's history
+     * @return long sequence, 0 if it was not kept
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set method for the message's place in its room's history
+     * @param sequence number given by the history
+     */
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Method which builds a binary frame
+     * @param type frame type
+     * @param sender client number of the sender
+     * @param payload encoded message
+     * @return read-only buffer holding the frame
+     */
+    private static ByteBuffer frame(byte type, int sender, ByteBuffer payload) {
+        return frame(type, sender, 0, payload);
+    }
+
+    /**
+     * Method which builds a binary frame, with a sequence
+     * number if the type has the SEQUENCED bit set
+     * @param type frame type
+     * @param sender client number of the sender
+     * @param sequence sequence number of the message
+     * @param payload encoded message
+     * @return read-only buffer holding the frame
+     */
+    private static ByteBuffer frame(byte type, int sender, long sequence, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(frameSize(type, sender, sequence, payload.remaining()));
+        putFrame(frame, type, sender, sequence, payload);
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Method which returns how many bytes a binary frame takes
+     * @param type frame type
+     * @param sender client number of the sender
+     * @param sequence sequence number, only counted if the
+     *                 type has the SEQUENCED bit set
+     * @param payloadSize bytes of the payload
+     * @return size in bytes, including the length
+     */
+    private static int frameSize(byte type, int sender, long sequence, int payloadSize) {
+        int length = 1 + varintSize(sender) + ((type & Protocol.SEQUENCED) != 0 ? varintSize(sequence) : 0) + payloadSize;
+        return varintSize(length) + length;
+    }
+
+    /**
+     * Method which writes a binary frame, with a sequence
+     * number if the type has the SEQUENCED bit set
+     * @param out buffer to write to
+     * @param type frame type
+     * @param sender client number of the sender
+     * @param sequence sequence number of the message
+     * @param payload encoded message
+     */
+    private static void putFrame(ByteBuffer out, byte type, int sender, long sequence, ByteBuffer payload) {
+        boolean sequenced = (type & Protocol.SEQUENCED) != 0;
+        int length = 1 + varintSize(sender) + (sequenced ? varintSize(sequence) : 0) + payload.remaining();
+        putVarint(out, length);
+        out.put(type);
+        putVarint(out, sender);
+        if (sequenced) {
+            putVarint(out, sequence);
+        }
+        out.put(payload);
+    }
+
+    /**
+     * Method which returns how many digits a number takes
+     * @param value non-negative value
+     * @return size in bytes
+     */
+    private static int decimalSize(long value) {
+        int size = 1;
+        while ((value /= 10) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Method which writes a number as ASCII digits
+     * @param out buffer to write to
+     * @param value non-negative value
+     */
+    private static void putDecimal(ByteBuffer out, long value) {
+        int end = out.position() + decimalSize(value);
+        for (int at = end - 1; at >= out.position(); at--) {
+            out.put(at, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(end);
+    }
+
+    /**
+     * Method which encodes text known to be ASCII
+     * @param text text to be encoded
+     * @return bytes of the text
+     */
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Method which returns how many bytes a varint takes
+     * @param value non-negative value
+     * @return size in bytes
+     */
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Method which writes an unsigned varint, seven bits per byte
+     * with the high bit set on every byte but the last
+     * @param buffer buffer to write to
+     * @param value non-negative value
+     */
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Method which reads an unsigned varint
+     * @param buffer buffer to read from
+     * @return the value, or -1 if the buffer ends first or
+     *         the varint is longer than five bytes
+     */
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,701 @@
+package chat.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Class that counts what the server does. Counters are striped
+ * LongAdders so threads recording at the same time do not contend,
+ * and nothing allocates when recording. Gauges such as the number
+ * of clients and their queue depths are only read when the metrics
+ * are scraped. Published in the Prometheus text format over HTTP
+ * and as an MBean over JMX.
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * Why a client was disconnected
+     */
+    public enum Reason {
+        //Client closed the connection
+        CLOSED,
+        //Socket failed while reading or writing
+        ERROR,
+        //Client sent a malformed or oversized message
+        PROTOCOL,
+        //Client did not keep up with its outbound queue
+        SLOW,
+        //Client sent faster than its limits
+        FLOOD
+    }
+
+    /**
+     * Class that counts durations in buckets whose upper
+     * bounds double from 1 microsecond to about 1 second
+     */
+    static class Histogram {
+        //Upper bound of the first bucket is 2^10 nanoseconds
+        private static final int FIRST_SHIFT = 10;
+        private static final int BUCKETS = 21;
+
+        private final LongAdder[] counts;
+        private final LongAdder sum;
+
+        Histogram() {
+            //One more for values above the last bound
+            counts = new LongAdder[BUCKETS + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+            sum = new LongAdder();
+        }
+
+        /**
+         * Method which records one duration
+         * @param nanos duration in nanoseconds
+         */
+        void record(long nanos) {
+            //Smallest bucket whose bound is at least nanos
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos - 1)) - FIRST_SHIFT;
+            counts[Math.max(0, Math.min(bucket, BUCKETS))].increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * Method which returns the upper bound of a bucket
+         * @param bucket index of the bucket
+         * @return bound in nanoseconds
+         */
+        static long bound(int bucket) {
+            return 1L << (FIRST_SHIFT + bucket);
+        }
+
+        /**
+         * Method which returns the bound below which the given
+         * percentage of durations fall
+         * @param percentile between 0 and 100
+         * @return bound in nanoseconds, 0 if nothing was recorded
+         */
+        long percentile(double percentile) {
+            long[] snapshot = new long[counts.length];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                snapshot[i] = counts[i].sum();
+                count += snapshot[i];
+            }
+            long wanted = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= wanted && seen > 0) {
+                    return bound(i);
+                }
+            }
+            return count == 0 ? 0 : bound(BUCKETS);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder adder : counts) {
+                count += adder.sum();
+            }
+            return count;
+        }
+    }
+
+    private final ConnectionRegistry<ServerConnection> registry;
+    private final Rooms rooms;
+    private final AsyncLogger logger;
+    //Null if room messages are not kept on disk
+    private final Journal journal;
+    //Null if the server is not part of a cluster
+    private final Cluster cluster;
+    //Null if buffers are not pooled
+    private final BufferPool pool;
+    private final LongAdder accepts;
+    private final LongAdder messagesIn;
+    private final LongAdder deliveries;
+    private final LongAdder directMessages;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final Histogram fanOut;
+    private final LongAdder[] disconnects;
+    private final LongAdder[] refusals;
+    private final LongAdder floodDropped;
+    private final LongAdder throttles;
+    private final Histogram acceptQueue;
+    private final LongAdder tlsFull;
+    private final LongAdder tlsResumed;
+    private final LongAdder tlsFailures;
+    private final Histogram tlsHandshake;
+    private final LongAdder compressedFrames;
+    private final LongAdder compressionRaw;
+    private final LongAdder compressionSent;
+    private final LongAdder compressionNanos;
+
+    /**
+     * Constructor for Metrics
+     * @param registry connected clients, read for the gauges
+     * @param rooms chat rooms, read for the gauges
+     * @param logger the server's logger, read for dropped lines
+     * @param journal the server's journal or null, read for its counters
+     * @param cluster the server's cluster or null, read for its counters
+     * @param pool the server's buffer pool or null, read for its counters
+     */
+    public Metrics(ConnectionRegistry<ServerConnection> registry, Rooms rooms, AsyncLogger logger, Journal journal,
+                   Cluster cluster, BufferPool pool) {
+        this.registry = registry;
+        this.rooms = rooms;
+        this.logger = logger;
+        this.journal = journal;
+        this.cluster = cluster;
+        this.pool = pool;
+        this.accepts = new LongAdder();
+        this.messagesIn = new LongAdder();
+        this.deliveries = new LongAdder();
+        this.directMessages = new LongAdder();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+        this.fanOut = new Histogram();
+        this.disconnects = new LongAdder[Reason.values().length];
+        for (int i = 0; i < disconnects.length; i++) {
+            disconnects[i] = new LongAdder();
+        }
+        this.refusals = new LongAdder[ConnectionLimiter.Limit.values().length];
+        for (int i = 0; i < refusals.length; i++) {
+            refusals[i] = new LongAdder();
+        }
+        this.acceptQueue = new Histogram();
+        this.floodDropped = new LongAdder();
+        this.throttles = new LongAdder();
+        this.tlsFull = new LongAdder();
+        this.tlsResumed = new LongAdder();
+        this.tlsFailures = new LongAdder();
+        this.tlsHandshake = new Histogram();
+        this.compressedFrames = new LongAdder();
+        this.compressionRaw = new LongAdder();
+        this.compressionSent = new LongAdder();
+        this.compressionNanos = new LongAdder();
+    }
+
+    /**
+     * Method which counts an accepted connection
+     */
+    public void accepted() {
+        accepts.increment();
+    }
+
+    /**
+     * Method which counts a connection closed straight
+     * after it was accepted
+     * @param limit the rate limit it was over
+     */
+    public void refused(ConnectionLimiter.Limit limit) {
+        refusals[limit.ordinal()].increment();
+    }
+
+    /**
+     * Method which records how long an accepted connection
+     * waited before a worker started serving it
+     * @param nanos time from accept to being served
+     */
+    public void handedOff(long nanos) {
+        acceptQueue.record(nanos);
+    }
+
+    /**
+     * Method which counts a message dropped because its
+     * sender was over its limits
+     */
+    public void floodDropped() {
+        floodDropped.increment();
+    }
+
+    /**
+     * Method which counts a pause in reading from a client
+     * sending faster than its limits
+     */
+    public void throttled() {
+        throttles.increment();
+    }
+
+    /**
+     * Method which counts a message received from a client
+     */
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Method which records one broadcast
+     * @param recipients number of clients the message was queued for
+     * @param nanos time taken to queue it for all of them
+     */
+    public void fanOut(int recipients, long nanos) {
+        deliveries.add(recipients);
+        fanOut.record(nanos);
+    }
+
+    /**
+     * Method which counts a direct message delivered
+     */
+    public void directMessage() {
+        directMessages.increment();
+    }
+
+    /**
+     * Method which counts bytes read from a client
+     * @param bytes number of bytes
+     */
+    public void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Method which counts bytes written to a client
+     * @param bytes number of bytes
+     */
+    public void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Method which records a finished TLS handshake
+     * @param nanos time from the connection being served
+     *              to the handshake finishing
+     * @param resumed true if an earlier session was resumed
+     */
+    public void tlsHandshake(long nanos, boolean resumed) {
+        (resumed ? tlsResumed : tlsFull).increment();
+        tlsHandshake.record(nanos);
+    }
+
+    /**
+     * Method which counts a TLS handshake that failed
+     */
+    public void tlsFailed() {
+        tlsFailures.increment();
+    }
+
+    /**
+     * Method which records a payload compressed once for every
+     * client it is sent to
+     * @param raw bytes of the payload
+     * @param sent bytes it was compressed to, or raw if it
+     *             did not get smaller and is sent as it is
+     * @param nanos time taken to compress it
+     */
+    public void compressed(int raw, int sent, long nanos) {
+        compressedFrames.increment();
+        compressionRaw.add(raw);
+        compressionSent.add(sent);
+        compressionNanos.add(nanos);
+    }
+
+    /**
+     * Method which counts a disconnected client
+     * @param reason why it was disconnected
+     */
+    public void disconnected(Reason reason) {
+        disconnects[reason.ordinal()].increment();
+    }
+
+    /**
+     * Method which publishes the metrics over JMX
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("ChatServer:type=Metrics"));
+        }
+        catch (Exception e) {
+            System.out.println("Unable to publish metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Method which serves the metrics in the Prometheus text
+     * format at /metrics on the loopback interface
+     * @param port port of the HTTP server
+     * @throws IOException if the port cannot be bound
+     */
+    public void serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        //Default executor serves requests on the server's own thread
+        http.start();
+    }
+
+    /**
+     * Method which writes every metric in the Prometheus
+     * text exposition format
+     * @return the metrics
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(2048);
+        metric(out, "chat_accepts_total", "counter", "Connections accepted.", accepts.sum());
+        metric(out, "chat_connections", "gauge", "Clients connected.", getConnections());
+        metric(out, "chat_rooms", "gauge", "Rooms with at least one client, plus the default room.", rooms.size());
+        metric(out, "chat_history_messages", "gauge", "Messages kept for late joiners, all rooms.",
+                rooms.getHistoryCount());
+        metric(out, "chat_history_bytes", "gauge", "Bytes kept for late joiners, all rooms.", rooms.getHistoryBytes());
+        metric(out, "chat_messages_in_total", "counter", "Messages received from clients.", messagesIn.sum());
+        metric(out, "chat_deliveries_total", "counter", "Messages queued for clients.", deliveries.sum());
+        metric(out, "chat_flood_dropped_total", "counter", "Messages dropped for being over the sender's limits.",
+                floodDropped.sum());
+        metric(out, "chat_flood_throttles_total", "counter", "Pauses in reading from clients over their limits.",
+                throttles.sum());
+        metric(out, "chat_direct_messages_total", "counter", "Direct messages delivered.", directMessages.sum());
+        metric(out, "chat_bytes_in_total", "counter", "Bytes read from clients.", bytesIn.sum());
+        metric(out, "chat_bytes_out_total", "counter", "Bytes written to clients.", bytesOut.sum());
+        long[] depth = queueDepth();
+        metric(out, "chat_outbound_queue_depth", "gauge", "Messages waiting to be written, all clients.", depth[0]);
+        metric(out, "chat_outbound_queue_depth_max", "gauge", "Messages waiting to be written, longest queue.", depth[1]);
+        metric(out, "chat_log_lines_dropped_total", "counter", "Log lines dropped because the buffer was full.",
+                logger.getDropped());
+        if (journal != null) {
+            metric(out, "chat_journal_records_total", "counter", "Messages written to the journal.",
+                    journal.getRecords());
+            metric(out, "chat_journal_commits_total", "counter", "Times the journal was forced to disk.",
+                    journal.getCommits());
+            metric(out, "chat_journal_dropped_total", "counter", "Messages not saved because the journal fell behind.",
+                    journal.getDropped());
+            metric(out, "chat_journal_bytes", "gauge", "Bytes kept in journal segments.", journal.getBytes());
+        }
+        if (cluster != null) {
+            metric(out, "chat_cluster_links_up", "gauge", "Other nodes this node is sending to.",
+                    cluster.getLinksUp());
+            metric(out, "chat_cluster_relayed_total", "counter", "Records queued for other nodes, once per node.",
+                    cluster.getRelayed());
+            metric(out, "chat_cluster_received_total", "counter", "Records received from other nodes.",
+                    cluster.getReceived());
+            metric(out, "chat_cluster_duplicates_total", "counter", "Records received again and skipped.",
+                    cluster.getDuplicates());
+            metric(out, "chat_cluster_dropped_total", "counter", "Records not relayed because a node fell behind.",
+                    cluster.getDropped());
+        }
+        if (pool != null) {
+            metric(out, "chat_pool_hits_total", "counter", "Buffers borrowed from those kept idle.", pool.getHits());
+            metric(out, "chat_pool_misses_total", "counter", "Buffers which had to be allocated.", pool.getMisses());
+            metric(out, "chat_pool_leaks_total", "counter", "Buffers collected without being released.",
+                    pool.getLeaks());
+            metric(out, "chat_pool_idle_bytes", "gauge", "Bytes of buffers kept idle for reuse.",
+                    pool.getIdleBytes());
+        }
+
+        out.append("# HELP chat_disconnects_total Clients disconnected, by reason.\n");
+        out.append("# TYPE chat_disconnects_total counter\n");
+        for (Reason reason : Reason.values()) {
+            out.append("chat_disconnects_total{reason=\"").append(reason.name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(disconnects[reason.ordinal()].sum()).append('\n');
+        }
+
+        out.append("# HELP chat_accepts_refused_total Connections closed for being over a rate limit, by limit.\n");
+        out.append("# TYPE chat_accepts_refused_total counter\n");
+        for (ConnectionLimiter.Limit limit : ConnectionLimiter.Limit.values()) {
+            out.append("chat_accepts_refused_total{limit=\"").append(limit.name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(refusals[limit.ordinal()].sum()).append('\n');
+        }
+
+        out.append("# HELP chat_tls_handshakes_total TLS handshakes finished, by whether a session was resumed.\n");
+        out.append("# TYPE chat_tls_handshakes_total counter\n");
+        out.append("chat_tls_handshakes_total{resumed=\"false\"} ").append(tlsFull.sum()).append('\n');
+        out.append("chat_tls_handshakes_total{resumed=\"true\"} ").append(tlsResumed.sum()).append('\n');
+        metric(out, "chat_tls_handshake_failures_total", "counter", "TLS handshakes which failed.",
+                tlsFailures.sum());
+
+        metric(out, "chat_compressed_frames_total", "counter", "Payloads compressed, once however many clients get them.",
+                compressedFrames.sum());
+        out.append("# HELP chat_compression_bytes_total Bytes of the payloads compressed, before and after.\n");
+        out.append("# TYPE chat_compression_bytes_total counter\n");
+        out.append("chat_compression_bytes_total{form=\"raw\"} ").append(compressionRaw.sum()).append('\n');
+        out.append("chat_compression_bytes_total{form=\"compressed\"} ").append(compressionSent.sum()).append('\n');
+        out.append("# HELP chat_compression_seconds_total Time spent compressing payloads.\n");
+        out.append("# TYPE chat_compression_seconds_total counter\n");
+        out.append("chat_compression_seconds_total ").append(compressionNanos.sum() / 1e9).append('\n');
+
+        histogram(out, "chat_fanout_seconds", "Time to queue one message for every client.", fanOut);
+        histogram(out, "chat_accept_queue_seconds", "Time from accept until a worker serves the connection.",
+                acceptQueue);
+        histogram(out, "chat_tls_handshake_seconds", "Time from serving a connection to its TLS handshake finishing.",
+                tlsHandshake);
+        return out.toString();
+    }
+
+    /**
+     * Method which writes a histogram with its help and type
+     * @param out where the histogram is written
+     * @param name name of the histogram
+     * @param help description of the histogram
+     * @param histogram durations recorded
+     */
+    private static void histogram(StringBuilder out, String name, String help, Histogram histogram) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BUCKETS; i++) {
+            cumulative += histogram.counts[i].sum();
+            out.append(name).append("_bucket{le=\"").append(Histogram.bound(i) / 1e9).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += histogram.counts[Histogram.BUCKETS].sum();
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(histogram.sum.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    /**
+     * Method which writes one metric with its help and type
+     * @param out where the metric is written
+     * @param name name of the metric
+     * @param type counter or gauge
+     * @param help description of the metric
+     * @param value current value
+     */
+    private static void metric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Method which adds up the queue depth of every client
+     * @return total depth and the longest queue
+     */
+    private long[] queueDepth() {
+        long total = 0;
+        long max = 0;
+        for (ServerConnection connection : registry) {
+            int depth = connection.getQueueDepth();
+            total += depth;
+            max = Math.max(max, depth);
+        }
+        return new long[] {total, max};
+    }
+
+    @Override
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    @Override
+    public long getAcceptsRefusedAddress() {
+        return refusals[ConnectionLimiter.Limit.ADDRESS.ordinal()].sum();
+    }
+
+    @Override
+    public long getAcceptsRefusedServer() {
+        return refusals[ConnectionLimiter.Limit.SERVER.ordinal()].sum();
+    }
+
+    @Override
+    public double getAcceptQueueP99Micros() {
+        return acceptQueue.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public int getConnections() {
+        return registry.size();
+    }
+
+    @Override
+    public int getRooms() {
+        return rooms.size();
+    }
+
+    @Override
+    public long getHistoryMessages() {
+        return rooms.getHistoryCount();
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        return rooms.getHistoryBytes();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getFanOutMeanMicros() {
+        long count = fanOut.count();
+        return count == 0 ? 0 : fanOut.sum.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public double getFanOutP99Micros() {
+        return fanOut.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth()[0];
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return queueDepth()[1];
+    }
+
+    @Override
+    public long getDisconnectsClosed() {
+        return disconnects[Reason.CLOSED.ordinal()].sum();
+    }
+
+    @Override
+    public long getDisconnectsError() {
+        return disconnects[Reason.ERROR.ordinal()].sum();
+    }
+
+    @Override
+    public long getDisconnectsProtocol() {
+        return disconnects[Reason.PROTOCOL.ordinal()].sum();
+    }
+
+    @Override
+    public long getDisconnectsSlow() {
+        return disconnects[Reason.SLOW.ordinal()].sum();
+    }
+
+    @Override
+    public long getDisconnectsFlood() {
+        return disconnects[Reason.FLOOD.ordinal()].sum();
+    }
+
+    @Override
+    public long getFloodDropped() {
+        return floodDropped.sum();
+    }
+
+    @Override
+    public long getFloodThrottles() {
+        return throttles.sum();
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return logger.getDropped();
+    }
+
+    @Override
+    public long getJournalRecords() {
+        return journal == null ? 0 : journal.getRecords();
+    }
+
+    @Override
+    public long getJournalCommits() {
+        return journal == null ? 0 : journal.getCommits();
+    }
+
+    @Override
+    public long getJournalDropped() {
+        return journal == null ? 0 : journal.getDropped();
+    }
+
+    @Override
+    public long getClusterRelayed() {
+        return cluster == null ? 0 : cluster.getRelayed();
+    }
+
+    @Override
+    public long getClusterReceived() {
+        return cluster == null ? 0 : cluster.getReceived();
+    }
+
+    @Override
+    public long getClusterDuplicates() {
+        return cluster == null ? 0 : cluster.getDuplicates();
+    }
+
+    @Override
+    public long getClusterDropped() {
+        return cluster == null ? 0 : cluster.getDropped();
+    }
+
+    @Override
+    public long getPoolHits() {
+        return pool == null ? 0 : pool.getHits();
+    }
+
+    @Override
+    public long getPoolMisses() {
+        return pool == null ? 0 : pool.getMisses();
+    }
+
+    @Override
+    public long getPoolLeaks() {
+        return pool == null ? 0 : pool.getLeaks();
+    }
+
+    @Override
+    public long getTlsHandshakes() {
+        return tlsFull.sum() + tlsResumed.sum();
+    }
+
+    @Override
+    public long getTlsResumed() {
+        return tlsResumed.sum();
+    }
+
+    @Override
+    public long getTlsFailures() {
+        return tlsFailures.sum();
+    }
+
+    @Override
+    public double getTlsHandshakeP99Micros() {
+        return tlsHandshake.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionRaw.sum() - compressionSent.sum();
+    }
+
+    @Override
+    public double getCompressionMicros() {
+        return compressionNanos.sum() / 1000.0;
+    }
+}
@@ -0,0 +1,92 @@
+package chat.server;
+
+/**
+ * Interface through which the server metrics are
+ * published over JMX as ChatServer:type=Metrics
+ */
+public interface MetricsMBean {
+
+    long getAccepts();
+
+    long getAcceptsRefusedAddress();
+
+    long getAcceptsRefusedServer();
+
+    double getAcceptQueueP99Micros();
+
+    int getConnections();
+
+    int getRooms();
+
+    long getHistoryMessages();
+
+    long getHistoryBytes();
+
+    long getMessagesIn();
+
+    long getDeliveries();
+
+    long getDirectMessages();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getFanOutMeanMicros();
+
+    double getFanOutP99Micros();
+
+    long getQueueDepth();
+
+    long getQueueDepthMax();
+
+    long getDisconnectsClosed();
+
+    long getDisconnectsError();
+
+    long getDisconnectsProtocol();
+
+    long getDisconnectsSlow();
+
+    long getDisconnectsFlood();
+
+    long getFloodDropped();
+
+    long getFloodThrottles();
+
+    long getLogLinesDropped();
+
+    long getJournalRecords();
+
+    long getJournalCommits();
+
+    long getJournalDropped();
+
+    long getClusterRelayed();
+
+    long getClusterReceived();
+
+    long getClusterDuplicates();
+
+    long getClusterDropped();
+
+    long getPoolHits();
+
+    long getPoolMisses();
+
+    long getPoolLeaks();
+
+    long getTlsHandshakes();
+
+    long getTlsResumed();
+
+    long getTlsFailures();
+
+    double getTlsHandshakeP99Micros();
+
+    long getCompressedFrames();
+
+    long getCompressionSavedBytes();
+
+    double getCompressionMicros();
+}
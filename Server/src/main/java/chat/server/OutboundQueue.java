@@ -0,0 +1,207 @@
+package chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that holds the messages waiting to be written to
+ * one client. Senders only enqueue and a single writer drains
+ * the queue, so a slow client no longer holds up the sender.
+ * The queue holds a reference to each pooled message in it;
+ * the writer takes the reference over and releases it once
+ * the message is written.
+ */
+public class OutboundQueue {
+
+    /**
+     * What happens when a message is sent to a full queue
+     */
+    public enum OverflowPolicy {
+        //Discard the oldest queued message to make room
+        DROP_OLDEST,
+        //Disconnect the client that is not keeping up
+        DISCONNECT,
+        //Wait until the writer makes room
+        BLOCK
+    }
+
+    //Marks the end of the queue for the writer
+    static final Message CLOSED = Message.chat(0, "");
+
+    private BlockingQueue<Message> queue;
+    private OverflowPolicy policy;
+    private AtomicLong dropped;
+    private volatile boolean closed;
+
+    /**
+     * Constructor for OutboundQueue
+     * @param capacity maximum number of queued messages
+     * @param policy what to do when the queue is full
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Method which adds a message to the queue
+     * @param message message to be sent
+     * @param mayBlock false if the caller must never wait, in
+     *                 which case BLOCK behaves like DROP_OLDEST
+     * @return false if the client should be disconnected
+     */
+    public boolean offer(Message message, boolean mayBlock) {
+        if (closed) {
+            return true;
+        }
+        message.retain();
+        boolean keep = enqueue(message, mayBlock);
+        if (closed) {
+            //close() may have run since the check above and left the message behind CLOSED
+            if (discard()) {
+                end();
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Method which adds a retained message to the queue,
+     * applying the overflow policy if it is full
+     * @param message message to be sent
+     * @param mayBlock false if the caller must never wait
+     * @return false if the client should be disconnected
+     */
+    private boolean enqueue(Message message, boolean mayBlock) {
+        if (queue.offer(message)) {
+            return true;
+        }
+        if (policy == OverflowPolicy.DISCONNECT) {
+            message.release();
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (policy == OverflowPolicy.BLOCK && mayBlock) {
+            try {
+                queue.put(message);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                message.release();
+                dropped.incrementAndGet();
+            }
+            return true;
+        }
+        //Make room by discarding the oldest messages
+        while (!queue.offer(message)) {
+            Message oldest = queue.poll();
+            if (oldest == CLOSED) {
+                //Closed meanwhile, so the message will never be written
+                message.release();
+                end();
+                return true;
+            }
+            if (oldest != null) {
+                oldest.release();
+                dropped.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method which takes the next message, waiting
+     * until one is available
+     * @return the next message or CLOSED
+     * @throws InterruptedException if the writer is interrupted
+     */
+    public Message take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Method which takes the next message if there is one
+     * @return the next message, CLOSED or null if empty
+     */
+    public Message poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Method which takes the next message, waiting
+     * up to the given time for one to arrive
+     * @param nanos longest time to wait in nanoseconds
+     * @return the next message, CLOSED or null if none arrived
+     * @throws InterruptedException if the writer is interrupted
+     */
+    public Message poll(long nanos) throws InterruptedException {
+        return queue.poll(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Method which discards all queued messages and
+     * tells the writer to stop
+     */
+    public void close() {
+        closed = true;
+        end();
+    }
+
+    /**
+     * Method which empties the queue and leaves CLOSED as the
+     * only thing in it for the writer to find
+     */
+    private void end() {
+        //A blocked sender may take the freed space first
+        do {
+            discard();
+        } while (!queue.offer(CLOSED));
+    }
+
+    /**
+     * Method which releases every queued message
+     * @return true if CLOSED was taken out with them
+     */
+    private boolean discard() {
+        boolean end = false;
+        Message message;
+        while ((message = queue.poll()) != null) {
+            if (message == CLOSED) {
+                end = true;
+            }
+            else {
+                message.release();
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Get method for the number of queued messages
+     * @return int depth
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get method for the number of messages that can
+     * be queued before the queue is full
+     * @return int free
+     */
+    public int getFree() {
+        return queue.remainingCapacity();
+    }
+
+    /**
+     * Get method for the number of messages dropped
+     * because the queue was full
+     * @return long dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,103 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Class that holds a direct buffer borrowed from a BufferPool,
+ * with a count of the references to it. The buffer goes back to
+ * the pool when the last reference is released, so whoever keeps
+ * the buffer, or a view of it, must hold a reference. A release
+ * after the count reached zero is reported rather than recycling
+ * the buffer twice. A reference never released only costs the
+ * pool that buffer, which is freed as garbage like any other.
+ */
+public final class PooledBuffer {
+
+    private static final AtomicIntegerFieldUpdater<PooledBuffer> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "references");
+
+    //Null if the buffer was too large to pool
+    private final BufferPool pool;
+    private final int sizeClass;
+    private final ByteBuffer buffer;
+    //Tracks the buffer while borrowed, only when leak detection is on
+    final BufferPool.Leak leak;
+    private volatile int references;
+    //Next frame of the message holding this one, set by the message
+    PooledBuffer next;
+
+    /**
+     * Constructor for PooledBuffer
+     * @param pool pool the buffer belongs to, or null
+     * @param sizeClass index of its size class in the pool
+     * @param buffer memory of the buffer
+     * @param leak leak tracker, or null
+     */
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer, BufferPool.Leak leak) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+        this.leak = leak;
+    }
+
+    /**
+     * Method which returns the buffer. It is cleared when borrowed,
+     * and its capacity may be more than was asked for.
+     * @return ByteBuffer buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Method which adds a reference to the buffer
+     * @return this buffer
+     */
+    public PooledBuffer retain() {
+        REFERENCES.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * Method which removes a reference, giving the buffer
+     * back to its pool once none are left
+     */
+    public void release() {
+        int left;
+        if (references == 1) {
+            //Only the last holder can see 1, and nobody else can retain it
+            left = 0;
+            REFERENCES.lazySet(this, 0);
+        }
+        else {
+            left = REFERENCES.decrementAndGet(this);
+        }
+        if (left == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        }
+        else if (left < 0 && pool != null) {
+            pool.misused(this);
+        }
+    }
+
+    /**
+     * Method which hands the buffer out with one reference
+     * to whoever borrowed it. Called by the pool.
+     */
+    void borrow() {
+        //Published to other threads along with the buffer itself
+        REFERENCES.lazySet(this, 1);
+        buffer.clear();
+    }
+
+    /**
+     * Get method for the index of the buffer's size class
+     * @return int size class
+     */
+    int getSizeClass() {
+        return sizeClass;
+    }
+}
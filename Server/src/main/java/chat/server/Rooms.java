@@ -0,0 +1,313 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps the chat rooms by name. Every client is in
+ * exactly one room and a message only goes to the members of the
+ * sender's room, so sending costs the same however many clients
+ * are in other rooms. Clients start in the default room, which
+ * behaves like the old server-wide broadcast until someone joins
+ * another room. Rooms other than the default one are created on
+ * the first join, or when their history is read back from the
+ * journal, and removed when their last member leaves, along
+ * with their history. A room's members are split into shards, one
+ * per event loop, holding the members that loop serves.
+ */
+public class Rooms {
+
+    //Room every client starts in
+    public static final String DEFAULT_ROOM = "lobby";
+    //Longest room name accepted
+    static final int MAX_NAME = 32;
+
+    /**
+     * Class that holds the members of one room
+     */
+    public static class Room {
+        private final String name;
+        //Members served by each shard, with the same lock-free iteration
+        //and O(1) membership as the server-wide registry
+        private final List<ConnectionRegistry<ServerConnection>> members;
+        //Last messages sent to the room
+        private final History history;
+
+        /**
+         * Constructor for Room
+         * @param name name of the room
+         * @param history empty history of the room
+         * @param shards number of shards the members are split into
+         */
+        Room(String name, History history, int shards) {
+            this.name = name;
+            this.members = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                members.add(new ConnectionRegistry<>());
+            }
+            this.history = history;
+        }
+
+        /**
+         * Get method for the name of the room
+         * @return String name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get method for the members of the room served by one shard
+         * @param shard index of the shard
+         * @return the members, safe to iterate while they change
+         */
+        public ConnectionRegistry<ServerConnection> getMembers(int shard) {
+            return members.get(shard);
+        }
+
+        /**
+         * Get method for the number of shards the members are split into
+         * @return int shards
+         */
+        public int getShards() {
+            return members.size();
+        }
+
+        /**
+         * Method which returns the number of members in every shard
+         * @return int size
+         */
+        public int size() {
+            int size = 0;
+            for (ConnectionRegistry<ServerConnection> shard : members) {
+                size += shard.size();
+            }
+            return size;
+        }
+
+        /**
+         * Get method for the last messages sent to the room
+         * @return History history
+         */
+        public History getHistory() {
+            return history;
+        }
+
+        /**
+         * Method which queues the room's history for a client and
+         * adds it to the room. Both are done under the history's
+         * lock, so each message sent to the room is either replayed
+         * or sent to the client live, never both and never neither,
+         * and the replay is queued ahead of anything live. Messages
+         * no longer kept may have been read back from the journal.
+         * @param connection client joining, or already a member
+         * @param after last sequence number the client has seen, 0 for none
+         * @param seen last sequence number the client has seen or
+         *             was read back from the journal
+         * @param recalled messages read back from the journal
+         */
+        private void admit(ServerConnection connection, long after, long seen, List<Message> recalled) {
+            List<Message> replay = new ArrayList<>();
+            history.lock.lock();
+            try {
+                if (after > 0 && history.isMissing(seen)) {
+                    replay.add(Message.notice("Some messages sent while you were away are no longer kept."));
+                }
+                replay.addAll(recalled);
+                connection.setReplayedTo(history.snapshot(replay, seen));
+                connection.replay(replay);
+                members.get(connection.getShard()).add(connection.getClientNo(), connection);
+            }
+            finally {
+                history.lock.unlock();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Room> rooms;
+    private final Room defaultRoom;
+    private final int historyMessages;
+    private final int historyBytes;
+    private final int shards;
+    //Numbers messages in the order they were kept, across all rooms
+    private final AtomicLong sequence;
+    //Null if messages are not kept on disk
+    private final Journal journal;
+
+    /**
+     * Constructor for Rooms
+     * @param historyMessages messages kept per room, 0 for none
+     * @param historyBytes bytes kept per room
+     * @param journal journal room messages are saved to, or null
+     * @param shards number of shards each room's members are split into
+     */
+    public Rooms(int historyMessages, int historyBytes, Journal journal, int shards) {
+        this.rooms = new ConcurrentHashMap<>();
+        this.historyMessages = historyMessages;
+        this.historyBytes = historyBytes;
+        this.shards = shards;
+        this.sequence = new AtomicLong();
+        this.journal = journal;
+        this.defaultRoom = newRoom(DEFAULT_ROOM);
+        rooms.put(DEFAULT_ROOM, defaultRoom);
+    }
+
+    /**
+     * Method which creates an empty room
+     * @param name name of the room
+     * @return the room
+     */
+    private Room newRoom(String name) {
+        return new Room(name, new History(name, historyMessages, historyBytes, sequence, journal), shards);
+    }
+
+    /**
+     * Method which puts a message read back from the journal into
+     * its room's history, creating the room if needed. Numbering
+     * carries on after the highest sequence number restored.
+     * Called at start-up, before any client connects.
+     * @param name name of the room
+     * @param message message with its sequence number set
+     */
+    public void restore(String name, Message message) {
+        rooms.computeIfAbsent(name, this::newRoom).history.restore(message);
+        sequence.accumulateAndGet(message.getSequence(), Math::max);
+    }
+
+    /**
+     * Get method for the room every client starts in
+     * @return Room defaultRoom
+     */
+    public Room getDefault() {
+        return defaultRoom;
+    }
+
+    /**
+     * Method which finds a room by name
+     * @param name name of the room
+     * @return the room, or null if it does not exist
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Method which finds a room by name, creating it if it does
+     * not exist, for messages sent to it on other nodes of the
+     * cluster. The room is removed again once a member leaves it
+     * empty, as any room is.
+     * @param name name of the room
+     * @return the room
+     */
+    public Room open(String name) {
+        return rooms.computeIfAbsent(name, this::newRoom);
+    }
+
+    /**
+     * Method which adds a client to a room, creating the room
+     * if it does not exist. Done inside the map's compute so it
+     * cannot race with the last member leaving.
+     * @param name name of the room
+     * @param connection client joining
+     * @param after last sequence number the client has seen, 0 for none
+     * @return the room joined
+     */
+    public Room join(String name, ServerConnection connection, long after) {
+        //Read from disk before the map's lock is taken
+        List<Message> recalled = new ArrayList<>();
+        Room known = rooms.get(name);
+        long seen = known != null ? known.history.recall(after, recalled) : after;
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = newRoom(key);
+            }
+            room.admit(connection, after, seen, recalled);
+            return room;
+        });
+    }
+
+    /**
+     * Method which sends a member of a room the history after
+     * the last sequence number it has seen, reading back from
+     * the journal what the history no longer keeps
+     * @param room room the client is in
+     * @param connection client resuming
+     * @param after last sequence number the client has seen
+     */
+    public void resume(Room room, ServerConnection connection, long after) {
+        List<Message> recalled = new ArrayList<>();
+        room.admit(connection, after, room.history.recall(after, recalled), recalled);
+    }
+
+    /**
+     * Method which removes a client from a room, and the
+     * room itself once it is empty
+     * @param room room being left
+     * @param connection client leaving
+     */
+    public void leave(Room room, ServerConnection connection) {
+        rooms.computeIfPresent(room.name, (key, current) -> {
+            current.members.get(connection.getShard()).remove(connection.getClientNo(), connection);
+            if (current.size() == 0 && current != defaultRoom) {
+                current.history.clear();
+                return null;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Method which checks if a room name may be used
+     * @param name name asked for
+     * @return true if it is 1 to 32 letters, digits, '-' or '_'
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method which returns the number of rooms
+     * @return int size
+     */
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Method which returns the messages kept by every room
+     * @return long count
+     */
+    public long getHistoryCount() {
+        long count = 0;
+        for (Room room : rooms.values()) {
+            count += room.history.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Method which returns the bytes kept by every room's
+     * history, counted as the text form of each message.
+     * The binary form is built only for binary clients and
+     * at most doubles this.
+     * @return long bytes
+     */
+    public long getHistoryBytes() {
+        long bytes = 0;
+        for (Room room : rooms.values()) {
+            bytes += room.history.getBytes();
+        }
+        return bytes;
+    }
+}
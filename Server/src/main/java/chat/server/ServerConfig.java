@@ -0,0 +1,591 @@
+package chat.server;
+
+import chat.common.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Class that holds the start-up options of the server
+ * which are read from the command line arguments.
+ *
+ * -cse classic|nio    engine serving the clients
+ * -csl n              event loops of the NIO engine
+ * -cst platform|virtual  threads of the classic engine
+ * -csq n              outbound queue size per client
+ * -cso drop|disconnect|block  what a full outbound queue does; by
+ *                     default the oldest message is dropped, as a
+ *                     blocked sender stalls everyone behind it
+ * -csb n              most bytes sent in one batched write
+ * -csd n              microseconds the classic writer waits to batch
+ * -csf path           also log to a file rolled over at 10 MB
+ * -csm all|off|n      log every message body, none or one in n
+ * -css n              lines kept in the GUI output area
+ * -csx n              serve Prometheus metrics on localhost:n/metrics
+ * -csh n              messages kept per room for late joiners, 0 for none
+ * -csk n              kilobytes kept per room for late joiners
+ * -csj path           save room messages to a journal in this directory
+ * -csg n              megabytes at which a journal segment is rolled over
+ * -csr n              journal segments kept
+ * -csa n              acceptor threads, each with its own listening
+ *                     socket where SO_REUSEPORT is supported
+ * -csc n              connections the kernel queues before they are accepted
+ * -csi n              new connections a second from one address, 0 for no limit
+ * -csn n              new connections a second to the server, 0 for no limit
+ * -csu n              messages a second from one client, 0 for no limit
+ * -csy n              kilobytes a second from one client, 0 for no limit
+ * -csv throttle|drop|disconnect  what a client over its limits gets
+ * -csw n              longest line or frame accepted, in kilobytes
+ * -csz i@host:port,... join a cluster: the cluster address of every
+ *                     node, the same list on each, and which one
+ *                     this node is, counting from 1
+ *
+ * Clients are served over TLS when the server is started with
+ * -Dchat.tls=true. The key and certificate are read from the
+ * keystore named by the standard javax.net.ssl.keyStore and
+ * javax.net.ssl.keyStorePassword properties.
+ *
+ * Clients using binary framing may ask for large payloads to be
+ * compressed. -Dchat.compressMin=n sets the smallest payload
+ * compressed, in bytes, 0 to not offer compression, and
+ * -Dchat.compressLevel=n the deflate level from 1 to 9.
+ */
+public class ServerConfig {
+
+    //Engines that can be used to serve client connections
+    public static final String ENGINE_CLASSIC = "classic";
+    public static final String ENGINE_NIO = "nio";
+
+    //Kinds of thread used by the classic engine
+    public static final String THREADS_PLATFORM = "platform";
+    public static final String THREADS_VIRTUAL = "virtual";
+
+    //How long a TLS session can be resumed for
+    private static final int TLS_SESSION_SECONDS = 24 * 60 * 60;
+    //Smallest payload compressed and the deflate level, unless set otherwise
+    private static final int COMPRESS_MIN_BYTES = 64;
+    private static final int COMPRESS_LEVEL = 6;
+
+    private String engine;
+    private int eventLoops;
+    private String threads;
+    private int queueCapacity;
+    private OutboundQueue.OverflowPolicy overflowPolicy;
+    private int batchBytes;
+    private int batchDelayMicros;
+    private String logFile;
+    //Log one message body in this many, 0 for none
+    private int logSample;
+    private int scrollback;
+    //Port of the metrics endpoint, 0 for none
+    private int metricsPort;
+    //Bounds of each room's history
+    private int historyMessages;
+    private int historyKilobytes;
+    //Journal directory, null for none
+    private String journalDir;
+    private int segmentMegabytes;
+    private int segmentsKept;
+    private int acceptors;
+    private int backlog;
+    //Connection rate limits, 0 for none
+    private int connectionsPerAddress;
+    private int connectionsPerSecond;
+    //Limits on what one client sends, 0 for none
+    private int messagesPerSecond;
+    private int inboundKilobytes;
+    private InboundLimiter.FloodPolicy floodPolicy;
+    private int maxFrameKilobytes;
+    //Cluster addresses of every node, null if not clustered
+    private InetSocketAddress[] clusterNodes;
+    private int clusterIndex;
+
+    /**
+     * Constructor for ServerConfig which sets
+     * the default options
+     */
+    public ServerConfig() {
+        this.engine = ENGINE_CLASSIC;
+        this.eventLoops = Runtime.getRuntime().availableProcessors();
+        this.threads = THREADS_PLATFORM;
+        this.queueCapacity = 1024;
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+        this.batchBytes = 64 * 1024;
+        this.batchDelayMicros = 0;
+        this.logSample = 1;
+        this.scrollback = 5000;
+        this.metricsPort = 0;
+        this.historyMessages = 100;
+        this.historyKilobytes = 64;
+        this.segmentMegabytes = 16;
+        this.segmentsKept = 8;
+        this.acceptors = 1;
+        this.backlog = 1024;
+        this.connectionsPerAddress = 0;
+        this.connectionsPerSecond = 0;
+        this.messagesPerSecond = 0;
+        this.inboundKilobytes = 0;
+        this.floodPolicy = InboundLimiter.FloodPolicy.THROTTLE;
+        this.maxFrameKilobytes = Protocol.MAX_FRAME / 1024;
+    }
+
+    /**
+     * Method which reads the server options from the
+     * command line arguments. Invalid values are reported
+     * and the default is kept.
+     * @param args command line arguments
+     * @return the server options
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        String engine = flagValue(args, "-cse");
+        if (engine != null) {
+            if (engine.equalsIgnoreCase(ENGINE_CLASSIC) || engine.equalsIgnoreCase(ENGINE_NIO)) {
+                config.engine = engine.toLowerCase();
+            }
+            else {
+                System.out.println("Unknown engine " + engine + ".\n" +
+                        "Classic engine will be used.");
+            }
+        }
+        config.eventLoops = intFlag(args, "-csl", config.eventLoops);
+        String threads = flagValue(args, "-cst");
+        if (threads != null) {
+            if (threads.equalsIgnoreCase(THREADS_PLATFORM) || threads.equalsIgnoreCase(THREADS_VIRTUAL)) {
+                config.threads = threads.toLowerCase();
+            }
+            else {
+                System.out.println("Unknown thread mode " + threads + ".\n" +
+                        "Platform threads will be used.");
+            }
+        }
+        config.queueCapacity = intFlag(args, "-csq", config.queueCapacity);
+        String policy = flagValue(args, "-cso");
+        if (policy != null) {
+            if (policy.equalsIgnoreCase("drop")) {
+                config.overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+            }
+            else if (policy.equalsIgnoreCase("disconnect")) {
+                config.overflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+            }
+            else if (policy.equalsIgnoreCase("block")) {
+                config.overflowPolicy = OutboundQueue.OverflowPolicy.BLOCK;
+            }
+            else {
+                System.out.println("Unknown overflow policy " + policy + ".\n" +
+                        "The oldest message will be dropped from full queues.");
+            }
+        }
+        config.batchBytes = intFlag(args, "-csb", config.batchBytes);
+        String delay = flagValue(args, "-csd");
+        if (delay != null) {
+            //Zero is allowed and means no added delay
+            config.batchDelayMicros = delay.equals("0") ? 0 : intFlag(args, "-csd", config.batchDelayMicros);
+        }
+        config.logFile = flagValue(args, "-csf");
+        String bodies = flagValue(args, "-csm");
+        if (bodies != null) {
+            if (bodies.equalsIgnoreCase("off")) {
+                config.logSample = 0;
+            }
+            else if (!bodies.equalsIgnoreCase("all")) {
+                config.logSample = intFlag(args, "-csm", config.logSample);
+            }
+        }
+        config.scrollback = intFlag(args, "-css", config.scrollback);
+        config.metricsPort = intFlag(args, "-csx", config.metricsPort);
+        String history = flagValue(args, "-csh");
+        if (history != null) {
+            //Zero is allowed and turns the history off
+            config.historyMessages = history.equals("0") ? 0 : intFlag(args, "-csh", config.historyMessages);
+        }
+        config.historyKilobytes = intFlag(args, "-csk", config.historyKilobytes);
+        config.journalDir = flagValue(args, "-csj");
+        config.segmentMegabytes = intFlag(args, "-csg", config.segmentMegabytes);
+        config.segmentsKept = intFlag(args, "-csr", config.segmentsKept);
+        config.acceptors = intFlag(args, "-csa", config.acceptors);
+        config.backlog = intFlag(args, "-csc", config.backlog);
+        config.connectionsPerAddress = rateFlag(args, "-csi", config.connectionsPerAddress);
+        config.connectionsPerSecond = rateFlag(args, "-csn", config.connectionsPerSecond);
+        config.messagesPerSecond = rateFlag(args, "-csu", config.messagesPerSecond);
+        config.inboundKilobytes = rateFlag(args, "-csy", config.inboundKilobytes);
+        String flood = flagValue(args, "-csv");
+        if (flood != null) {
+            if (flood.equalsIgnoreCase("throttle")) {
+                config.floodPolicy = InboundLimiter.FloodPolicy.THROTTLE;
+            }
+            else if (flood.equalsIgnoreCase("drop")) {
+                config.floodPolicy = InboundLimiter.FloodPolicy.DROP;
+            }
+            else if (flood.equalsIgnoreCase("disconnect")) {
+                config.floodPolicy = InboundLimiter.FloodPolicy.DISCONNECT;
+            }
+            else {
+                System.out.println("Unknown flood policy " + flood + ".\n" +
+                        "Throttle will be used.");
+            }
+        }
+        config.maxFrameKilobytes = intFlag(args, "-csw", config.maxFrameKilobytes);
+        String cluster = flagValue(args, "-csz");
+        if (cluster != null) {
+            config.parseCluster(cluster);
+        }
+        return config;
+    }
+
+    /**
+     * Method which reads the cluster members, given as the number
+     * of this node, '@', then every node's host:port separated
+     * by commas. An invalid list leaves the server on its own.
+     * @param value value of the cluster flag
+     */
+    private void parseCluster(String value) {
+        try {
+            int at = value.indexOf('@');
+            int index = Integer.parseInt(value.substring(0, at)) - 1;
+            String[] addresses = value.substring(at + 1).split(",");
+            InetSocketAddress[] nodes = new InetSocketAddress[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                int colon = addresses[i].lastIndexOf(':');
+                nodes[i] = new InetSocketAddress(addresses[i].substring(0, colon),
+                        Integer.parseInt(addresses[i].substring(colon + 1)));
+            }
+            if (index >= 0 && index < nodes.length) {
+                clusterNodes = nodes;
+                clusterIndex = index;
+                return;
+            }
+        }
+        catch (RuntimeException ignored) {
+            //Falls through to the error message
+        }
+        System.out.println("Invalid value for -csz.\n" +
+                "Server will run on its own.");
+    }
+
+    /**
+     * Method which returns the value following a flag
+     * @param args command line arguments
+     * @param flag flag to look for
+     * @return value of the flag or null if it is not present
+     */
+    static String flagValue(String[] args, String flag) {
+        for (int x = 0; x < args.length; x++) {
+            if (args[x].equals(flag)) {
+                if (x + 1 < args.length) {
+                    return args[x + 1];
+                }
+                System.out.println("No value detected for " + flag + ".\n" +
+                        "Default value will be used.");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method which reads a positive integer flag
+     * @param args command line arguments
+     * @param flag flag to look for
+     * @param def default value
+     * @return value of the flag or the default value
+     */
+    static int intFlag(String[] args, String flag, int def) {
+        String value = flagValue(args, flag);
+        if (value == null) {
+            return def;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        }
+        catch (NumberFormatException ignored) {
+            //Falls through to the error message
+        }
+        System.out.println("Invalid value for " + flag + ".\n" +
+                "Default value will be used.");
+        return def;
+    }
+
+    /**
+     * Method which reads a rate limit flag, where
+     * 0 turns the limit off
+     * @param args command line arguments
+     * @param flag flag to look for
+     * @param def default value
+     * @return value of the flag or the default value
+     */
+    private static int rateFlag(String[] args, String flag, int def) {
+        String value = flagValue(args, flag);
+        if (value != null && value.equals("0")) {
+            return 0;
+        }
+        return intFlag(args, flag, def);
+    }
+
+    /**
+     * Method which checks if the NIO engine was chosen
+     * @return true if the NIO engine is used
+     */
+    public boolean isNio() {
+        return engine.equals(ENGINE_NIO);
+    }
+
+    /**
+     * Method which creates the executor that runs each
+     * ServerConnection of the classic engine. Virtual threads
+     * are looked up at runtime so the server still compiles
+     * and runs on releases without them.
+     * @return executor starting one thread per task
+     */
+    public Executor newExecutor() {
+        if (threads.equals(THREADS_VIRTUAL)) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21 or later.\n" +
+                        "Platform threads will be used.");
+                threads = THREADS_PLATFORM;
+            }
+        }
+        return task -> new Thread(task).start();
+    }
+
+    /**
+     * Method which creates the outbound queue of a connection
+     * @return an empty queue with the configured capacity and policy
+     */
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Method which creates the limiter of what a connection sends
+     * @return InboundLimiter with the configured limits, or null if
+     *         there are none
+     */
+    public InboundLimiter newInboundLimiter() {
+        if (messagesPerSecond == 0 && inboundKilobytes == 0) {
+            return null;
+        }
+        return new InboundLimiter(messagesPerSecond, inboundKilobytes * 1024L, floodPolicy);
+    }
+
+    /**
+     * Method which creates the decoder of what a connection sends
+     * @return FrameDecoder with the configured longest message
+     */
+    public FrameDecoder newFrameDecoder() {
+        return newFrameDecoder(null);
+    }
+
+    /**
+     * Method which creates the decoder of what a connection
+     * sends, reading into buffers borrowed from a pool
+     * @param pool pool of direct buffers, or null for a heap buffer
+     * @return FrameDecoder with the configured longest message
+     */
+    public FrameDecoder newFrameDecoder(BufferPool pool) {
+        return new FrameDecoder((int) Math.min(Integer.MAX_VALUE - 5, maxFrameKilobytes * 1024L), pool);
+    }
+
+    /**
+     * Get method for the most bytes sent in one batched write
+     * @return int batchBytes
+     */
+    public int getBatchBytes() {
+        return batchBytes;
+    }
+
+    /**
+     * Get method for how long the classic writer waits for
+     * more messages before flushing a batch. The NIO engine
+     * batches whatever is queued in one event loop pass.
+     * @return int batchDelayMicros
+     */
+    public int getBatchDelayMicros() {
+        return batchDelayMicros;
+    }
+
+    /**
+     * Get method for the log file
+     * @return String logFile or null to log to the console only
+     */
+    public String getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * Get method for how often message bodies are logged
+     * @return int one in logSample bodies is logged, 0 for none
+     */
+    public int getLogSample() {
+        return logSample;
+    }
+
+    /**
+     * Get method for the number of lines kept in the GUI
+     * @return int scrollback
+     */
+    public int getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Get method for the port of the metrics endpoint
+     * @return int metricsPort, 0 if not served
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Method which creates the chat rooms with the configured
+     * history bounds, split into one shard per event loop
+     * @param journal journal room messages are saved to, or null
+     * @return Rooms with only the default room
+     */
+    public Rooms newRooms(Journal journal) {
+        return new Rooms(historyMessages, historyKilobytes * 1024, journal, isNio() ? eventLoops : 1);
+    }
+
+    /**
+     * Method which opens the journal, if one was asked for
+     * @param logger where write errors are reported
+     * @return Journal not yet started, or null for none
+     * @throws IOException if the directory cannot be used
+     */
+    public Journal newJournal(AsyncLogger logger) throws IOException {
+        if (journalDir == null) {
+            return null;
+        }
+        return new Journal(new File(journalDir), segmentMegabytes * 1024L * 1024, segmentsKept, logger);
+    }
+
+    /**
+     * Get method for the journal directory
+     * @return String journalDir or null if there is no journal
+     */
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    /**
+     * Method which sets up TLS, if it was asked for. Sessions are
+     * kept for a day, and TLS 1.3 clients are sent tickets holding
+     * their session, so a client reconnecting skips the key exchange
+     * and the signature.
+     * @return SSLContext holding the server's key, or null if
+     *         clients are served in plain text
+     * @throws NoSuchAlgorithmException if the keystore cannot be read
+     */
+    public SSLContext newTlsContext() throws NoSuchAlgorithmException {
+        if (!Boolean.getBoolean("chat.tls")) {
+            return null;
+        }
+        SSLContext context = SSLContext.getDefault();
+        context.getServerSessionContext().setSessionTimeout(TLS_SESSION_SECONDS);
+        return context;
+    }
+
+    /**
+     * Method which creates the compressor of payloads sent to
+     * clients which ask for compression, if it is offered
+     * @param metrics metrics recording what is compressed
+     * @return Compressor, or null if compression is not offered
+     */
+    public Compressor newCompressor(Metrics metrics) {
+        int minBytes = Integer.getInteger("chat.compressMin", COMPRESS_MIN_BYTES);
+        if (minBytes <= 0) {
+            return null;
+        }
+        int level = Integer.getInteger("chat.compressLevel", COMPRESS_LEVEL);
+        return new Compressor(minBytes, Math.max(1, Math.min(9, level)), metrics);
+    }
+
+    /**
+     * Method which creates the limiter of new connections
+     * @return ConnectionLimiter with the configured rates
+     */
+    public ConnectionLimiter newLimiter() {
+        return new ConnectionLimiter(connectionsPerAddress, connectionsPerSecond);
+    }
+
+    /**
+     * Method which creates the links to the other nodes
+     * @param server server whose clients the cluster serves
+     * @return Cluster not yet started, or null if not clustered
+     */
+    public Cluster newCluster(ChatServer server) {
+        if (clusterNodes == null) {
+            return null;
+        }
+        return new Cluster(clusterNodes, clusterIndex, server);
+    }
+
+    /**
+     * Get method for the number of nodes in the cluster
+     * @return int nodes, 1 if not clustered
+     */
+    public int getClusterSize() {
+        return clusterNodes == null ? 1 : clusterNodes.length;
+    }
+
+    /**
+     * Get method for the position of this node in the cluster
+     * @return int index counting from 0, 0 if not clustered
+     */
+    public int getClusterIndex() {
+        return clusterIndex;
+    }
+
+    /**
+     * Get method for the number of acceptor threads
+     * @return int acceptors
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Get method for the length of the kernel's queue of
+     * connections not yet accepted. The kernel may cap it,
+     * on Linux at net.core.somaxconn.
+     * @return int backlog
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Get method for the thread mode
+     * @return String threads
+     */
+    public String getThreads() {
+        return threads;
+    }
+
+    /**
+     * Get method for the engine name
+     * @return String engine
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get method for the number of event loop threads
+     * used by the NIO engine
+     * @return int eventLoops
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+}
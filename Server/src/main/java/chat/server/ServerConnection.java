@@ -0,0 +1,1005 @@
+package chat.server;
+
+import chat.common.Protocol;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+/**
+ * Class that handles client connections and messages
+ * in a thread by implementing the Runnable interface.
+ * When the NIO engine is used the connection is instead
+ * driven by an EventLoop through onReadable and flush.
+ */
+public class ServerConnection implements Runnable, FrameDecoder.Handler {
+
+    private Socket clientSocket;
+    private ChatServer server;
+    private OutputStream clientOut;
+    private int noOfClients;
+    //Messages waiting to be written to this client
+    private OutboundQueue outbound;
+    //Set once the client is disconnected for not keeping up
+    private AtomicBoolean tooSlow;
+    //Splits received bytes into lines or binary frames
+    private FrameDecoder decoder;
+    //Limits how fast this client may send, null if there are no limits
+    private InboundLimiter limiter;
+    //Set by the reader once the client is to be disconnected for flooding
+    private boolean flooded;
+    //Set by the writer once the binary hello has been sent back
+    private boolean binaryOut;
+    private Metrics metrics;
+    //Pool the frames of this client's messages are borrowed from, null in the classic engine
+    private BufferPool pool;
+    //Room this client is in, only changed by its own reader
+    private Rooms.Room room;
+    //Set once the client is a member of its room, only changed by its own reader
+    private boolean admitted;
+    //Last message of the room's history replayed on joining it
+    private volatile long replayedTo;
+    //Set once the client resumes, its messages then carry their sequence number
+    private volatile boolean sequenced;
+    //Compressor of the server once the client asks for compression, null before
+    private volatile Compressor compressor;
+
+    //NIO engine only
+    private SocketChannel channel;
+    private EventLoop eventLoop;
+    private SelectionKey key;
+    //Encrypts what is sent over the channel, null unless served over TLS
+    private TlsChannel tls;
+    //Messages gathered into one write, kept while partly written
+    private ByteBuffer[] batch;
+    //Message each buffer of the batch belongs to, released once written
+    private Message[] batchMessages;
+    private int batchStart;
+    private int batchEnd;
+    private AtomicBoolean writeScheduled;
+    private boolean disconnected;
+    //Set while reading is stopped to hold the client to its limits
+    private boolean readPaused;
+
+    //Most messages gathered into a single NIO write
+    private static final int BATCH_MESSAGES = 64;
+    //Time a new client has to resume before it is sent the history of its room
+    private static final int RESUME_GRACE_MILLIS = 1000;
+
+    /**
+     * Constructor for the ServerThread
+     * @param clientSocket socket of the client connected
+     * @param server main server class
+     * @param counter number of clients connected
+     */
+    public ServerConnection(Socket clientSocket, ChatServer server, int counter) {
+        this.clientSocket = clientSocket;
+        this.server = server;
+        this.noOfClients = counter;
+        outbound = server.getConfig().newOutboundQueue();
+        tooSlow = new AtomicBoolean(false);
+        decoder = server.getConfig().newFrameDecoder();
+        limiter = server.getConfig().newInboundLimiter();
+        metrics = server.getMetrics();
+        room = server.getRooms().getDefault();
+    }
+
+    /**
+     * Constructor for a connection served by the NIO engine
+     * @param channel non-blocking channel of the client connected
+     * @param eventLoop event loop which serves the channel
+     * @param server main server class
+     * @param counter number of clients connected
+     */
+    public ServerConnection(SocketChannel channel, EventLoop eventLoop, ChatServer server, int counter) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.server = server;
+        this.noOfClients = counter;
+        outbound = server.getConfig().newOutboundQueue();
+        tooSlow = new AtomicBoolean(false);
+        pool = server.getBufferPool();
+        decoder = server.getConfig().newFrameDecoder(pool);
+        limiter = server.getConfig().newInboundLimiter();
+        metrics = server.getMetrics();
+        room = server.getRooms().getDefault();
+        SSLContext context = server.getTlsContext();
+        if (context != null) {
+            tls = new TlsChannel(channel, context.createSSLEngine(), pool, metrics);
+        }
+        batch = new ByteBuffer[BATCH_MESSAGES];
+        batchMessages = new Message[BATCH_MESSAGES];
+        writeScheduled = new AtomicBoolean(false);
+    }
+
+    /**
+     * Override of the run method in the
+     * Runnable interface.
+     */
+    @Override
+    public void run() {
+        try {
+            //Get output stream from socket
+            clientOut = clientSocket.getOutputStream();
+            //Dedicated writer drains the outbound queue
+            server.getExecutor().execute(this::writeLoop);
+            //Get input stream from socket
+            InputStream clientIn = clientSocket.getInputStream();
+            //Wakes the reader if the client does not resume in time
+            clientSocket.setSoTimeout(RESUME_GRACE_MILLIS);
+            while (true) {
+                ByteBuffer buffer = decoder.buffer();
+                int read;
+                try {
+                    read = clientIn.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+                catch (SocketTimeoutException e) {
+                    admit();
+                    clientSocket.setSoTimeout(0);
+                    continue;
+                }
+                if (read == -1) {
+                    break;
+                }
+                metrics.bytesIn(read);
+                buffer.position(buffer.position() + read);
+                if (limiter != null) {
+                    limiter.read(read, System.nanoTime());
+                }
+                decoder.decode(this);
+                long wait;
+                while (!flooded && (wait = throttle()) > 0) {
+                    //Not reading lets TCP hold the client back
+                    LockSupport.parkNanos(wait);
+                    //Then carry on with what was received before the pause
+                    decoder.decode(this);
+                }
+                if (flooded) {
+                    tryDisconnect(Metrics.Reason.FLOOD);
+                    return;
+                }
+            }
+            //If end of stream, close the socket
+            tryDisconnect(Metrics.Reason.CLOSED);
+        }
+        catch (IOException e) {
+            //Exception thrown when client disconnects
+            tryDisconnect(reasonFor(e));
+        }
+    }
+
+    /**
+     * Method which writes queued messages to the socket until
+     * the connection is closed. Used by the classic engine.
+     * Messages are gathered until the queue is empty, the batch
+     * size is reached or the maximum delay has passed, and are
+     * then sent with a single flush.
+     */
+    private void writeLoop() {
+        ServerConfig config = server.getConfig();
+        int batchBytes = config.getBatchBytes();
+        long maxDelay = TimeUnit.MICROSECONDS.toNanos(config.getBatchDelayMicros());
+        try {
+            BufferedOutputStream buffered = new BufferedOutputStream(clientOut, batchBytes);
+            //Reads shared buffers without needing their backing array
+            WritableByteChannel out = Channels.newChannel(buffered);
+            Message message;
+            while ((message = outbound.take()) != OutboundQueue.CLOSED) {
+                long deadline = System.nanoTime() + maxDelay;
+                int bytes = 0;
+                while (message != null && message != OutboundQueue.CLOSED) {
+                    try {
+                        ByteBuffer encoded = encode(message);
+                        bytes += encoded.remaining();
+                        out.write(encoded);
+                    }
+                    finally {
+                        //Copied into the stream, so the frame can be reused
+                        message.release();
+                    }
+                    if (bytes >= batchBytes) {
+                        break;
+                    }
+                    message = outbound.poll();
+                    if (message == null && maxDelay > 0) {
+                        //Wait a little for more messages to join the batch
+                        message = outbound.poll(deadline - System.nanoTime());
+                    }
+                }
+                buffered.flush();
+                metrics.bytesOut(bytes);
+                if (message == OutboundQueue.CLOSED) {
+                    return;
+                }
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            //Closing the socket wakes the reader, which disconnects
+            closeSocket();
+        }
+    }
+
+    /**
+     * Override of onLine in the FrameDecoder.Handler
+     * interface, called for each line sent by the client
+     * @param userInput line received
+     */
+    @Override
+    public void onLine(String userInput) {
+        handleMessage(Message.chat(noOfClients, userInput, pool));
+    }
+
+    /**
+     * Override of onFrame in the FrameDecoder.Handler interface.
+     * Chat payloads are relayed without being decoded. The sender
+     * id written by the client is ignored so it cannot be forged.
+     * @param type frame type
+     * @param sender sender id written by the client
+     * @param payload UTF-8 payload of the frame
+     */
+    @Override
+    public void onFrame(byte type, int sender, ByteBuffer payload) {
+        if (type == Protocol.CHAT) {
+            handleMessage(Message.relay(noOfClients, payload, pool));
+        }
+    }
+
+    /**
+     * Override of onHello in the FrameDecoder.Handler interface.
+     * Accepting the hello switches this client to binary framing
+     * once the writer reaches it.
+     */
+    @Override
+    public void onHello() {
+        enqueue(Message.HELLO_ACK);
+    }
+
+    /**
+     * Method which handles a single message sent by the client,
+     * releasing the reference to it held by the caller
+     * @param message message received
+     */
+    private void handleMessage(Message message) {
+        try {
+            handle(message);
+        }
+        finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Method which handles a single message sent by the client
+     * @param message message received
+     */
+    private void handle(Message message) {
+        metrics.messageIn();
+        if (flooded) {
+            return;
+        }
+        if (limiter != null && !limiter.message(System.nanoTime())) {
+            if (limiter.getPolicy() == InboundLimiter.FloodPolicy.THROTTLE) {
+                //This one is handled, the rest wait until the client is under its limits
+                decoder.stop();
+            }
+            else if (limiter.getPolicy() == InboundLimiter.FloodPolicy.DISCONNECT) {
+                server.print("Client " + noOfClients + " is sending too fast. Disconnecting.");
+                flooded = true;
+                return;
+            }
+            else {
+                metrics.floodDropped();
+                return;
+            }
+        }
+        if (!admitted && !(message.isCommand() && precedesResume(message.getText()))) {
+            admit();
+        }
+        if (message.isCommand() && handleCommand(message.getText())) {
+            return;
+        }
+        //Output message to server
+        server.printMessage(message);
+        //Keep for late joiners, then send to everyone in the room
+        room.getHistory().append(message);
+        sendToRoom(message);
+    }
+
+    /**
+     * Method which carries out a command sent by the client
+     * @param command line starting with '/'
+     * @return false if it is not a command and should
+     *         be sent as a normal message
+     */
+    private boolean handleCommand(String command) {
+        if (command.startsWith("/join ")) {
+            joinRoom(command.substring(6).trim());
+            return true;
+        }
+        if (command.startsWith("/msg ")) {
+            sendDirect(command.substring(5));
+            return true;
+        }
+        if (command.startsWith("/resume ")) {
+            resume(command.substring(8).trim());
+            return true;
+        }
+        if (command.startsWith("/compress ")) {
+            compress(command.substring(10).trim());
+            return true;
+        }
+        if (command.equals("/leave")) {
+            if (room == server.getRooms().getDefault()) {
+                enqueue(Message.notice("You are in the " + Rooms.DEFAULT_ROOM + " room."));
+            }
+            else {
+                joinRoom(Rooms.DEFAULT_ROOM);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method which checks if a command may come before the
+     * client resumes, so it should not be sent the whole history
+     * of its room yet. Compression is asked for first so the
+     * replay after the resume can be compressed.
+     * @param command line starting with '/'
+     * @return true for a resume or a change of compression
+     */
+    private static boolean precedesResume(String command) {
+        return command.startsWith("/resume ") || command.startsWith("/compress ");
+    }
+
+    /**
+     * Method which adds the client to the room it started in and
+     * sends it the room's whole history, unless it has already
+     * resumed or joined a room. Called for anything the client
+     * sends other than a resume, or once it has had time to send
+     * one, on the thread which reads from the client.
+     */
+    void admit() {
+        if (!admitted && !disconnected) {
+            admit(0);
+        }
+    }
+
+    /**
+     * Method which adds the client to the room it started in
+     * @param after last sequence number of the room's history
+     *              the client has seen, 0 for none
+     */
+    private void admit(long after) {
+        admitted = true;
+        room = server.getRooms().join(room.getName(), this, after);
+    }
+
+    /**
+     * Method which sends a message to a single client, found by
+     * client number in the registry's index in O(1) however many
+     * clients are connected. A client of another node of the
+     * cluster is sent the message through that node, which drops
+     * it if the client is not connected. Direct messages are
+     * not logged.
+     * @param arguments client number followed by the message
+     */
+    private void sendDirect(String arguments) {
+        int space = arguments.indexOf(' ');
+        int id = -1;
+        if (space > 0) {
+            try {
+                id = Integer.parseInt(arguments.substring(0, space));
+            }
+            catch (NumberFormatException e) {
+                //Reported below
+            }
+        }
+        if (id < 0) {
+            enqueue(Message.notice("Usage: /msg <client number> <message>"));
+            return;
+        }
+        String text = arguments.substring(space + 1);
+        Cluster cluster = server.getCluster();
+        if (cluster != null && !cluster.isLocal(id)) {
+            cluster.relayDirect(noOfClients, id, text);
+            enqueue(Message.directEcho(id, text));
+            return;
+        }
+        ServerConnection target = server.getRegistry().get(id);
+        if (target == null) {
+            enqueue(Message.notice("Client " + id + " is not connected."));
+            return;
+        }
+        target.enqueue(Message.direct(noOfClients, text));
+        enqueue(Message.directEcho(id, text));
+        metrics.directMessage();
+    }
+
+    /**
+     * Method which carries on where a reconnecting client left off.
+     * From now on its room messages carry their sequence number.
+     * It is sent RESUMED and then only the history after the last
+     * message it saw. Until a client resumes it is not in its
+     * room, so nothing it has already seen is sent to it twice.
+     * @param arguments room the client was in and the last
+     *                  sequence number it saw, 0 for none
+     */
+    private void resume(String arguments) {
+        int space = arguments.indexOf(' ');
+        long after = -1;
+        if (space > 0) {
+            try {
+                after = Long.parseLong(arguments.substring(space + 1).trim());
+            }
+            catch (NumberFormatException e) {
+                //Reported below
+            }
+        }
+        String name = space > 0 ? arguments.substring(0, space) : "";
+        if (after < 0 || !Rooms.isValidName(name)) {
+            enqueue(Message.notice("Usage: /resume <room> <last sequence number>"));
+            return;
+        }
+        sequenced = true;
+        enqueue(Message.notice("RESUMED"));
+        if (!name.equals(room.getName())) {
+            joinRoom(name, after);
+        }
+        else if (admitted) {
+            server.getRooms().resume(room, this, after);
+        }
+        else {
+            admit(after);
+        }
+    }
+
+    /**
+     * Method which turns compression on or off for this client.
+     * Frames say if they are compressed, so the writer may switch
+     * at any point in the queue. It is sent COMPRESSED with the
+     * smallest payload compressed, or a notice saying why not.
+     * @param arguments deflate or off
+     */
+    private void compress(String arguments) {
+        Compressor offered = server.getCompressor();
+        if (arguments.equals("off")) {
+            compressor = null;
+            enqueue(Message.notice("Compression off."));
+        }
+        else if (!arguments.equals("deflate")) {
+            enqueue(Message.notice("Usage: /compress deflate|off"));
+        }
+        else if (offered == null) {
+            enqueue(Message.notice("Compression is not offered by this server."));
+        }
+        else if (!decoder.isBinary()) {
+            enqueue(Message.notice("Compression needs binary framing."));
+        }
+        else {
+            compressor = offered;
+            enqueue(Message.notice("COMPRESSED deflate " + offered.getMinBytes()));
+        }
+    }
+
+    /**
+     * Method which moves the client to another room, telling
+     * the members of both rooms
+     * @param name name of the room to join
+     */
+    private void joinRoom(String name) {
+        joinRoom(name, 0);
+    }
+
+    /**
+     * Method which moves the client to another room, telling
+     * the members of both rooms. The client itself is also sent
+     * ROOM, which only the server can send, so it knows which
+     * room to resume into after a reconnect.
+     * @param name name of the room to join
+     * @param after last sequence number of the room's history
+     *              the client has seen, 0 for none
+     */
+    private void joinRoom(String name, long after) {
+        if (!Rooms.isValidName(name)) {
+            enqueue(Message.notice("Room names are 1 to " + Rooms.MAX_NAME + " letters, digits, - or _."));
+            return;
+        }
+        if (name.equals(room.getName())) {
+            enqueue(Message.notice("You are in the " + name + " room."));
+            return;
+        }
+        if (admitted) {
+            server.getRooms().leave(room, this);
+            sendToRoom(Message.chat(noOfClients, "LEFT"));
+        }
+        admitted = true;
+        room = server.getRooms().join(name, this, after);
+        server.print("Client " + noOfClients + " joined room " + name + ".");
+        enqueue(Message.notice("ROOM " + name));
+        sendToRoom(Message.chat(noOfClients, "JOINED " + name));
+    }
+
+    /**
+     * Method which reads whatever the channel has available and
+     * handles every complete message. Over TLS, decrypted bytes
+     * which did not fit the decoder's buffer are read next, and
+     * output held up by the handshake is sent once it is done.
+     * Called by the event loop.
+     */
+    void onReadable() {
+        try {
+            boolean handshaking = tls != null && tls.isHandshaking();
+            do {
+                ByteBuffer buffer = decoder.buffer();
+                int read = tls == null ? channel.read(buffer) : tls.read(buffer);
+                if (read == -1) {
+                    //Client closed the connection
+                    tryDisconnect(Metrics.Reason.CLOSED);
+                    return;
+                }
+                metrics.bytesIn(read);
+                if (limiter != null) {
+                    limiter.read(read, System.nanoTime());
+                }
+                decoder.decode(this);
+                paceReading();
+            } while (tls != null && tls.hasPendingInput() && !readPaused && !disconnected);
+            if (handshaking && !disconnected) {
+                flush();
+            }
+        }
+        catch (IOException e) {
+            //Exception thrown when client disconnects
+            tryDisconnect(reasonFor(e));
+        }
+    }
+
+    /**
+     * Method which acts on the limits once the received messages
+     * are handled, disconnecting a flooding client or pausing
+     * reading from a throttled one without holding up the event
+     * loop. Called by the event loop.
+     */
+    private void paceReading() {
+        if (flooded) {
+            tryDisconnect(Metrics.Reason.FLOOD);
+            return;
+        }
+        long wait = throttle();
+        if (wait > 0) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            eventLoop.schedule(this::resumeReading, wait);
+        }
+    }
+
+    /**
+     * Method which starts reading again once a throttled
+     * client is back under its limits. Called by the event loop.
+     */
+    private void resumeReading() {
+        if (disconnected) {
+            return;
+        }
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        if (tls != null && tls.hasPendingInput()) {
+            //Decrypted bytes are waiting which the channel will not signal
+            onReadable();
+            return;
+        }
+        try {
+            //Carry on with what was received before the pause
+            decoder.decode(this);
+            paceReading();
+        }
+        catch (IOException e) {
+            tryDisconnect(reasonFor(e));
+        }
+    }
+
+    /**
+     * Method which works out how long to stop reading from a
+     * client sending faster than its limits
+     * @return nanoseconds to wait, 0 for none
+     */
+    private long throttle() {
+        if (limiter == null) {
+            return 0;
+        }
+        long wait = limiter.pause(System.nanoTime());
+        //Messages left in a stopped buffer wait for a pause, however short
+        if (decoder.isStopped()) {
+            wait = Math.max(wait, 1);
+        }
+        if (wait > 0) {
+            metrics.throttled();
+        }
+        return wait;
+    }
+
+    /**
+     * Method which outputs a message to every client in this
+     * client's room, on this node and, if the server is part of
+     * a cluster, on every other node
+     * @param message message to be sent
+     */
+    private void sendToRoom(Message message) {
+        Cluster cluster = server.getCluster();
+        if (cluster != null) {
+            cluster.relay(room.getName(), message);
+        }
+        server.broadcast(room, message, this);
+    }
+
+    /**
+     * Method which outputs a message to the members of a room
+     * served by one shard. The message is encoded at most once
+     * per protocol and the same bytes are shared by every client.
+     * Called by the shard's event loop, or by any thread when
+     * there is only one shard.
+     * @param room room the message was sent to
+     * @param shard index of the shard
+     * @param message message to be sent
+     * @param sender client which sent it, sent the echo instead,
+     *               or null if it came from another node
+     * @param metrics metrics recording the fan-out
+     */
+    static void sendToShard(Rooms.Room room, int shard, Message message, ServerConnection sender, Metrics metrics) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        long sequence = message.getSequence();
+        //Loop through the members of the room
+        for (ServerConnection sC : room.getMembers(shard)) {
+            //Skip clients which joined in time to get it in their replay
+            if (sequence != 0 && sequence <= sC.replayedTo) {
+                continue;
+            }
+            //If client sends message to itself
+            if (sC == sender) {
+                Message echo = message.echo();
+                sC.enqueue(echo);
+                echo.release();
+            }
+            else {
+                sC.enqueue(message);
+            }
+            recipients++;
+        }
+        metrics.fanOut(recipients, System.nanoTime() - start);
+    }
+
+    /**
+     * Method which returns the bytes of a message in the
+     * protocol this client uses. Called only by the writer,
+     * which switches protocol when it passes the hello. A client
+     * which asked for compression shares the compressed frame
+     * with every other client that did.
+     * @param message message to be written
+     * @return encoded message with its own position
+     */
+    private ByteBuffer encode(Message message) {
+        ByteBuffer encoded = message.encoded(binaryOut, sequenced, compressor);
+        if (message.isHello()) {
+            binaryOut = true;
+        }
+        return encoded;
+    }
+
+    /**
+     * Method which queues an encoded message for this client
+     * and wakes its writer. Event loops never block, so the
+     * BLOCK policy drops the oldest message in the NIO engine.
+     * @param message message to be sent
+     */
+    private void enqueue(Message message) {
+        if (!outbound.offer(message, channel == null)) {
+            dropSlowConsumer();
+            return;
+        }
+        if (channel != null && writeScheduled.compareAndSet(false, true)) {
+            eventLoop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Method which queues a message relayed by another node
+     * of the cluster for this client
+     * @param message message to be sent
+     */
+    void deliver(Message message) {
+        enqueue(message);
+    }
+
+    /**
+     * Set method for the last history message this client
+     * is sent on joining a room. Called before it is added
+     * to the room's members.
+     * @param sequence sequence number of the message
+     */
+    void setReplayedTo(long sequence) {
+        replayedTo = sequence;
+    }
+
+    /**
+     * Method which queues a room's history for this client.
+     * The messages are already encoded and are shared with
+     * every client they were sent to. Replay never waits for
+     * space: only the newest messages that fit are queued.
+     * Called with the room's history lock held.
+     * @param history messages kept by the room, oldest first
+     */
+    void replay(List<Message> history) {
+        int first = Math.max(0, history.size() - outbound.getFree());
+        for (int i = first; i < history.size(); i++) {
+            outbound.offer(history.get(i), false);
+        }
+        if (!history.isEmpty() && channel != null && writeScheduled.compareAndSet(false, true)) {
+            eventLoop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Method which disconnects a client whose queue
+     * has overflowed. Safe to call from any thread.
+     */
+    private void dropSlowConsumer() {
+        if (!tooSlow.compareAndSet(false, true)) {
+            return;
+        }
+        server.print("Client " + noOfClients + " is not keeping up. Disconnecting.");
+        if (channel != null) {
+            //The event loop disconnects it on the next flush
+            eventLoop.requestWrite(this);
+        }
+        else {
+            //The reader notices the closed socket and disconnects
+            closeSocket();
+        }
+    }
+
+    /**
+     * Method which writes as much queued output as the channel
+     * accepts. Interest in OP_WRITE is kept while output remains.
+     * Called by the event loop.
+     */
+    void flush() {
+        writeScheduled.set(false);
+        if (key == null || disconnected) {
+            return;
+        }
+        if (tooSlow.get()) {
+            tryDisconnect(Metrics.Reason.SLOW);
+            return;
+        }
+        try {
+            while (true) {
+                if (batchStart == batchEnd && !fillBatch()) {
+                    break;
+                }
+                //Gathering write sends the whole batch in one call
+                int count = batchEnd - batchStart;
+                metrics.bytesOut(tls == null ? channel.write(batch, batchStart, count)
+                        : tls.write(batch, batchStart, count));
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart] = null;
+                    batchMessages[batchStart].release();
+                    batchMessages[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    //Socket buffer full, wait until writable
+                    key.interestOps(readInterest() | writeInterest());
+                    return;
+                }
+            }
+            if (tls != null && !tls.flush()) {
+                //Last records not all taken
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                return;
+            }
+            key.interestOps(readInterest());
+        }
+        catch (IOException e) {
+            tryDisconnect(Metrics.Reason.ERROR);
+        }
+    }
+
+    /**
+     * Method which returns the interest in reading, none
+     * while a throttled client is paused
+     * @return OP_READ or 0
+     */
+    private int readInterest() {
+        return readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Method which returns the interest in writing while output
+     * is left, none while a TLS handshake waits for the client
+     * @return OP_WRITE or 0
+     */
+    private int writeInterest() {
+        return tls != null && tls.isWaitingForClient() ? 0 : SelectionKey.OP_WRITE;
+    }
+
+    /**
+     * Method which moves queued messages into the batch
+     * until it holds the configured number of bytes
+     * @return false if there was nothing to send
+     */
+    private boolean fillBatch() {
+        int batchBytes = server.getConfig().getBatchBytes();
+        batchStart = 0;
+        batchEnd = 0;
+        int bytes = 0;
+        Message message;
+        while (batchEnd < batch.length && bytes < batchBytes
+                && (message = outbound.poll()) != null && message != OutboundQueue.CLOSED) {
+            ByteBuffer encoded = encode(message);
+            batchMessages[batchEnd] = message;
+            batch[batchEnd++] = encoded;
+            bytes += encoded.remaining();
+        }
+        return batchEnd > 0;
+    }
+
+    /**
+     * Method which releases the messages of a batch
+     * which will never be written
+     */
+    private void releaseBatch() {
+        for (; batchStart < batchEnd; batchStart++) {
+            batch[batchStart] = null;
+            batchMessages[batchStart].release();
+            batchMessages[batchStart] = null;
+        }
+    }
+
+    /**
+     * Method which stores the selection key once the
+     * event loop has registered the channel, and gives the
+     * client a moment to resume before it joins its room
+     * @param key the selection key of the channel
+     */
+    void attach(SelectionKey key) {
+        this.key = key;
+        eventLoop.schedule(this::admit, TimeUnit.MILLISECONDS.toNanos(RESUME_GRACE_MILLIS));
+    }
+
+    /**
+     * Get method for the shard serving this client, which
+     * is its event loop's index, or 0 in the classic engine
+     * @return int shard
+     */
+    public int getShard() {
+        return eventLoop == null ? 0 : eventLoop.getIndex();
+    }
+
+    /**
+     * Get method for the client number
+     * @return int noOfClients
+     */
+    public int getClientNo() {
+        return noOfClients;
+    }
+
+    /**
+     * Get method for the number of messages waiting
+     * to be written to this client
+     * @return int queue depth
+     */
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+
+    /**
+     * Get method for the number of messages dropped
+     * because this client's queue was full
+     * @return long dropped messages
+     */
+    public long getDropped() {
+        return outbound.getDropped();
+    }
+
+    /**
+     * Method which takes the next queued message without
+     * writing it. Lets benchmarks stand in for the writer,
+     * taking over the queue's reference to the message.
+     * @return the next message, CLOSED or null if empty
+     */
+    Message pollOutbound() {
+        return outbound.poll();
+    }
+
+    /**
+     * Method which closes the socket of the classic engine
+     * without removing the client
+     */
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        }
+        catch (IOException ignored) {
+            //Already closed
+        }
+    }
+
+    /**
+     * Get method for the channel used by the NIO engine
+     * @return SocketChannel channel
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Method which works out why reading from a client failed
+     * @param e exception thrown while reading
+     * @return the reason to record
+     */
+    private static Metrics.Reason reasonFor(IOException e) {
+        return e instanceof ProtocolException || e instanceof SSLException
+                ? Metrics.Reason.PROTOCOL : Metrics.Reason.ERROR;
+    }
+
+    /**
+     * Method which disconnects a client by closing the socket
+     * @param reason why the client is disconnected, replaced by
+     *               SLOW if its queue overflowed
+     */
+    void tryDisconnect(Metrics.Reason reason) {
+        if (channel != null) {
+            //Event loop may see the failure on both read and write
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+            if (key != null) {
+                key.cancel();
+            }
+        }
+        metrics.disconnected(tooSlow.get() ? Metrics.Reason.SLOW : reason);
+        //Stops the writer and frees queued messages
+        outbound.close();
+        if (channel != null) {
+            //Only the event loop uses these, and it is the caller
+            decoder.release();
+            releaseBatch();
+            if (tls != null) {
+                tls.close();
+            }
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            else {
+                clientSocket.close();
+            }
+        }
+        catch (IOException ignored) {
+            /*
+            Exception ignored as client will
+            be removed from the registry regardless.
+             */
+        }
+        server.print("Client " + noOfClients + " disconnected.");
+        //Remove client from its room and the registry of connected clients
+        server.getRooms().leave(room, this);
+        server.remove(this);
+        sendToRoom(Message.chat(noOfClients, "DISCONNECTED"));
+    }
+}
\ No newline at end of file
@@ -1,3 +1,7 @@
+package chat.server;
+
+import chat.common.TextRenderer;
+
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
 import java.awt.*;
@@ -11,6 +15,8 @@ public class ServerGUI extends JFrame {
     int port;
     private ChatServer chatServer;
     private JTextArea jTextArea;
+    //Batches output onto the event dispatch thread
+    private TextRenderer renderer;
 
     /**
      * Constructor for ServerGUI
@@ -20,6 +26,7 @@ public class ServerGUI extends JFrame {
     public ServerGUI(int port, ChatServer chatServer) {
         this.port = port;
         this.chatServer = chatServer;
+        this.renderer = new TextRenderer(chatServer.getConfig().getScrollback(), 33);
 
         /*
         Method reference to run createWindow in the event
@@ -28,12 +35,22 @@ public class ServerGUI extends JFrame {
         SwingUtilities.invokeLater(this::createWindow);
     }
 
+    /**
+     * Get method for the renderer, which reports the
+     * backlog and frame times of the output area
+     * @return TextRenderer renderer
+     */
+    public TextRenderer getRenderer() {
+        return renderer;
+    }
+
     /**
      * Method which outputs a sting to the JTextArea
      * @param message message to be printed
      */
     public void print(String message) {
-        jTextArea.append(message + "\n");
+        //Safe from any thread, shown on the next frame
+        renderer.append(message);
     }
 
     /**
@@ -117,6 +134,8 @@ public class ServerGUI extends JFrame {
         jTextArea.setLineWrap(true);
         jTextArea.setWrapStyleWord(true);
 
+        renderer.attach(jTextArea);
+
         JScrollPane jScrollPane = new JScrollPane(jTextArea);
         jScrollPane.setPreferredSize(new Dimension(700,405));
 
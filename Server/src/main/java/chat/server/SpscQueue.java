@@ -0,0 +1,114 @@
+package chat.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Class that passes items from exactly one producer thread to
+ * exactly one consumer thread through a fixed array ring. Each
+ * side only writes its own index, so offering and polling never
+ * contend and nothing is allocated: an item is published with a
+ * single release write and nothing is compared and set.
+ *
+ * A loop handing work to another must never wait for it, or two
+ * loops could wait on each other, so when the ring is full items
+ * spill into a linked queue instead. The producer keeps using it
+ * until the consumer has emptied it, and the consumer only takes
+ * from it once the ring is empty, so items still come out in the
+ * order they went in. The outbound queues of the clients bound
+ * what that work queues.
+ * @param <E> type of the items
+ */
+public class SpscQueue<E> {
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(SpscQueue.class, "head", long.class);
+            TAIL = lookup.findVarHandle(SpscQueue.class, "tail", long.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object[] ring;
+    private final int mask;
+    //Items offered while the ring was full, oldest first
+    private final Queue<E> spill;
+    //Next slot to be polled, only written by the consumer and read by the other side with acquire
+    private long head;
+    //Next slot to be offered, only written by the producer and read by the other side with acquire
+    private long tail;
+    //Last head the producer read, so it only reads it again once the ring looks full
+    private long headSeen;
+    //True from the ring filling up until the spill is empty, only used by the producer
+    private boolean spilling;
+
+    /**
+     * Constructor for SpscQueue
+     * @param capacity slots in the ring, rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.ring = new Object[size];
+        this.mask = size - 1;
+        this.spill = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Method which adds an item. Only called by the producer.
+     * @param value item to be added, not null
+     */
+    public void offer(E value) {
+        if (spilling) {
+            if (!spill.isEmpty()) {
+                spill.add(value);
+                return;
+            }
+            //The consumer has taken every spilled item, so the ring is next in order
+            spilling = false;
+        }
+        long slot = tail;
+        if (slot - headSeen == ring.length) {
+            headSeen = (long) HEAD.getAcquire(this);
+            if (slot - headSeen == ring.length) {
+                spilling = true;
+                spill.add(value);
+                return;
+            }
+        }
+        ring[(int) slot & mask] = value;
+        //The release write publishes the item set before it
+        TAIL.setRelease(this, slot + 1);
+    }
+
+    /**
+     * Method which takes the oldest item. Only called by the consumer.
+     * @return the item, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long slot = head;
+        if (slot == (long) TAIL.getAcquire(this)) {
+            if (spill.peek() == null) {
+                return null;
+            }
+            //The ring may have filled since it was read; what spilled is newer
+            if (slot == (long) TAIL.getAcquire(this)) {
+                return spill.poll();
+            }
+        }
+        int index = (int) slot & mask;
+        E value = (E) ring[index];
+        //Let the value be collected and the slot be reused
+        ring[index] = null;
+        HEAD.setRelease(this, slot + 1);
+        return value;
+    }
+}
@@ -0,0 +1,390 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Class that runs TLS over the non-blocking channel of a client
+ * of the NIO engine. Records are decrypted into the decoder's
+ * buffer, and a batch of frames is encrypted by one wrap, so the
+ * frames of a gathering write share records. The handshake is
+ * driven by whichever of reading and writing gets to it first and
+ * never waits on the client; output queued meanwhile is sent once
+ * it is done. Its tasks, such as signing, run on the event loop.
+ * The buffers holding records are borrowed from the pool and only
+ * kept while they hold something, so an idle client keeps no
+ * memory for TLS. Only used by the connection's event loop.
+ */
+public class TlsChannel {
+
+    //Records encrypted by one write, at most
+    private static final int RECORDS_PER_WRITE = 4;
+    private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final Metrics metrics;
+    //Records read but not yet decrypted, null while none are kept
+    private PooledBuffer netIn;
+    //Records encrypted but not yet written, ready to be written
+    private PooledBuffer netOut;
+    //Decrypted bytes which did not fit the caller's buffer, ready to be read
+    private PooledBuffer appIn;
+    private boolean handshaking;
+    //When the handshake started, to time it and spot a resumed session
+    private final long startNanos;
+    private final long startMillis;
+
+    /**
+     * Constructor for TlsChannel
+     * @param channel non-blocking channel of the client
+     * @param engine engine of a new server side session
+     * @param pool pool the record buffers are borrowed from
+     * @param metrics metrics recording the handshake
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool pool, Metrics metrics) {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.metrics = metrics;
+        this.handshaking = true;
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+        engine.setUseClientMode(false);
+    }
+
+    /**
+     * Method which reads whatever the channel has available and
+     * decrypts it into a buffer, carrying on the handshake if
+     * it is not done
+     * @param dst buffer the decrypted bytes are added to
+     * @return bytes added, or -1 once the client has closed
+     *         the connection and everything sent is read
+     * @throws IOException if the channel fails or the client
+     *                     breaks the protocol
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        drain(dst);
+        if (appIn != null) {
+            //Still full from the last read
+            return dst.position() - start;
+        }
+        if (netIn == null) {
+            netIn = pool.acquire(engine.getSession().getPacketBufferSize());
+        }
+        int read = channel.read(netIn.buffer());
+        try {
+            unwrap(dst);
+        }
+        catch (SSLException e) {
+            failed();
+            throw e;
+        }
+        if (netIn.buffer().position() == 0) {
+            netIn.release();
+            netIn = null;
+        }
+        else if (!netIn.buffer().hasRemaining()) {
+            growIn();
+        }
+        int added = dst.position() - start;
+        if (added == 0 && (read == -1 || engine.isInboundDone())) {
+            return -1;
+        }
+        return added;
+    }
+
+    /**
+     * Method which decrypts every whole record read, straight into
+     * the caller's buffer while it has room for a whole record
+     * @param dst buffer the decrypted bytes are added to
+     * @throws IOException if a record cannot be decrypted
+     */
+    private void unwrap(ByteBuffer dst) throws IOException {
+        ByteBuffer in = netIn.buffer();
+        in.flip();
+        try {
+            boolean direct = true;
+            while (in.hasRemaining() && appIn == null) {
+                int size = engine.getSession().getApplicationBufferSize();
+                ByteBuffer out = dst;
+                if (!direct || dst.remaining() < size) {
+                    appIn = pool.acquire(size);
+                    out = appIn.buffer();
+                }
+                SSLEngineResult result = engine.unwrap(in, out);
+                if (out != dst) {
+                    out.flip();
+                    drain(dst);
+                }
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        //Rest of the record not read yet
+                    case CLOSED:
+                        return;
+                    case BUFFER_OVERFLOW:
+                        if (out != dst) {
+                            return;
+                        }
+                        //Record larger than the session said, decrypted aside instead
+                        direct = false;
+                        continue;
+                    default:
+                        break;
+                }
+                if (!handshake(result.getHandshakeStatus())) {
+                    //Waiting for its own output to be written
+                    return;
+                }
+            }
+        }
+        finally {
+            in.compact();
+        }
+    }
+
+    /**
+     * Method which moves a partial record into a larger buffer
+     * if it fills the one it is in, as happens if the session's
+     * packet size grows during the handshake
+     */
+    private void growIn() {
+        int size = engine.getSession().getPacketBufferSize();
+        ByteBuffer in = netIn.buffer();
+        if (in.capacity() >= size) {
+            return;
+        }
+        PooledBuffer bigger = pool.acquire(size);
+        bigger.buffer().put(in.flip());
+        netIn.release();
+        netIn = bigger;
+    }
+
+    /**
+     * Method which moves decrypted bytes left from an earlier
+     * read into the caller's buffer, giving the buffer holding
+     * them back once they are all moved
+     * @param dst buffer the bytes are added to
+     */
+    private void drain(ByteBuffer dst) {
+        if (appIn == null) {
+            return;
+        }
+        ByteBuffer left = appIn.buffer();
+        int limit = left.limit();
+        left.limit(left.position() + Math.min(left.remaining(), dst.remaining()));
+        dst.put(left);
+        left.limit(limit);
+        if (!left.hasRemaining()) {
+            appIn.release();
+            appIn = null;
+        }
+    }
+
+    /**
+     * Method which encrypts as much of a batch as fits a few
+     * records and writes it, first writing what an earlier call
+     * could not. Nothing is taken while the handshake is going on.
+     * @param srcs buffers of the batch
+     * @param offset first buffer to be written
+     * @param length number of buffers to be written
+     * @return bytes of the batch taken, which are sent even if
+     *         the channel does not take them yet
+     * @throws IOException if the channel fails or the client
+     *                     breaks the protocol
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        try {
+            if (!flush()) {
+                return 0;
+            }
+            if (handshaking) {
+                handshake(engine.getHandshakeStatus());
+                if (handshaking) {
+                    return 0;
+                }
+            }
+            long taken = 0;
+            for (int records = 0; records < RECORDS_PER_WRITE; records++) {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("Connection closed.");
+                }
+                taken += result.bytesConsumed();
+                //A record of the session, such as a ticket, may go first
+                if (result.getStatus() != SSLEngineResult.Status.OK
+                        || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                    break;
+                }
+            }
+            flush();
+            return taken;
+        }
+        catch (SSLException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Method which writes records an earlier call could not
+     * @return true if nothing is left waiting for the channel
+     * @throws IOException if the channel fails
+     */
+    public boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        channel.write(netOut.buffer());
+        if (netOut.buffer().hasRemaining()) {
+            return false;
+        }
+        netOut.release();
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * Method which encrypts bytes into the records waiting
+     * to be written
+     * @param srcs buffers to be encrypted
+     * @param offset first buffer to be encrypted
+     * @param length number of buffers to be encrypted
+     * @return result of the wrap
+     * @throws SSLException if the engine fails
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        if (netOut == null) {
+            netOut = pool.acquire(RECORDS_PER_WRITE * engine.getSession().getPacketBufferSize());
+        }
+        else {
+            netOut.buffer().compact();
+        }
+        ByteBuffer out = netOut.buffer();
+        try {
+            return engine.wrap(srcs, offset, length, out);
+        }
+        finally {
+            out.flip();
+        }
+    }
+
+    /**
+     * Method which carries the handshake on as far as it can
+     * go without more from the client
+     * @param status what the engine needs next
+     * @return false if it needs its output written first
+     * @throws IOException if the channel fails or the
+     *                     handshake fails
+     */
+    private boolean handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult result = wrap(NOTHING, 0, 1);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        flush();
+                        return false;
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+                case FINISHED:
+                    finished();
+                    //A session ticket may follow
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    //Waiting for the client, or not handshaking at all
+                    return flush();
+            }
+        }
+    }
+
+    /**
+     * Method which records a finished handshake. A session
+     * created before the handshake started was resumed.
+     */
+    private void finished() {
+        if (handshaking) {
+            handshaking = false;
+            metrics.tlsHandshake(System.nanoTime() - startNanos,
+                    engine.getSession().getCreationTime() < startMillis);
+        }
+    }
+
+    /**
+     * Method which records a failed handshake
+     */
+    private void failed() {
+        if (handshaking) {
+            handshaking = false;
+            metrics.tlsFailed();
+        }
+    }
+
+    /**
+     * Method which checks if the handshake is waiting for the
+     * client, in which case output waits for it rather than
+     * for the channel to become writable
+     * @return true if only the client can move things on
+     */
+    public boolean isWaitingForClient() {
+        return handshaking && netOut == null;
+    }
+
+    /**
+     * Method which checks if the handshake is going on
+     * @return boolean handshaking
+     */
+    public boolean isHandshaking() {
+        return handshaking;
+    }
+
+    /**
+     * Method which checks if decrypted bytes are waiting for
+     * room in the caller's buffer
+     * @return true if read should be called again
+     */
+    public boolean hasPendingInput() {
+        return appIn != null;
+    }
+
+    /**
+     * Method which tells the client the connection is closing, if
+     * the channel will take it at once, and gives every borrowed
+     * buffer back. The channel is left for the caller to close.
+     */
+    public void close() {
+        if (!handshaking) {
+            engine.closeOutbound();
+            try {
+                wrap(NOTHING, 0, 1);
+                flush();
+            }
+            catch (IOException ignored) {
+                //Closed without telling the client
+            }
+        }
+        for (PooledBuffer buffer : new PooledBuffer[] {netIn, netOut, appIn}) {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+        netIn = null;
+        netOut = null;
+        appIn = null;
+    }
+}
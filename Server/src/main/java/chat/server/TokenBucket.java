@@ -0,0 +1,85 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps a token bucket as the time at which it will be
+ * full again. Tokens are added at a steady rate and the bucket
+ * holds one second of them. Taking tokens moves that time on by
+ * one interval per token, with a single compare and set, so the
+ * bucket can be shared between threads without a lock. A bucket
+ * may be overdrawn, and is then in debt until it refills.
+ */
+public class TokenBucket {
+
+    private final long interval;
+    private final long capacity;
+    private final AtomicLong fullAt;
+
+    /**
+     * Constructor for TokenBucket
+     * @param perSecond tokens added each second, also the most held
+     * @param now current time in nanoseconds
+     */
+    public TokenBucket(long perSecond, long now) {
+        this.interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / perSecond);
+        this.capacity = interval * perSecond;
+        this.fullAt = new AtomicLong(now);
+    }
+
+    /**
+     * Method which takes tokens if the bucket holds at least one.
+     * Taking more than it holds leaves the bucket in debt.
+     * @param tokens tokens to take
+     * @param now current time in nanoseconds
+     * @return true if the tokens were taken
+     */
+    public boolean tryTake(long tokens, long now) {
+        while (true) {
+            long current = fullAt.get();
+            long base = Math.max(current, now);
+            if (base + interval - now > capacity) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, base + tokens * interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Method which takes tokens whether or not the bucket
+     * holds them
+     * @param tokens tokens to take
+     * @param now current time in nanoseconds
+     */
+    public void take(long tokens, long now) {
+        while (true) {
+            long current = fullAt.get();
+            if (fullAt.compareAndSet(current, Math.max(current, now) + tokens * interval)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method which returns how long until the bucket is
+     * out of debt
+     * @param now current time in nanoseconds
+     * @return nanoseconds to wait, 0 if not in debt
+     */
+    public long debt(long now) {
+        return Math.max(0, fullAt.get() - now - capacity);
+    }
+
+    /**
+     * Method which checks if the bucket has refilled, so
+     * replacing it with a new one would change nothing
+     * @param now current time in nanoseconds
+     * @return true if the bucket is full
+     */
+    public boolean isFull(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
@@ -0,0 +1,137 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for Cluster, with three nodes running in this JVM on
+ * localhost and a client of each joined to the same room
+ */
+class ClusterTest {
+
+    private static final int NODES = 3;
+
+    @Test
+    void roomMessagesCrossEveryNode() throws Exception {
+        int[] ports = freePorts(NODES * 2);
+        StringBuilder members = new StringBuilder();
+        for (int i = 0; i < NODES; i++) {
+            members.append(i == 0 ? "" : ",").append("localhost:").append(ports[NODES + i]);
+        }
+        ChatServer[] servers = new ChatServer[NODES];
+        for (int i = 0; i < NODES; i++) {
+            //One node on the NIO engine, so relays cross both engines
+            String engine = i == 0 ? "nio" : "classic";
+            ServerConfig config = ServerConfig.fromArgs(new String[] {"-cse", engine, "-csz", (i + 1) + "@" + members});
+            servers[i] = new ChatServer(ports[i], false, config);
+            Thread acceptor = new Thread(servers[i]::go, "acceptor-" + ports[i]);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            for (ChatServer server : servers) {
+                assertNotNull(server.getCluster());
+                while (server.getCluster().getLinksUp() < NODES - 1) {
+                    Thread.sleep(10);
+                }
+            }
+            Socket[] clients = new Socket[NODES];
+            BufferedReader[] in = new BufferedReader[NODES];
+            try {
+                for (int i = 0; i < NODES; i++) {
+                    clients[i] = new Socket("localhost", ports[i]);
+                    in[i] = new BufferedReader(new InputStreamReader(clients[i].getInputStream(), StandardCharsets.UTF_8));
+                    send(clients[i], "/join red");
+                    //Sent once the node has put the client in the room
+                    readUntil(in[i], "Server: ROOM red");
+                }
+                for (int i = 0; i < NODES; i++) {
+                    send(clients[i], "hello from node " + (i + 1));
+                    for (int j = 0; j < NODES; j++) {
+                        String expected = (i == j ? "You: " : ": ") + "hello from node " + (i + 1);
+                        assertTrue(readUntil(in[j], expected).endsWith(expected));
+                    }
+                }
+
+                //Kept on the nodes where blue has no members, so joining it there replays it
+                send(clients[0], "/join blue");
+                readUntil(in[0], "Server: ROOM blue");
+                send(clients[0], "blue is empty elsewhere");
+                for (int j = 1; j < NODES; j++) {
+                    Rooms rooms = servers[j].getRooms();
+                    while (rooms.get("blue") == null || rooms.get("blue").getHistory().getCount() == 0) {
+                        Thread.sleep(10);
+                    }
+                    send(clients[j], "/join blue");
+                    readUntil(in[j], ": blue is empty elsewhere");
+                }
+            }
+            finally {
+                for (Socket client : clients) {
+                    if (client != null) {
+                        client.close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Method which finds free ports on this machine
+     * @param count number of ports
+     * @return the ports, all different
+     * @throws IOException if no port can be bound
+     */
+    private static int[] freePorts(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        for (int i = 0; i < count; i++) {
+            sockets[i] = new ServerSocket(0);
+            ports[i] = sockets[i].getLocalPort();
+        }
+        for (ServerSocket socket : sockets) {
+            socket.close();
+        }
+        return ports;
+    }
+
+    /**
+     * Method which sends a line as a client
+     * @param client socket of the client
+     * @param line line to be sent
+     * @throws IOException if the socket fails
+     */
+    private static void send(Socket client, String line) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Method which reads lines until one ends with the given text,
+     * skipping the notices and messages of other rooms before it
+     * @param in stream of the client
+     * @param end text the line ends with
+     * @return the line
+     * @throws IOException if the server closes the connection first
+     */
+    private static String readUntil(BufferedReader in, String end) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.endsWith(end)) {
+                return line;
+            }
+        }
+        throw new IOException("Server closed the connection.");
+    }
+}
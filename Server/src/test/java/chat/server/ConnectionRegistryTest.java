@@ -0,0 +1,128 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for ConnectionRegistry, checked against a HashMap
+ * and walked while other threads reconnect clients
+ */
+class ConnectionRegistryTest {
+
+    @Test
+    void matchesAMapThroughRandomChurn() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+        Map<Integer, String> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int step = 0; step < 200_000; step++) {
+            //Ids spaced as in a cluster of three nodes
+            int id = 3 * random.nextInt(2000) + 1;
+            if (random.nextInt(3) == 0) {
+                String old = expected.get(id);
+                assertEquals(old != null, registry.remove(id, old));
+                expected.remove(id);
+            }
+            else {
+                String connection = "client" + id + "@" + step;
+                registry.add(id, connection);
+                expected.put(id, connection);
+            }
+            assertEquals(expected.get(id), registry.get(id));
+        }
+        assertEquals(expected.size(), registry.size());
+        Set<String> walked = new HashSet<>();
+        for (String connection : registry) {
+            assertTrue(walked.add(connection));
+        }
+        assertEquals(new HashSet<>(expected.values()), walked);
+        Set<String> each = new HashSet<>();
+        registry.forEach(each::add);
+        assertEquals(walked, each);
+    }
+
+    @Test
+    void staysFastPastSixteenBitsOfSlots() {
+        ConnectionRegistry<Integer> registry = new ConnectionRegistry<>();
+        int clients = 200_000;
+        //Probing a table whose ids all hash into 65536 slots takes tens of seconds here
+        assertTimeout(Duration.ofSeconds(10), () -> {
+            for (int id = 1; id <= clients; id++) {
+                registry.add(id, id);
+            }
+            for (int id = 1; id <= clients; id++) {
+                assertEquals(id, registry.get(id));
+            }
+            assertNull(registry.get(clients + 1));
+            for (int id = 1; id <= clients; id += 2) {
+                assertTrue(registry.remove(id, registry.get(id)));
+            }
+            for (int id = 1; id <= clients; id++) {
+                assertEquals(id % 2 == 0 ? Integer.valueOf(id) : null, registry.get(id));
+            }
+        });
+        assertEquals(clients / 2, registry.size());
+    }
+
+    @Test
+    void removesOnlyTheConnectionStored() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+        registry.add(1, "old");
+        registry.add(1, "new");
+        assertFalse(registry.remove(1, "old"));
+        assertEquals("new", registry.get(1));
+        assertTrue(registry.remove(1, "new"));
+        assertNull(registry.get(1));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    void broadcastsSeeEveryClientConnectedThroughout() throws InterruptedException {
+        ConnectionRegistry<Integer> registry = new ConnectionRegistry<>();
+        int stable = 1000;
+        for (int id = 0; id < stable; id++) {
+            registry.add(id, id);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread churn = new Thread(() -> {
+            Random random = new Random(3);
+            while (running.get()) {
+                int id = stable + random.nextInt(5000);
+                Integer connection = registry.get(id);
+                if (connection != null) {
+                    registry.remove(id, connection);
+                }
+                else {
+                    registry.add(id, id);
+                }
+            }
+        });
+        churn.start();
+        try {
+            for (int broadcast = 0; broadcast < 2000; broadcast++) {
+                boolean[] seen = new boolean[stable];
+                for (Integer connection : registry) {
+                    if (connection < stable) {
+                        assertFalse(seen[connection]);
+                        seen[connection] = true;
+                    }
+                }
+                for (int id = 0; id < stable; id++) {
+                    assertTrue(seen[id], "Client " + id + " was missed.");
+                }
+            }
+        }
+        finally {
+            running.set(false);
+            churn.join();
+        }
+    }
+}
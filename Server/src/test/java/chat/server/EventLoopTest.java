@@ -0,0 +1,43 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for EventLoop
+ */
+class EventLoopTest {
+
+    @Test
+    void keepsRunningAfterATaskOrTimerThrows() throws Exception {
+        List<String> logged = new CopyOnWriteArrayList<>();
+        AsyncLogger logger = new AsyncLogger(64, List.of(logged::addAll));
+        EventLoop loop = new EventLoop(0, 1, null, logger);
+        loop.start("event-loop-test");
+
+        CountDownLatch ran = new CountDownLatch(2);
+        loop.execute(() -> {
+            throw new IllegalStateException("task");
+        });
+        loop.execute(() -> loop.schedule(() -> {
+            throw new IllegalStateException("timer");
+        }, 0));
+        loop.execute(() -> loop.schedule(ran::countDown, TimeUnit.MILLISECONDS.toNanos(10)));
+        loop.execute(ran::countDown);
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+
+        //Written by the logger's own thread
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (logged.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(logged.stream().anyMatch(line -> line.startsWith("Task failed on event loop 0: java.lang.IllegalStateException: task")));
+        assertTrue(logged.stream().anyMatch(line -> line.startsWith("Timer failed on event loop 0: java.lang.IllegalStateException: timer")));
+    }
+}
@@ -0,0 +1,87 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for reading one room's messages back from the Journal,
+ * with rooms red and blue taking turns to send
+ */
+class JournalTest {
+
+    @Test
+    void readsOneRoomUpToASequenceNumber(@TempDir File dir) throws IOException {
+        Journal journal = start(dir, 1 << 20);
+        for (int i = 1; i <= 8; i++) {
+            append(journal, i);
+        }
+        journal.flush(5000);
+
+        assertEquals(List.of(4L, 6L), read(journal, 2, 6, true));
+        assertEquals(List.of(2L, 4L, 6L, 8L), read(journal, 0, 8, true));
+    }
+
+    @Test
+    void reportsMessagesInDeletedSegments(@TempDir File dir) throws IOException {
+        //A couple of records to a segment, and only two segments kept
+        Journal journal = start(dir, 100);
+        for (int i = 1; i <= 20; i++) {
+            append(journal, i);
+        }
+        journal.flush(5000);
+
+        read(journal, 2, 20, false);
+        assertEquals(List.of(20L), read(journal, 18, 20, true));
+    }
+
+    /**
+     * Method which opens and starts an empty journal
+     * @param dir directory of the journal
+     * @param segmentBytes size at which segments are rolled over
+     * @return the journal
+     * @throws IOException if the journal cannot be opened
+     */
+    private static Journal start(File dir, long segmentBytes) throws IOException {
+        Journal journal = new Journal(dir, segmentBytes, 2, new AsyncLogger(64, List.of(lines -> { })));
+        journal.recover((room, message) -> { });
+        journal.start();
+        return journal;
+    }
+
+    /**
+     * Method which saves a message, to red if its
+     * sequence number is even and to blue if not
+     * @param journal journal to save it to
+     * @param sequence sequence number of the message
+     */
+    private static void append(Journal journal, long sequence) {
+        Message message = Message.chat(1, "m" + sequence);
+        message.setSequence(sequence);
+        journal.append(sequence % 2 == 0 ? "red" : "blue", message);
+    }
+
+    /**
+     * Method which reads back red's messages between two sequence numbers
+     * @param journal journal to read
+     * @param after last sequence number already seen
+     * @param until sequence number of the last message wanted
+     * @param complete whether every message is expected to be kept
+     * @return sequence numbers read, oldest first
+     * @throws IOException if the journal cannot be read
+     */
+    private static List<Long> read(Journal journal, long after, long until, boolean complete) throws IOException {
+        List<Long> read = new ArrayList<>();
+        assertEquals(complete, journal.readAfter("red", after, until, (room, message) -> {
+            assertEquals("red", room);
+            read.add(message.getSequence());
+        }));
+        return read;
+    }
+}
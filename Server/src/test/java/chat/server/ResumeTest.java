@@ -0,0 +1,103 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for how a new client joins its room, with socketless
+ * connections whose queues are read in place of their writers
+ */
+class ResumeTest {
+
+    @Test
+    void historyWaitsForTheResume() {
+        ChatServer server = new ChatServer(0, false, ServerConfig.fromArgs(new String[] {"-csm", "off"}));
+        ServerConnection sender = connect(server, 1);
+        sender.onLine("first");
+        ServerConnection client = connect(server, 2);
+        sender.onLine("/msg 2 hello");
+        sender.onLine("second");
+        //Not in the lobby yet, but reachable directly
+        assertEquals(List.of("hello"), drain(client));
+
+        client.onLine("/resume lobby 1");
+        assertEquals(List.of("RESUMED", "second"), drain(client));
+        sender.onLine("third");
+        assertEquals(List.of("third"), drain(client));
+    }
+
+    @Test
+    void otherCommandsJoinWithTheWholeHistory() {
+        ChatServer server = new ChatServer(0, false, ServerConfig.fromArgs(new String[] {"-csm", "off"}));
+        ServerConnection sender = connect(server, 1);
+        sender.onLine("first");
+        ServerConnection client = connect(server, 2);
+        assertEquals(List.of(), drain(client));
+
+        client.onLine("/leave");
+        assertEquals(List.of("first", "You are in the lobby room."), drain(client));
+    }
+
+    @Test
+    void resumeReadsBackWhatTheHistoryDropped(@TempDir File dir) {
+        ChatServer server = new ChatServer(0, false, ServerConfig.fromArgs(
+                new String[] {"-csm", "off", "-csh", "2", "-csj", dir.getPath()}));
+        ServerConnection sender = connect(server, 1);
+        for (int i = 1; i <= 5; i++) {
+            sender.onLine("m" + i);
+        }
+        server.getJournal().flush(5000);
+
+        ServerConnection client = connect(server, 2);
+        client.onLine("/resume lobby 1");
+        assertEquals(List.of("RESUMED", "m2", "m3", "m4", "m5"), drain(client));
+        //Nothing seen, so only what the history keeps
+        ServerConnection late = connect(server, 3);
+        late.onLine("/resume lobby 0");
+        assertEquals(List.of("RESUMED", "m4", "m5"), drain(late));
+    }
+
+    @Test
+    void resumeAfterJoiningChangesNothingSent() {
+        ChatServer server = new ChatServer(0, false, ServerConfig.fromArgs(new String[] {"-csm", "off"}));
+        ServerConnection client = connect(server, 1);
+        client.admit();
+        client.onLine("/resume lobby 0");
+        client.admit();
+        assertEquals(List.of("RESUMED"), drain(client));
+    }
+
+    /**
+     * Method which adds a socketless client to the server
+     * @param server server the client connects to
+     * @param clientNo number given to the client
+     * @return the connection
+     */
+    private static ServerConnection connect(ChatServer server, int clientNo) {
+        ServerConnection connection = new ServerConnection((Socket) null, server, clientNo);
+        server.addConnection(connection);
+        return connection;
+    }
+
+    /**
+     * Method which takes everything queued for a client
+     * @param connection client to read the queue of
+     * @return text of each message, oldest first
+     */
+    private static List<String> drain(ServerConnection connection) {
+        List<String> texts = new ArrayList<>();
+        Message message;
+        while ((message = connection.pollOutbound()) != null) {
+            texts.add(message.getText());
+            message.release();
+        }
+        return texts;
+    }
+}
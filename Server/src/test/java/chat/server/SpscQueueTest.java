@@ -0,0 +1,54 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for SpscQueue, whose items must come out in the order
+ * they went in, also once the ring is full and they spill over
+ */
+class SpscQueueTest {
+
+    @Test
+    void keepsOrderWhenTheRingSpills() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i);
+        }
+        //Room in the ring again, but the spill is not empty yet
+        assertEquals(0, queue.poll());
+        queue.offer(10);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, queue.poll());
+        }
+        assertNull(queue.poll());
+        //Back on the ring once the spill is empty
+        queue.offer(11);
+        assertEquals(11, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void handsEveryItemOverInOrderBetweenThreads() throws InterruptedException {
+        int items = 1_000_000;
+        SpscQueue<Integer> queue = new SpscQueue<>(64);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < items; i++) {
+                queue.offer(i);
+            }
+        });
+        producer.start();
+        int next = 0;
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (next < items && System.nanoTime() < deadline) {
+            Integer item = queue.poll();
+            if (item != null) {
+                assertEquals(next++, item);
+            }
+        }
+        producer.join();
+        assertEquals(items, next);
+        assertNull(queue.poll());
+    }
+}